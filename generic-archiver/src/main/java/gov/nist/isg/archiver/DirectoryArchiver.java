@@ -12,6 +12,7 @@
 package gov.nist.isg.archiver;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -23,7 +24,7 @@ import java.util.logging.Logger;
  * @author Antoine Vandecreme (Initial implementation)
  * @author Julien Amelot (Added multi-process)
  */
-public class DirectoryArchiver implements FilesArchiver {
+public class DirectoryArchiver implements ReadableFilesArchiver {
 
     private final File directory;
 
@@ -82,6 +83,15 @@ public class DirectoryArchiver implements FilesArchiver {
         this.directory = directory;
     }
 
+    /**
+     * Get the directory where the files are stored.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
     @Override
     public <T> T appendFile(String path, FileAppender<T> appender)
             throws IOException {
@@ -115,6 +125,20 @@ public class DirectoryArchiver implements FilesArchiver {
         Files.copy(file.toPath(), outputFile.toPath());
     }
 
+    @Override
+    public boolean exists(String path) throws IOException {
+        return new File(directory, path).isFile();
+    }
+
+    @Override
+    public <T> T readFile(String path, FileExtractor<T> extractor)
+            throws IOException {
+        try (FileInputStream fis = new FileInputStream(
+                new File(directory, path))) {
+            return extractor.extract(fis);
+        }
+    }
+
     @Override
     public void close() throws IOException {
     }
@@ -0,0 +1,49 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.archiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Archiver able to read back the files previously appended.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface ReadableFilesArchiver extends FilesArchiver {
+
+    public interface FileExtractor<T> {
+
+        T extract(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Check if a file exists in the archive
+     *
+     * @param path The relative path of the file in the archive
+     * @return true if the file exists
+     * @throws IOException if the archive can not be accessed
+     */
+    public boolean exists(String path) throws IOException;
+
+    /**
+     * Read a file from the archive
+     *
+     * @param <T> The type returned by the extractor's extract method
+     * @param path The relative path of the file in the archive
+     * @param extractor The extractor implementation
+     * @return The value returned by the extractor's extract method
+     * @throws IOException if the file can not be read
+     */
+    public <T> T readFile(String path, FileExtractor<T> extractor)
+            throws IOException;
+}
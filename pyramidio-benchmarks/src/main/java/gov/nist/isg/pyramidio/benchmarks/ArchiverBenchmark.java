@@ -0,0 +1,105 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.archiver.TarArchiver;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the archivers appending tiles of a given size.
+ *
+ * @author Antoine Vandecreme
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiverBenchmark {
+
+    @Param({"directory", "tar"})
+    public String archiverType;
+
+    @Param({"16384", "262144"})
+    public int fileSize;
+
+    private File directory;
+    private FilesArchiver archiver;
+    private byte[] content;
+    private long fileIndex;
+
+    @Setup(Level.Trial)
+    public void setupContent() {
+        content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("pyramidio-benchmark").toFile();
+        switch (archiverType) {
+            case "directory":
+                archiver = new DirectoryArchiver(directory);
+                break;
+            case "tar":
+                archiver = new TarArchiver(new File(directory, "tiles.tar"));
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown archiver " + archiverType);
+        }
+        fileIndex = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        archiver.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void appendFile() throws IOException {
+        // Spread the files in folders like the levels of a pyramid
+        long index = fileIndex++;
+        archiver.appendFile("tiles/" + (index % 16) + "/" + index + ".jpg",
+                new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream)
+                    throws IOException {
+                outputStream.write(content);
+                return null;
+            }
+        });
+    }
+}
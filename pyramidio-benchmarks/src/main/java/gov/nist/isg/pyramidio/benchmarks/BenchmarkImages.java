@@ -0,0 +1,105 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ *
+ * @author Antoine Vandecreme
+ */
+class BenchmarkImages {
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Get the BufferedImage type corresponding to a name such as 3BYTE_BGR.
+     */
+    static int getImageType(String name) {
+        switch (name) {
+            case "3BYTE_BGR":
+                return BufferedImage.TYPE_3BYTE_BGR;
+            case "4BYTE_ABGR":
+                return BufferedImage.TYPE_4BYTE_ABGR;
+            case "BYTE_GRAY":
+                return BufferedImage.TYPE_BYTE_GRAY;
+            case "INT_RGB":
+                return BufferedImage.TYPE_INT_RGB;
+            case "USHORT_GRAY":
+                return BufferedImage.TYPE_USHORT_GRAY;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown image type " + name);
+        }
+    }
+
+    /**
+     * Create an image made of smooth gradients and some noise so that it
+     * compresses like a photograph.
+     */
+    static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        WritableRaster raster = image.getRaster();
+        int bands = raster.getNumBands();
+        int max = (1 << image.getSampleModel().getSampleSize(0)) - 1;
+        Random random = new Random(42);
+        int[] row = new int[width * bands];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    double value = 0.5 + 0.25 * Math.sin((x + 37 * b) / 97.0)
+                            + 0.2 * Math.cos((y - 11 * b) / 61.0)
+                            + 0.05 * random.nextGaussian();
+                    row[x * bands + b] = (int) Math.max(0,
+                            Math.min(max, Math.round(value * max)));
+                }
+            }
+            raster.setPixels(0, y, width, 1, row);
+        }
+        return image;
+    }
+
+    /**
+     * Archiver discarding the files, used to measure the pyramid computation
+     * and the encoding without the storage.
+     */
+    static class DiscardingArchiver implements FilesArchiver {
+
+        @Override
+        public <T> T appendFile(String path, FileAppender<T> appender)
+                throws IOException {
+            return appender.append(new NullOutputStream());
+        }
+
+        @Override
+        public <T> T appendBigFile(String path, FileAppender<T> appender)
+                throws IOException {
+            return appendFile(path, appender);
+        }
+
+        @Override
+        public void appendFile(String path, File file) throws IOException {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.pyramidio.encoding.ImageIOTileEncoder;
+import gov.nist.isg.pyramidio.encoding.PngTileEncoder;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PNG encoding of a tile by ImageIO and by the PngTileEncoder, for each
+ * image type and tile size.
+ *
+ * @author Antoine Vandecreme
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY", "INT_RGB", "USHORT_GRAY"})
+    public String imageType;
+
+    @Param({"254", "1024"})
+    public int tileSize;
+
+    private BufferedImage tile;
+
+    private final ImageIOTileEncoder imageIOEncoder
+            = new ImageIOTileEncoder("png");
+    private final PngTileEncoder pngEncoder = new PngTileEncoder();
+    private final PngTileEncoder sequentialPngEncoder = new PngTileEncoder();
+    private final ByteArrayOutputStream outputStream
+            = new ByteArrayOutputStream();
+
+    @Setup
+    public void setup() {
+        ImageIO.setUseCache(false);
+        tile = BenchmarkImages.createImage(tileSize, tileSize,
+                BenchmarkImages.getImageType(imageType));
+        sequentialPngEncoder.setParallelism(1);
+    }
+
+    @Benchmark
+    public int imageIOWrite() throws IOException {
+        outputStream.reset();
+        ImageIO.write(tile, "png", outputStream);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int imageIOTileEncoder() throws IOException {
+        outputStream.reset();
+        imageIOEncoder.encode(tile, outputStream);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int pngTileEncoder() throws IOException {
+        outputStream.reset();
+        pngEncoder.encode(tile, outputStream);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int sequentialPngTileEncoder() throws IOException {
+        outputStream.reset();
+        sequentialPngEncoder.encode(tile, outputStream);
+        return outputStream.size();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.pyramidio.BufferedImageReader;
+import gov.nist.isg.pyramidio.ScalablePyramidBuilder;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end build of a pyramid from an image held in memory. The tiles are
+ * encoded but discarded so that the storage does not skew the results.
+ *
+ * @author Antoine Vandecreme
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PyramidBuildBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    @Param({"jpg", "png"})
+    public String tileFormat;
+
+    @Param({"4096"})
+    public int imageSize;
+
+    private BufferedImageReader imageReader;
+
+    @Setup
+    public void setup() {
+        BufferedImage image = BenchmarkImages.createImage(imageSize,
+                imageSize, BufferedImage.TYPE_3BYTE_BGR);
+        imageReader = new BufferedImageReader(image);
+    }
+
+    @Benchmark
+    public void buildPyramid() throws IOException {
+        ScalablePyramidBuilder spb = new ScalablePyramidBuilder(
+                254, 1, tileFormat, "dzi");
+        spb.buildPyramid(imageReader, "benchmark",
+                new BenchmarkImages.DiscardingArchiver(), parallelism);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DeepZoomImageReader;
+import gov.nist.isg.pyramidio.DirectImageReader;
+import gov.nist.isg.pyramidio.ScalablePyramidBuilder;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads of random regions of an image file with DirectImageReader, at full
+ * resolution and subsampled, and of the pyramid built from it with
+ * DeepZoomImageReader.
+ *
+ * @author Antoine Vandecreme
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    @Param({"256", "1024"})
+    public int regionSize;
+
+    @Param({"4096"})
+    public int imageSize;
+
+    private File directory;
+    private DirectImageReader directImageReader;
+    private DeepZoomImageReader deepZoomImageReader;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("pyramidio-benchmark").toFile();
+        File imageFile = new File(directory, "benchmark." + format);
+        BufferedImage image = BenchmarkImages.createImage(imageSize,
+                imageSize, BufferedImage.TYPE_3BYTE_BGR);
+        if (!ImageIO.write(image, format, imageFile)) {
+            throw new IOException("No " + format + " image writer found.");
+        }
+        directImageReader = new DirectImageReader(imageFile);
+
+        ScalablePyramidBuilder spb = new ScalablePyramidBuilder(
+                254, 1, format, "dzi");
+        try (FilesArchiver archiver = new DirectoryArchiver(directory)) {
+            spb.buildPyramid(directImageReader, "benchmark", archiver,
+                    Runtime.getRuntime().availableProcessors());
+        }
+        deepZoomImageReader = new DeepZoomImageReader(
+                new File(directory, "benchmark.dzi"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        directImageReader.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public BufferedImage directImageReader() throws IOException {
+        return directImageReader.read(nextRegion());
+    }
+
+    @Benchmark
+    public BufferedImage directImageReaderSubsampled() throws IOException {
+        return directImageReader.read(nextRegion(), 4);
+    }
+
+    @Benchmark
+    public BufferedImage deepZoomImageReader() throws IOException {
+        return deepZoomImageReader.read(nextRegion());
+    }
+
+    @Benchmark
+    public BufferedImage deepZoomImageReaderZoomedOut() throws IOException {
+        return deepZoomImageReader.getSubImage(nextRegion(), 0.3);
+    }
+
+    private Rectangle nextRegion() {
+        return new Rectangle(random.nextInt(imageSize - regionSize),
+                random.nextInt(imageSize - regionSize),
+                regionSize, regionSize);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.benchmarks;
+
+import gov.nist.isg.pyramidio.resampling.BilinearResampler;
+import gov.nist.isg.pyramidio.resampling.BoxResampler;
+import gov.nist.isg.pyramidio.resampling.LanczosResampler;
+import gov.nist.isg.pyramidio.tools.ImageDownsamplingHelper;
+import gov.nist.isg.pyramidio.tools.ImageResizingHelper;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downsampling of the mosaic of 4 tiles into a parent tile, for each image
+ * type and resizing engine.
+ *
+ * @author Antoine Vandecreme
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResizeBenchmark {
+
+    @Param({"3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY", "INT_RGB", "USHORT_GRAY"})
+    public String imageType;
+
+    @Param({"254"})
+    public int tileSize;
+
+    private BufferedImage mosaic;
+
+    private final BoxResampler box = new BoxResampler();
+    private final BilinearResampler bilinear = new BilinearResampler();
+    private final LanczosResampler lanczos = new LanczosResampler();
+
+    @Setup
+    public void setup() {
+        mosaic = BenchmarkImages.createImage(2 * tileSize, 2 * tileSize,
+                BenchmarkImages.getImageType(imageType));
+    }
+
+    @Benchmark
+    public BufferedImage resizeImage() {
+        return ImageResizingHelper.resizeImage(mosaic, tileSize, tileSize);
+    }
+
+    @Benchmark
+    public BufferedImage boxResampler() {
+        return box.resize(mosaic, tileSize, tileSize);
+    }
+
+    @Benchmark
+    public BufferedImage bilinearResampler() {
+        return bilinear.resize(mosaic, tileSize, tileSize);
+    }
+
+    @Benchmark
+    public BufferedImage lanczosResampler() {
+        return lanczos.resize(mosaic, tileSize, tileSize);
+    }
+
+    @Benchmark
+    public BufferedImage downsampleByTwo() {
+        return ImageDownsamplingHelper.downsampleByTwo(mosaic);
+    }
+}
@@ -11,10 +11,56 @@
  */
 package gov.nist.isg.pyramidio.cli;
 
+import gov.nist.isg.archiver.DirectoryArchiver;
 import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.BatchPyramidBuilder;
+import gov.nist.isg.pyramidio.BuildMetrics;
+import gov.nist.isg.pyramidio.DeepZoomImageReader;
 import gov.nist.isg.pyramidio.DirectImageReader;
+import gov.nist.isg.pyramidio.MappedImageReader;
+import gov.nist.isg.pyramidio.PartialImageReader;
 import gov.nist.isg.pyramidio.ScalablePyramidBuilder;
+import gov.nist.isg.pyramidio.TiledImageReader;
+import gov.nist.isg.pyramidio.encoding.ImageIOTileEncoder;
+import gov.nist.isg.pyramidio.encoding.PngTileEncoder;
+import gov.nist.isg.pyramidio.encoding.TileEncoder;
+import gov.nist.isg.pyramidio.layout.BigTiffLayout;
+import gov.nist.isg.pyramidio.layout.DeepZoomLayout;
+import gov.nist.isg.pyramidio.layout.IiifLayout;
+import gov.nist.isg.pyramidio.layout.OmeZarrLayout;
+import gov.nist.isg.pyramidio.layout.TileLayout;
+import gov.nist.isg.pyramidio.layout.ZoomifyLayout;
+import gov.nist.isg.pyramidio.resampling.BicubicResampler;
+import gov.nist.isg.pyramidio.resampling.BilinearResampler;
+import gov.nist.isg.pyramidio.resampling.BoxResampler;
+import gov.nist.isg.pyramidio.resampling.LanczosResampler;
+import gov.nist.isg.pyramidio.resampling.Resampler;
+import java.awt.Rectangle;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.management.ObjectName;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -31,14 +77,24 @@ import org.apache.commons.io.FilenameUtils;
  */
 public class Main {
 
+    private static final List<String> PARTITIONING_OPTIONS = Arrays.asList(
+            "pc", "pi", "pl", "m", "lp");
+
     public static void main(String[] args) {
         Options options = new Options();
 
         Option inputOption = new Option("i", "input", true,
-                "Input image to convert to dzi.");
-        inputOption.setRequired(true);
+                "Input image to convert to dzi. It can also be a directory "
+                + "or a glob on the file names such as images/*.tif to "
+                + "convert all the images it contains in a batch.");
         options.addOption(inputOption);
 
+        Option manifestOption = new Option("mf", "manifest", true,
+                "Text file listing the input images to convert in a batch, "
+                + "one per line. Relative paths are resolved against the "
+                + "folder of the manifest.");
+        options.addOption(manifestOption);
+
         Option outputOption = new Option("o", "output", true,
                 "Output folder or file where the output will be generated.");
         outputOption.setRequired(true);
@@ -59,6 +115,47 @@ public class Main {
                 + "(default to the same format than the input)");
         options.addOption(tileFormatOption);
 
+        Option tileQualityOption = new Option("tq", "tileQuality", true,
+                "Compression quality of the tiles between 0 and 1. For jpg, "
+                + "the usual quality factor. For png, 1 is the fastest "
+                + "compression and 0 the smallest (default to the writer "
+                + "default).");
+        tileQualityOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(tileQualityOption);
+
+        Option tileCompressionTypeOption = new Option("tct",
+                "tileCompressionType", true, "Compression type of the tiles "
+                + "among the types supported by the ImageIO writer of the "
+                + "tile format, such as LZW or Deflate for tif.");
+        options.addOption(tileCompressionTypeOption);
+
+        Option tileProgressiveOption = new Option("tp", "tileProgressive",
+                false, "Encode the tiles in progressive mode (such as "
+                + "progressive jpg or interlaced png).");
+        options.addOption(tileProgressiveOption);
+
+        Option tileEncoderOption = new Option("te", "tileEncoder", true,
+                "Encoder of the tiles: imageio or png (default imageio). The "
+                + "png encoder only supports the png tile format and is "
+                + "faster, compressing large tiles with multiple threads.");
+        options.addOption(tileEncoderOption);
+
+        Option layoutsOption = new Option("l", "layouts", true,
+                "Comma separated layouts written by the build among dzi, "
+                + "zoomify (name_zoomify folder), iiif (IIIF level 0 "
+                + "static tiles in the name_iiif folder), bigtiff (tiled "
+                + "name.tif file, JPEG compressed for the jpg tile format "
+                + "and deflate compressed otherwise) and zarr (zlib "
+                + "compressed OME-Zarr chunks in the name.zarr folder) "
+                + "(default dzi). Resumable builds and partitions require "
+                + "dzi first and do not support bigtiff and zarr.");
+        options.addOption(layoutsOption);
+
+        Option iiifBaseUriOption = new Option("iu", "iiifBaseUri", true,
+                "URI where the name_iiif folders are published, used as "
+                + "base of the IIIF image ids (default to relative ids).");
+        options.addOption(iiifBaseUriOption);
+
         Option parallelismOption = new Option("p", "parallelism", true,
                 "Number of threads to use (default to number of cpu cores).");
         parallelismOption.setType(PatternOptionBuilder.NUMBER_VALUE);
@@ -73,6 +170,149 @@ public class Main {
         inputCacheRatioOption.setType(PatternOptionBuilder.NUMBER_VALUE);
         options.addOption(inputCacheRatioOption);
 
+        Option readCoalescingOption = new Option("rc", "readCoalescing",
+                true, "Number of tiles k, a power of 2, such that the input "
+                + "image is read by blocks of k x k tiles when it is not "
+                + "cached. 1 reads each tile separately. By default, k is "
+                + "chosen from the tile size and the input format.");
+        readCoalescingOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(readCoalescingOption);
+
+        Option memoryMappedOption = new Option("mm", "memoryMapped", false,
+                "Read the input image by memory mapping its file instead of "
+                + "decoding it. Only for uncompressed TIFF files and raw "
+                + "files described by an ENVI header.");
+        options.addOption(memoryMappedOption);
+
+        Option memoryBudgetOption = new Option("mb", "memoryBudget", true,
+                "Maximum memory used by the images held by the build, in "
+                + "bytes or with a k, m or g suffix (such as 2g). When set, "
+                + "the input cache is sized to fit in the budget and the "
+                + "input cache ratio is ignored.");
+        options.addOption(memoryBudgetOption);
+
+        Option writerThreadsOption = new Option("wt", "writerThreads", true,
+                "Number of threads dedicated to encoding and writing the "
+                + "tiles (default 0: tiles are written by the threads "
+                + "building the pyramid).");
+        writerThreadsOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(writerThreadsOption);
+
+        Option writerQueueSizeOption = new Option("wq", "writerQueueSize",
+                true, "Maximum number of tiles waiting to be written before "
+                + "the building threads are paused (default to twice the "
+                + "number of writer threads).");
+        writerQueueSizeOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(writerQueueSizeOption);
+
+        Option ioThreadsOption = new Option("io", "ioThreads", true,
+                "Read the input image and append the tiles to the output on "
+                + "this number of I/O threads, or on virtual threads with "
+                + "'virtual' (Java 21 or later). Useful for inputs or outputs "
+                + "on HDFS or S3, the parallelism then only sizing the "
+                + "threads computing the tiles.");
+        options.addOption(ioThreadsOption);
+
+        Option stripsOption = new Option("s", "strips", false,
+                "Read the input image only once, from top to bottom, in "
+                + "horizontal strips. Recommended for big images which can "
+                + "not be randomly accessed efficiently (such as png or "
+                + "non-tiled tif) and do not fit in memory. Jpg, gif and bmp "
+                + "images are decoded again from the top for each strip. The "
+                + "parallelism, input cache ratio and resumable option are "
+                + "ignored in this mode.");
+        options.addOption(stripsOption);
+
+        Option resumableOption = new Option("r", "resumable", false,
+                "Record the completed tiles in a journal stored with the "
+                + "output and skip them if the build is restarted. Only "
+                + "supported when the output is a folder.");
+        options.addOption(resumableOption);
+
+        Option updateRegionOption = new Option("u", "updateRegion", true,
+                "Update the existing pyramid in the output folder after the "
+                + "region x,y,width,height of the input image changed. Only "
+                + "the tiles affected by the region are rebuilt. The tile "
+                + "size, overlap and format must match the existing "
+                + "pyramid. Only supported when the output is a folder.");
+        options.addOption(updateRegionOption);
+
+        Option resamplerOption = new Option("rs", "resampler", true,
+                "Resampling filter used to compute each tile from the next "
+                + "level: bicubic, box, bilinear or lanczos (default bicubic). "
+                + "Box is the fastest, lanczos the sharpest.");
+        options.addOption(resamplerOption);
+
+        Option directDownsamplingOption = new Option("dd",
+                "directDownsampling", false, "Compute each tile by averaging "
+                + "blocks of 2x2 pixels of the next level instead of using "
+                + "bicubic resizing. Much faster but slightly blurrier.");
+        options.addOption(directDownsamplingOption);
+
+        Option uniformTilesOption = new Option("ut", "uniformTiles", false,
+                "Detect the tiles whose pixels all have the same value, such "
+                + "as backgrounds, and skip their downsampling and repeated "
+                + "encoding.");
+        options.addOption(uniformTilesOption);
+
+        Option sparseOption = new Option("sp", "sparse", false,
+                "Do not write the uniform tiles but list them in the "
+                + "name_sparse folder next to the dzi file. Only supported "
+                + "by readers aware of that folder such as "
+                + "DeepZoomImageReader.");
+        options.addOption(sparseOption);
+
+        Option metricsReportOption = new Option("mr", "metricsReport", true,
+                "Write a JSON report of the number of tiles per level, the "
+                + "durations of the reads, resizes, encodings and writes and "
+                + "the fork join pool statistics to this file.");
+        options.addOption(metricsReportOption);
+
+        Option jmxOption = new Option("jmx", "jmx", false,
+                "Publish the build metrics over JMX while building.");
+        options.addOption(jmxOption);
+
+        Option partitionCountOption = new Option("pc", "partitionCount",
+                true, "Split the pyramid in this number of partitions which "
+                + "can be built by different processes or machines writing "
+                + "in the same output folder. Use with --partition to build "
+                + "one partition or --merge to build the top levels once all "
+                + "the partitions are built.");
+        partitionCountOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(partitionCountOption);
+
+        Option partitionOption = new Option("pi", "partition", true,
+                "Index of the partition to build, starting at 0.");
+        partitionOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(partitionOption);
+
+        Option partitionLevelOption = new Option("pl", "partitionLevel", true,
+                "Level at which the pyramid is split (default to a level with "
+                + "about 4 subtrees per partition). Must be the same for all "
+                + "the partitions and the merge.");
+        partitionLevelOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(partitionLevelOption);
+
+        Option mergeOption = new Option("m", "merge", false,
+                "Build the levels above the partition level and the "
+                + "descriptor from the partitions in the output folder.");
+        options.addOption(mergeOption);
+
+        Option localProcessesOption = new Option("lp", "localProcesses", true,
+                "Build the pyramid with this number of worker processes on "
+                + "this machine, each one building a partition, then merge "
+                + "the partitions. The metrics report of each worker is "
+                + "written next to the one of the merge with a -partition-N "
+                + "suffix, only the merge being published over JMX.");
+        localProcessesOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+        options.addOption(localProcessesOption);
+
+        Option dryRunOption = new Option("dr", "dryRun", false,
+                "Print the tiles per level, the estimated bytes, peak memory "
+                + "and duration of the build and suggested settings, "
+                + "without building the pyramid.");
+        options.addOption(dryRunOption);
+
         Option helpOption = new Option("h", "help", false,
                 "Display this help message and exit.");
         options.addOption(helpOption);
@@ -86,8 +326,19 @@ public class Main {
                 return;
             }
 
-            File inputFile = new File(
-                    commandLine.getOptionValue(inputOption.getOpt()));
+            String inputValue = commandLine.getOptionValue(
+                    inputOption.getOpt());
+            String manifestValue = commandLine.getOptionValue(
+                    manifestOption.getOpt());
+            if ((inputValue == null) == (manifestValue == null)) {
+                throw new ParseException(
+                        "Either an input or a manifest is required.");
+            }
+            List<File> batchInputs = manifestValue != null
+                    ? readManifest(new File(manifestValue))
+                    : listBatchInputs(inputValue);
+            File inputFile = new File(batchInputs == null
+                    ? inputValue : "batch");
             String inputFileBaseName = FilenameUtils.getBaseName(
                     inputFile.getName());
 
@@ -105,7 +356,7 @@ public class Main {
 
             String tileFormat = commandLine.getOptionValue(
                     tileFormatOption.getOpt());
-            if (tileFormat == null) {
+            if (tileFormat == null && batchInputs == null) {
                 tileFormat = FilenameUtils.getExtension(inputFile.getName());
             }
 
@@ -122,26 +373,265 @@ public class Main {
                     ? 1
                     : inputCacheRatioNumber.floatValue();
 
-            ScalablePyramidBuilder spb = new ScalablePyramidBuilder(
-                    tileSize, tileOverlap, tileFormat, "dzi");
+            Number writerThreadsNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            writerThreadsOption.getOpt());
+            int writerThreads = writerThreadsNumber == null
+                    ? 0 : writerThreadsNumber.intValue();
+
+            Number writerQueueSizeNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            writerQueueSizeOption.getOpt());
+            int writerQueueSize = writerQueueSizeNumber == null
+                    ? 0 : writerQueueSizeNumber.intValue();
+
+            Number tileQualityNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            tileQualityOption.getOpt());
+            float tileQuality = tileQualityNumber == null
+                    ? -1 : tileQualityNumber.floatValue();
+            if (tileQualityNumber != null
+                    && (tileQuality < 0 || tileQuality > 1)) {
+                throw new ParseException(
+                        "The tile quality must be between 0 and 1.");
+            }
+            String tileCompressionType = commandLine.getOptionValue(
+                    tileCompressionTypeOption.getOpt());
+            boolean tileProgressive = commandLine.hasOption(
+                    tileProgressiveOption.getOpt());
+            String tileEncoderName = commandLine.getOptionValue(
+                    tileEncoderOption.getOpt(), "imageio");
+            TileLayout[] layouts = parseLayouts(
+                    commandLine.getOptionValue(layoutsOption.getOpt(), "dzi"),
+                    commandLine.getOptionValue(iiifBaseUriOption.getOpt()),
+                    tileSize, tileFormat, tileQuality);
 
+            String memoryBudgetValue = commandLine.getOptionValue(
+                    memoryBudgetOption.getOpt());
+            long memoryBudget = memoryBudgetValue == null
+                    ? 0 : parseBytes(memoryBudgetValue);
+
+            String metricsReport = commandLine.getOptionValue(
+                    metricsReportOption.getOpt());
+            boolean jmx = commandLine.hasOption(jmxOption.getOpt());
+            BuildMetrics metrics = null;
+            if (metricsReport != null || jmx) {
+                metrics = new BuildMetrics();
+            }
+
+            // Without tile format, the images of a batch keep their format
+            Set<String> tileFormats = new LinkedHashSet<>();
+            if (tileFormat != null) {
+                tileFormats.add(tileFormat);
+            } else {
+                for (File batchInput : batchInputs) {
+                    tileFormats.add(FilenameUtils.getExtension(
+                            batchInput.getName()));
+                }
+            }
+            Number readCoalescingNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            readCoalescingOption.getOpt());
+            int readCoalescing = readCoalescingNumber == null
+                    ? 0 : readCoalescingNumber.intValue();
+
+            String ioThreads = commandLine.getOptionValue(
+                    ioThreadsOption.getOpt());
+            ExecutorService ioExecutor = ioThreads == null
+                    ? null : createIoExecutor(ioThreads);
+
+            Map<String, ScalablePyramidBuilder> builders = new HashMap<>();
+            for (String format : tileFormats) {
+                ScalablePyramidBuilder builder = new ScalablePyramidBuilder(
+                        tileSize, tileOverlap, format, "dzi");
+                builder.setMemoryBudget(memoryBudget);
+                builder.setTileWriterThreads(writerThreads);
+                builder.setTileWriterQueueSize(writerQueueSize);
+                builder.setIoExecutor(ioExecutor);
+                builder.setResumable(
+                        commandLine.hasOption(resumableOption.getOpt()));
+                String resamplerValue = commandLine.getOptionValue(
+                        resamplerOption.getOpt());
+                if (resamplerValue != null) {
+                    builder.setResampler(parseResampler(resamplerValue));
+                }
+                builder.setDirectDownsampling(commandLine.hasOption(
+                        directDownsamplingOption.getOpt()));
+                builder.setTileEncoder(createTileEncoder(tileEncoderName,
+                        format, tileQuality, tileCompressionType,
+                        tileProgressive));
+                builder.setUniformTileDetection(
+                        commandLine.hasOption(uniformTilesOption.getOpt()));
+                builder.setSparseOutput(
+                        commandLine.hasOption(sparseOption.getOpt()));
+                builder.setReadCoalescing(readCoalescing);
+                builder.setLayouts(layouts);
+                builder.setBuildListener(metrics);
+                builders.put(format, builder);
+            }
+            ScalablePyramidBuilder spb = builders.get(tileFormat);
+
+            String updateRegionValue = commandLine.getOptionValue(
+                    updateRegionOption.getOpt());
+            Rectangle updateRegion = updateRegionValue == null
+                    ? null : parseRegion(updateRegionValue);
+
+            Number localProcessesNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            localProcessesOption.getOpt());
+            Number partitionCountNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            partitionCountOption.getOpt());
+            int partitionCount = localProcessesNumber != null
+                    ? localProcessesNumber.intValue()
+                    : partitionCountNumber == null
+                            ? 0 : partitionCountNumber.intValue();
+            Number partitionNumber = (Number) commandLine.getParsedOptionValue(
+                    partitionOption.getOpt());
+            Number partitionLevelNumber
+                    = (Number) commandLine.getParsedOptionValue(
+                            partitionLevelOption.getOpt());
+            boolean merge = commandLine.hasOption(mergeOption.getOpt());
+            if ((partitionNumber != null || merge
+                    || localProcessesNumber != null) && partitionCount < 1) {
+                throw new ParseException("A positive partition count is "
+                        + "required to build or merge partitions.");
+            }
+            if (batchInputs != null && (partitionCount > 0
+                    || updateRegion != null
+                    || commandLine.hasOption(stripsOption.getOpt()))) {
+                throw new ParseException("Partitions, updates and strips are "
+                        + "not supported in batch mode.");
+            }
+            boolean memoryMapped = commandLine.hasOption(
+                    memoryMappedOption.getOpt());
+            if (batchInputs != null && memoryMapped) {
+                throw new ParseException("Memory mapped inputs are not "
+                        + "supported in batch mode.");
+            }
+            boolean dryRun = commandLine.hasOption(dryRunOption.getOpt());
+            if (dryRun && (batchInputs != null || partitionCount > 0
+                    || updateRegion != null
+                    || commandLine.hasOption(stripsOption.getOpt()))) {
+                throw new ParseException("The dry run only supports the "
+                        + "build of a single image without partitions, "
+                        + "updates and strips.");
+            }
+
+            ObjectName metricsName = null;
             try {
+                if (dryRun) {
+                    PartialImageReader imageReader = createImageReader(
+                            inputFile, memoryMapped);
+                    try {
+                        System.out.print(spb.plan(imageReader, parallelism,
+                                cachePercentage));
+                    } finally {
+                        closeImageReader(imageReader);
+                    }
+                    return;
+                }
                 long start = System.currentTimeMillis();
+                if (jmx) {
+                    metricsName = metrics.register(inputFileBaseName);
+                }
 
+                PartialImageReader imageReader = batchInputs == null
+                        ? createImageReader(inputFile, memoryMapped) : null;
                 try (FilesArchiver archiver = FilesArchiverFactory
                         .createFromURI(outputFolder)) {
-                    spb.buildPyramid(
-                            new DirectImageReader(inputFile),
-                            inputFileBaseName,
-                            archiver,
-                            parallelism,
-                            cachePercentage);
+                    if (batchInputs != null) {
+                        buildBatch(batchInputs, builders, tileFormat,
+                                memoryBudget, cachePercentage, archiver,
+                                parallelism);
+                    } else if (localProcessesNumber != null
+                            || partitionNumber != null || merge) {
+                        int partitionLevel = partitionLevelNumber == null
+                                ? spb.getPartitionLevel(
+                                        imageReader, partitionCount)
+                                : partitionLevelNumber.intValue();
+                        if (localProcessesNumber != null) {
+                            runLocalPartitions(commandLine, partitionCount,
+                                    partitionLevel);
+                            merge = true;
+                        } else if (partitionNumber != null) {
+                            spb.buildPyramidPartition(
+                                    imageReader,
+                                    inputFileBaseName,
+                                    archiver,
+                                    partitionLevel,
+                                    partitionNumber.intValue(),
+                                    partitionCount,
+                                    parallelism,
+                                    cachePercentage);
+                        }
+                        if (merge) {
+                            spb.mergePyramidPartitions(
+                                    imageReader,
+                                    inputFileBaseName,
+                                    archiver,
+                                    partitionLevel,
+                                    parallelism);
+                        }
+                    } else if (updateRegion != null) {
+                        // The existing pyramid is read back from the folder
+                        if (!(archiver instanceof DirectoryArchiver)) {
+                            throw new IllegalArgumentException("Updates are "
+                                    + "only supported when the output is a "
+                                    + "folder.");
+                        }
+                        spb.updatePyramid(
+                                imageReader,
+                                new DeepZoomImageReader(new File(
+                                        ((DirectoryArchiver) archiver)
+                                                .getDirectory(),
+                                        inputFileBaseName + ".dzi")),
+                                updateRegion,
+                                archiver,
+                                parallelism);
+                    } else if (commandLine.hasOption(stripsOption.getOpt())) {
+                        spb.buildPyramidByStrips(
+                                imageReader,
+                                inputFileBaseName,
+                                archiver);
+                    } else {
+                        spb.buildPyramid(
+                                imageReader,
+                                inputFileBaseName,
+                                archiver,
+                                parallelism,
+                                cachePercentage);
+                    }
+                } finally {
+                    closeImageReader(imageReader);
                 }
                 float duration = (System.currentTimeMillis() - start) / 1000F;
-                System.out.println("Pyramid built in " + duration + "s.");
+                if (batchInputs == null) {
+                    System.out.println("Pyramid built in " + duration + "s.");
+                } else {
+                    System.out.println(batchInputs.size()
+                            + " pyramids built in " + duration + "s.");
+                }
+                if (metricsReport != null) {
+                    try (Writer writer = new OutputStreamWriter(
+                            new FileOutputStream(metricsReport), "UTF-8")) {
+                        metrics.writeJson(writer);
+                    }
+                }
             } catch (Exception ex) {
                 System.err.println("Error while building the pyramid.");
                 ex.printStackTrace();
+                if (partitionNumber != null) {
+                    // Let the process building the partitions know
+                    System.exit(1);
+                }
+            } finally {
+                if (metricsName != null) {
+                    BuildMetrics.unregister(metricsName);
+                }
+                if (ioExecutor != null) {
+                    ioExecutor.shutdown();
+                }
             }
         } catch (ParseException ex) {
             System.err.println(ex.getMessage());
@@ -150,6 +640,385 @@ public class Main {
 
     }
 
+    /**
+     * Build the pyramids of all the inputs of a batch on a shared pool.
+     */
+    private static void buildBatch(List<File> inputs,
+            Map<String, ScalablePyramidBuilder> builders, String tileFormat,
+            long memoryBudget, float cachePercentage, FilesArchiver archiver,
+            int parallelism) {
+        BatchPyramidBuilder batch = new BatchPyramidBuilder(parallelism);
+        batch.setMemoryBudget(memoryBudget);
+        batch.setMaxImageCachePercentage(cachePercentage);
+        for (File input : inputs) {
+            ScalablePyramidBuilder builder = builders.get(tileFormat != null
+                    ? tileFormat
+                    : FilenameUtils.getExtension(input.getName()));
+            batch.add(builder, input,
+                    FilenameUtils.getBaseName(input.getName()), archiver);
+        }
+        Map<String, Exception> failures = batch.build();
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("Cannot build " + failures.size()
+                    + " of the " + inputs.size() + " pyramids: "
+                    + failures.keySet());
+        }
+    }
+
+    /**
+     * List the images of a batch from a directory or a glob on the file names.
+     *
+     * @return the images or null if the input is a single image
+     */
+    private static List<File> listBatchInputs(String input)
+            throws ParseException {
+        File inputFile = new File(input);
+        File directory;
+        PathMatcher matcher;
+        if (input.matches(".*[*?\\[{].*")) {
+            directory = inputFile.getParentFile() == null
+                    ? new File(".") : inputFile.getParentFile();
+            matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + inputFile.getName());
+        } else if (inputFile.isDirectory()) {
+            directory = inputFile;
+            matcher = null;
+        } else {
+            return null;
+        }
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase());
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new ParseException("Cannot list the folder " + directory);
+        }
+        Arrays.sort(files);
+        List<File> inputs = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            if (matcher == null ? suffixes.contains(FilenameUtils.getExtension(
+                    file.getName()).toLowerCase())
+                    : matcher.matches(Paths.get(file.getName()))) {
+                inputs.add(file);
+            }
+        }
+        checkBatchInputs(inputs, input);
+        return inputs;
+    }
+
+    /**
+     * Read the images of a batch from a manifest listing one image per line.
+     * Empty lines and lines starting with # are ignored.
+     */
+    private static List<File> readManifest(File manifest)
+            throws ParseException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifest.toPath(),
+                    StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new ParseException("Cannot read the manifest " + manifest
+                    + ": " + ex.getMessage());
+        }
+        List<File> inputs = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            File file = new File(line);
+            if (!file.isAbsolute()) {
+                file = new File(manifest.getAbsoluteFile().getParentFile(),
+                        line);
+            }
+            inputs.add(file);
+        }
+        checkBatchInputs(inputs, manifest.getPath());
+        return inputs;
+    }
+
+    private static void checkBatchInputs(List<File> inputs, String source)
+            throws ParseException {
+        if (inputs.isEmpty()) {
+            throw new ParseException("No input image found in " + source);
+        }
+        // The pyramids are named after the inputs
+        Set<String> names = new HashSet<>();
+        for (File input : inputs) {
+            String name = FilenameUtils.getBaseName(input.getName());
+            if (!names.add(name)) {
+                throw new ParseException("Several inputs of the batch are "
+                        + "named " + name);
+            }
+        }
+    }
+
+    /**
+     * Build each partition in a separate JVM, running this command line
+     * without the local processes option and with the partition options.
+     */
+    private static void runLocalPartitions(CommandLine commandLine,
+            int partitionCount, int partitionLevel) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+                "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        String metricsReport = null;
+        for (Option option : commandLine.getOptions()) {
+            if (PARTITIONING_OPTIONS.contains(option.getOpt())
+                    || option.getOpt().equals("jmx")) {
+                continue;
+            }
+            if (option.getOpt().equals("mr")) {
+                // Each worker writes its own report
+                metricsReport = option.getValue();
+                continue;
+            }
+            command.add("-" + option.getOpt());
+            if (option.hasArg()) {
+                command.add(option.getValue());
+            }
+        }
+        command.add("-pc");
+        command.add(Integer.toString(partitionCount));
+        command.add("-pl");
+        command.add(Integer.toString(partitionLevel));
+
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < partitionCount; i++) {
+            List<String> partitionCommand = new ArrayList<>(command);
+            partitionCommand.add("-pi");
+            partitionCommand.add(Integer.toString(i));
+            if (metricsReport != null) {
+                String extension = FilenameUtils.getExtension(metricsReport);
+                partitionCommand.add("-mr");
+                partitionCommand.add(FilenameUtils.removeExtension(
+                        metricsReport) + "-partition-" + i
+                        + (extension.isEmpty() ? "" : "." + extension));
+            }
+            processes.add(new ProcessBuilder(partitionCommand)
+                    .inheritIO().start());
+        }
+        int failures = 0;
+        for (Process process : processes) {
+            if (process.waitFor() != 0) {
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " of the "
+                    + partitionCount + " partitions failed.");
+        }
+    }
+
+    private static Resampler parseResampler(String name)
+            throws ParseException {
+        switch (name.toLowerCase()) {
+            case "bicubic":
+                return new BicubicResampler();
+            case "box":
+                return new BoxResampler();
+            case "bilinear":
+                return new BilinearResampler();
+            case "lanczos":
+                return new LanczosResampler();
+            default:
+                throw new ParseException("Unknown resampler " + name);
+        }
+    }
+
+    private static TileLayout[] parseLayouts(String names, String iiifBaseUri,
+            int tileSize, String tileFormat, float tileQuality)
+            throws ParseException {
+        String[] values = names.split(",");
+        TileLayout[] layouts = new TileLayout[values.length];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < values.length; i++) {
+            String name = values[i].trim().toLowerCase();
+            if (!seen.add(name)) {
+                throw new ParseException("Duplicate layout " + name);
+            }
+            switch (name) {
+                case "dzi":
+                    layouts[i] = new DeepZoomLayout();
+                    break;
+                case "zoomify":
+                    layouts[i] = new ZoomifyLayout();
+                    break;
+                case "iiif":
+                    layouts[i] = new IiifLayout(iiifBaseUri);
+                    break;
+                case "bigtiff":
+                    if (tileSize % 16 != 0) {
+                        throw new ParseException("The bigtiff layout requires "
+                                + "a tile size multiple of 16.");
+                    }
+                    boolean jpeg = "jpg".equalsIgnoreCase(tileFormat)
+                            || "jpeg".equalsIgnoreCase(tileFormat);
+                    BigTiffLayout bigTiffLayout = new BigTiffLayout(jpeg
+                            ? BigTiffLayout.Compression.JPEG
+                            : BigTiffLayout.Compression.DEFLATE);
+                    bigTiffLayout.setJpegQuality(tileQuality);
+                    layouts[i] = bigTiffLayout;
+                    break;
+                case "zarr":
+                    layouts[i] = new OmeZarrLayout();
+                    break;
+                default:
+                    throw new ParseException("Unknown layout " + name);
+            }
+        }
+        return layouts;
+    }
+
+    /**
+     * Create the reader of the input image, memory mapping its file or
+     * decoding it with ImageIO, tile by tile for the tiled images.
+     */
+    private static PartialImageReader createImageReader(File inputFile,
+            boolean memoryMapped) throws IOException {
+        if (memoryMapped) {
+            return new MappedImageReader(inputFile);
+        }
+        DirectImageReader imageReader = new DirectImageReader(inputFile);
+        if (!imageReader.isTiled()) {
+            return imageReader;
+        }
+        imageReader.close();
+        return new TiledImageReader(inputFile);
+    }
+
+    /**
+     * Close the reader of the input image, releasing its decoders or the
+     * mappings of its file.
+     */
+    private static void closeImageReader(PartialImageReader imageReader)
+            throws IOException {
+        if (imageReader instanceof Closeable) {
+            ((Closeable) imageReader).close();
+        }
+    }
+
+    /**
+     * Create the executor of the I/O, a fixed pool of daemon threads or a
+     * virtual thread per task executor.
+     */
+    private static ExecutorService createIoExecutor(String ioThreads)
+            throws ParseException {
+        if (ioThreads.equalsIgnoreCase("virtual")) {
+            // Looked up by reflection to keep running on older Java versions
+            try {
+                return (ExecutorService) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                throw new ParseException(
+                        "Virtual threads require Java 21 or later.");
+            }
+        }
+        int threads;
+        try {
+            threads = Integer.parseInt(ioThreads);
+        } catch (NumberFormatException ex) {
+            threads = 0;
+        }
+        if (threads < 1) {
+            throw new ParseException("The number of I/O threads must be a "
+                    + "positive number or 'virtual'.");
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "pyramidio-io-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static TileEncoder createTileEncoder(String name, String format,
+            float quality, String compressionType, boolean progressive)
+            throws ParseException {
+        switch (name.toLowerCase()) {
+            case "imageio":
+                ImageIOTileEncoder imageIOEncoder
+                        = new ImageIOTileEncoder(format);
+                imageIOEncoder.setCompressionQuality(quality);
+                imageIOEncoder.setCompressionType(compressionType);
+                imageIOEncoder.setProgressive(progressive);
+                return imageIOEncoder;
+            case "png":
+                if (!format.equalsIgnoreCase("png")) {
+                    throw new ParseException("The png encoder cannot encode "
+                            + format + " tiles.");
+                }
+                if (compressionType != null || progressive) {
+                    throw new ParseException("The png encoder does not "
+                            + "support compression types and progressive "
+                            + "mode.");
+                }
+                PngTileEncoder pngEncoder = new PngTileEncoder();
+                if (quality >= 0) {
+                    // Same mapping as the ImageIO writer
+                    pngEncoder.setCompressionLevel(
+                            Math.round(9 * (1 - quality)));
+                }
+                return pngEncoder;
+            default:
+                throw new ParseException("Unknown tile encoder " + name);
+        }
+    }
+
+    private static long parseBytes(String value) throws ParseException {
+        String number = value.trim().toLowerCase();
+        long multiplier = 1;
+        if (number.endsWith("k")) {
+            multiplier = 1L << 10;
+        } else if (number.endsWith("m")) {
+            multiplier = 1L << 20;
+        } else if (number.endsWith("g")) {
+            multiplier = 1L << 30;
+        }
+        if (multiplier > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            long bytes = Long.parseLong(number) * multiplier;
+            if (bytes < 0) {
+                throw new NumberFormatException();
+            }
+            return bytes;
+        } catch (NumberFormatException ex) {
+            throw new ParseException("Invalid number of bytes " + value);
+        }
+    }
+
+    private static Rectangle parseRegion(String region)
+            throws ParseException {
+        String[] values = region.split(",");
+        if (values.length != 4) {
+            throw new ParseException("Invalid region " + region
+                    + ", expected x,y,width,height");
+        }
+        try {
+            return new Rectangle(
+                    Integer.parseInt(values[0].trim()),
+                    Integer.parseInt(values[1].trim()),
+                    Integer.parseInt(values[2].trim()),
+                    Integer.parseInt(values[3].trim()));
+        } catch (NumberFormatException ex) {
+            throw new ParseException("Invalid region " + region
+                    + ", expected x,y,width,height");
+        }
+    }
+
     private static void printHelp(Options options) {
         new HelpFormatter().printHelp("pyramidio", options);
     }
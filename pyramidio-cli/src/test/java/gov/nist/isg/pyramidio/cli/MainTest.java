@@ -11,11 +11,31 @@
  */
 package gov.nist.isg.pyramidio.cli;
 
+import gov.nist.isg.pyramidio.DeepZoomImageReader;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -43,6 +63,994 @@ public class MainTest {
                 "Pyramid files should be generated correctly");
     }
 
+    @Test
+    public void testMainWithTileWriterThreads() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-wt",
+            "2",
+            "-wq",
+            "1"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithIoThreads() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-icr",
+            "0",
+            "-p",
+            "2",
+            "-io",
+            "4"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithMemoryMapped() throws IOException {
+        // Raw copy of the decoded test image, one band after the other
+        BufferedImage image = ImageIO.read(new File(testDataFolder,
+                "grand-canyon-landscape-overlooking.jpg"));
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] samples = new byte[width * height * 3];
+        for (int band = 0; band < 3; band++) {
+            int[] bandSamples = image.getRaster().getSamples(
+                    0, 0, width, height, band, (int[]) null);
+            for (int i = 0; i < bandSamples.length; i++) {
+                samples[band * width * height + i] = (byte) bandSamples[i];
+            }
+        }
+        Path inputDir = Files.createTempDirectory("pyramidio-test");
+        Path rawFile = inputDir.resolve(
+                "grand-canyon-landscape-overlooking.raw");
+        Files.write(rawFile, samples);
+        Files.write(inputDir.resolve("grand-canyon-landscape-overlooking.hdr"),
+                ("ENVI\nsamples = " + width + "\nlines = " + height
+                + "\nbands = 3\ndata type = 1\ninterleave = bsq\n")
+                .getBytes(StandardCharsets.US_ASCII));
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            rawFile.toString(),
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "jpg",
+            "-mm"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithTiledTiff() throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "tiff");
+        Assume.assumeTrue(writers.hasNext());
+        Path inputDir = Files.createTempDirectory("pyramidio-test");
+        File tiffFile = new File(inputDir.toFile(),
+                "grand-canyon-landscape-overlooking.tif");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream output
+                = ImageIO.createImageOutputStream(tiffFile)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(256, 256, 0, 0);
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("Deflate");
+            writer.write(null, new IIOImage(ImageIO.read(new File(
+                    testDataFolder, "grand-canyon-landscape-overlooking.jpg")),
+                    null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            tiffFile.toString(),
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "jpg",
+            "-icr",
+            "0",
+            "-p",
+            "2"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithStrips() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "png",
+            "-s"
+        });
+
+        // The lower levels are resized strip by strip instead of tile by
+        // tile, so only the tiles of the maximum level must have the same
+        // pixels
+        File expected = new File(expectedDir.toFile(), pyramidFilesFolder);
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        Assert.assertEquals("All the levels should be generated",
+                expected.listFiles().length, actual.listFiles().length);
+        for (File level : expected.listFiles()) {
+            File actualLevel = new File(actual, level.getName());
+            if (level.getName().equals("13")) {
+                assertTilesEquals(level, actualLevel);
+                continue;
+            }
+            for (File tile : level.listFiles()) {
+                File actualTile = new File(actualLevel, tile.getName());
+                BufferedImage expectedImage = ImageIO.read(tile);
+                BufferedImage actualImage = ImageIO.read(actualTile);
+                Assert.assertNotNull("File " + actualTile + " is missing",
+                        actualImage);
+                Assert.assertEquals("File " + actualTile + " has a wrong size",
+                        expectedImage.getWidth() + "x"
+                        + expectedImage.getHeight(),
+                        actualImage.getWidth() + "x"
+                        + actualImage.getHeight());
+            }
+        }
+    }
+
+    @Test
+    public void testMainWithStripsResampler() throws IOException {
+        Path averagedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            averagedDir.toString(),
+            "-tf",
+            "png",
+            "-s",
+            "-dd"
+        });
+        File averaged = new File(averagedDir.toFile(), pyramidFilesFolder);
+
+        // The level 13 having even dimensions, the box filter averages the
+        // same blocks of 2x2 pixels
+        Path boxDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            boxDir.toString(),
+            "-tf",
+            "png",
+            "-s",
+            "-rs",
+            "box"
+        });
+        File box = new File(boxDir.toFile(), pyramidFilesFolder);
+        assertTilesEquals(new File(averaged, "12"), new File(box, "12"));
+
+        Path lanczosDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            lanczosDir.toString(),
+            "-tf",
+            "png",
+            "-s",
+            "-rs",
+            "lanczos"
+        });
+        File lanczos = new File(lanczosDir.toFile(), pyramidFilesFolder);
+        BufferedImage averagedTile = ImageIO.read(
+                new File(averaged, "12/0_0.png"));
+        BufferedImage lanczosTile = ImageIO.read(
+                new File(lanczos, "12/0_0.png"));
+        Assert.assertFalse("The resampler should be used by strip builds",
+                Arrays.equals(((DataBufferByte) averagedTile.getRaster()
+                        .getDataBuffer()).getData(),
+                        ((DataBufferByte) lanczosTile.getRaster()
+                        .getDataBuffer()).getData()));
+    }
+
+    @Test
+    public void testMainWithDirectDownsampling() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        // With and without the input cache and the collapsed levels
+        Path cachedDir = Files.createTempDirectory("pyramidio-test");
+        Path uncachedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            cachedDir.toString(),
+            "-tf",
+            "png",
+            "-dd"
+        });
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            uncachedDir.toString(),
+            "-tf",
+            "png",
+            "-dd",
+            "-icr",
+            "0",
+            "-p",
+            "2"
+        });
+
+        File expected = new File(expectedDir.toFile(), pyramidFilesFolder);
+        File cached = new File(cachedDir.toFile(), pyramidFilesFolder);
+        File uncached = new File(uncachedDir.toFile(), pyramidFilesFolder);
+        assertTilesEquals(new File(expected, "13"), new File(cached, "13"));
+        for (File level : cached.listFiles()) {
+            assertTilesEquals(level, new File(uncached, level.getName()));
+        }
+        Assert.assertEquals("All the tiles should be generated",
+                countFiles(expected, ".png"), countFiles(cached, ".png"));
+    }
+
+    @Test
+    public void testMainWithReadCoalescing() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-icr",
+            "0",
+            "-rc",
+            "4"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithTileQuality() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tq",
+            "0.5"
+        });
+
+        File expected = new File(testDataFolder, pyramidFilesFolder);
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        File[] levels = expected.listFiles();
+        Assert.assertEquals("All the levels should be generated",
+                levels.length, actual.listFiles().length);
+        long expectedSize = 0;
+        long actualSize = 0;
+        for (File level : levels) {
+            for (File tile : level.listFiles()) {
+                File actualTile = new File(
+                        new File(actual, level.getName()), tile.getName());
+                Assert.assertTrue("File " + actualTile + " is missing",
+                        actualTile.exists());
+                expectedSize += tile.length();
+                actualSize += actualTile.length();
+            }
+        }
+        Assert.assertTrue("A lower quality should produce smaller tiles",
+                actualSize < expectedSize);
+    }
+
+    @Test
+    public void testMainWithPngEncoder() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "png",
+            "-te",
+            "png"
+        });
+
+        // The compressed files differ but must decode to the same pixels
+        File expected = new File(expectedDir.toFile(), pyramidFilesFolder);
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        for (File level : expected.listFiles()) {
+            assertTilesEquals(level, new File(actual, level.getName()));
+        }
+    }
+
+    @Test
+    public void testMainWithLayouts() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-l",
+            "dzi,zoomify,iiif"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+        File zoomify = new File(tmpDir.toFile(),
+                "grand-canyon-landscape-overlooking_zoomify");
+        Assert.assertTrue("Zoomify descriptor should be generated",
+                new File(zoomify, "ImageProperties.xml").isFile());
+        // The tiers start at the first level fitting in a tile
+        Assert.assertEquals("Zoomify tiles should be generated",
+                409, countFiles(zoomify, ".jpg"));
+        File iiif = new File(tmpDir.toFile(),
+                "grand-canyon-landscape-overlooking_iiif");
+        Assert.assertTrue("IIIF descriptor should be generated",
+                new File(iiif, "info.json").isFile());
+        Assert.assertTrue("IIIF tiles should be named after their region",
+                new File(iiif, "4826,3556,174,194/174,194/0/default.jpg")
+                .isFile());
+        Assert.assertEquals("IIIF tiles should be generated",
+                countFiles(new File(testDataFolder, pyramidFilesFolder),
+                        ".jpg"), countFiles(iiif, ".jpg"));
+    }
+
+    @Test
+    public void testMainWithBigTiff() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-ts",
+            "256",
+            "-tf",
+            "png",
+            "-l",
+            "dzi,bigtiff"
+        });
+
+        File tif = new File(tmpDir.toFile(),
+                "grand-canyon-landscape-overlooking.tif");
+        byte[] bytes = Files.readAllBytes(tif.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals("The file should be a little endian BigTIFF",
+                43, buffer.getShort(2));
+        // Count the images of the IFD chain, one per level down to the
+        // first level fitting in a tile
+        int nbImages = 0;
+        long ifd = buffer.getLong(8);
+        while (ifd != 0) {
+            long nbEntries = buffer.getLong((int) ifd);
+            ifd = buffer.getLong((int) (ifd + 8 + nbEntries * 20));
+            nbImages++;
+        }
+        Assert.assertEquals("All the tiled levels should be written",
+                6, nbImages);
+
+        // Find the first tile of the full resolution image
+        long firstIfd = buffer.getLong(8);
+        long nbEntries = buffer.getLong((int) firstIfd);
+        long tileOffset = -1;
+        long tileByteCount = -1;
+        for (int i = 0; i < nbEntries; i++) {
+            int entry = (int) (firstIfd + 8 + i * 20);
+            int tag = buffer.getShort(entry) & 0xffff;
+            long count = buffer.getLong(entry + 4);
+            long value = buffer.getLong(entry + 12);
+            // The arrays of more than one value are stored at an offset
+            long first = count == 1 ? value : buffer.getLong((int) value);
+            if (tag == 324) {
+                tileOffset = first;
+            } else if (tag == 325) {
+                tileByteCount = first;
+            }
+        }
+        Assert.assertTrue("The tile offsets and byte counts should be "
+                + "written", tileOffset > 0 && tileByteCount > 0);
+
+        // Inflate it and undo the horizontal differencing predictor
+        byte[] samples = new byte[256 * 256 * 3];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, (int) tileOffset, (int) tileByteCount);
+            Assert.assertEquals("The tile should hold 256x256 RGB pixels",
+                    samples.length, inflater.inflate(samples));
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+        for (int y = 0; y < 256; y++) {
+            for (int i = 3; i < 256 * 3; i++) {
+                samples[y * 256 * 3 + i] += samples[y * 256 * 3 + i - 3];
+            }
+        }
+
+        // Compare it with the DeepZoom tile without its overlap
+        BufferedImage dziTile = ImageIO.read(new File(new File(tmpDir.toFile(),
+                pyramidFilesFolder), "13/0_0.png"));
+        int[] expected = dziTile.getRaster().getPixels(
+                0, 0, 256, 256, (int[]) null);
+        int[] actual = new int[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            actual[i] = samples[i] & 0xff;
+        }
+        Assert.assertArrayEquals("The BigTIFF tile should have the pixels "
+                + "of the DeepZoom tile", expected, actual);
+    }
+
+    @Test
+    public void testMainWithOmeZarr() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-l",
+            "dzi,zarr"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+        File zarr = new File(tmpDir.toFile(),
+                "grand-canyon-landscape-overlooking.zarr");
+        Assert.assertTrue("The multiscales metadata should be generated",
+                new File(zarr, ".zattrs").isFile());
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue("The array " + i + " should be generated",
+                    new File(zarr, i + "/.zarray").isFile());
+        }
+        // One chunk per tile of the full resolution level
+        Assert.assertEquals("The chunks should be generated",
+                300, countFiles(new File(zarr, "0/0"), ""));
+    }
+
+    @Test
+    public void testMainWithDryRun() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        File output = new File(tmpDir.toFile(), "output");
+        ByteArrayOutputStream plan = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(plan, true, "UTF-8"));
+        try {
+            Main.main(new String[]{
+                "-i",
+                testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+                "-o",
+                output.getPath(),
+                "-dr"
+            });
+        } finally {
+            System.setOut(out);
+        }
+
+        Assert.assertFalse("No pyramid should be built", output.exists());
+        String report = plan.toString("UTF-8");
+        Assert.assertTrue("The plan should count the tiles",
+                report.contains("Tiles: 417 "));
+        Assert.assertTrue("The plan should estimate the peak memory",
+                report.contains("Peak memory: "));
+        Assert.assertFalse("Jpeg images are not decoded in a single pass "
+                + "by strip builds", report.contains("Build by strips"));
+    }
+
+    @Test
+    public void testMainWithMemoryBudget() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-mb",
+            "20m"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithUniformTiles() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-ut"
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+    }
+
+    @Test
+    public void testMainWithUniformArea() throws IOException {
+        File input = createUniformAreaImage();
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            input.getPath(),
+            "-o",
+            expectedDir.toString()
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            input.getPath(),
+            "-o",
+            tmpDir.toString(),
+            "-ut"
+        });
+
+        File expected = new File(expectedDir.toFile(), "uniform_files");
+        File actual = new File(tmpDir.toFile(), "uniform_files");
+        Assert.assertEquals("All the levels should be generated",
+                expected.listFiles().length, actual.listFiles().length);
+        for (File level : expected.listFiles()) {
+            assertTilesEquals(level, new File(actual, level.getName()));
+        }
+    }
+
+    @Test
+    public void testMainWithSparse() throws IOException {
+        File input = createUniformAreaImage();
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            input.getPath(),
+            "-o",
+            expectedDir.toString()
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            input.getPath(),
+            "-o",
+            tmpDir.toString(),
+            "-sp"
+        });
+
+        Assert.assertTrue("The uniform tiles should be listed",
+                new File(tmpDir.toFile(), "uniform_sparse/sparse.txt")
+                .isFile());
+        Assert.assertTrue("The uniform tiles should not be written",
+                countFiles(new File(tmpDir.toFile(), "uniform_files"), ".png")
+                < countFiles(new File(expectedDir.toFile(), "uniform_files"),
+                        ".png"));
+        BufferedImage expectedImage = new DeepZoomImageReader(new File(
+                expectedDir.toFile(), "uniform.dzi")).getWholeImage(1);
+        BufferedImage actualImage = new DeepZoomImageReader(new File(
+                tmpDir.toFile(), "uniform.dzi")).getWholeImage(1);
+        int width = expectedImage.getWidth();
+        int height = expectedImage.getHeight();
+        Assert.assertEquals("The sparse pyramid should have the same size",
+                width + "x" + height,
+                actualImage.getWidth() + "x" + actualImage.getHeight());
+        Assert.assertArrayEquals("The sparse pyramid should read back the "
+                + "same pixels",
+                expectedImage.getRaster().getPixels(
+                        0, 0, width, height, (int[]) null),
+                actualImage.getRaster().getPixels(
+                        0, 0, width, height, (int[]) null));
+    }
+
+    @Test
+    public void testMainWithMetricsReport() throws IOException {
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        File report = new File(tmpDir.toFile(), "metrics.json");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-mr",
+            report.getPath()
+        });
+
+        assertDirectoryEquals(
+                new File(testDataFolder, pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Pyramid files should be generated correctly");
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        Assert.assertTrue("The report should count the tiles of each level",
+                json.contains(
+                        "{\"level\": 13, \"computed\": 300, \"written\": 300"));
+    }
+
+    @Test
+    public void testMainWithBatch() throws IOException {
+        Path inputDir = Files.createTempDirectory("pyramidio-test");
+        for (String name : new String[]{"first.jpg", "second.jpg"}) {
+            Files.copy(new File(testDataFolder,
+                    "grand-canyon-landscape-overlooking.jpg").toPath(),
+                    inputDir.resolve(name));
+        }
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            inputDir.toString(),
+            "-o",
+            tmpDir.toString(),
+            "-p",
+            "4"
+        });
+
+        for (String name : new String[]{"first_files", "second_files"}) {
+            assertDirectoryEquals(
+                    new File(testDataFolder, pyramidFilesFolder),
+                    new File(tmpDir.toFile(), name),
+                    "Pyramid files should be generated correctly");
+        }
+    }
+
+    @Test
+    public void testMainWithPartitions() throws IOException {
+        // Use a lossless format so that the tiles read back by the merge are
+        // the same as the ones computed by a full build
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        String[][] steps = {{"-pi", "0"}, {"-pi", "1"}, {"-m"}};
+        for (String[] step : steps) {
+            String[] args = {
+                "-i",
+                testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+                "-o",
+                tmpDir.toString(),
+                "-tf",
+                "png",
+                "-pc",
+                "2"
+            };
+            String[] stepArgs = Arrays.copyOf(args, args.length + step.length);
+            System.arraycopy(step, 0, stepArgs, args.length, step.length);
+            Main.main(stepArgs);
+        }
+
+        assertDirectoryEquals(
+                new File(expectedDir.toFile(), pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Partitioned pyramid should match the full pyramid");
+    }
+
+    @Test
+    public void testMainWithPartitionsBelowCollapse() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        // Level 5 fits in a single tile, the levels above it being
+        // collapsed in a full build
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        String[] args = {
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "png",
+            "-pc",
+            "2",
+            "-pl",
+            "5"
+        };
+        String[][] steps = {{"-pi", "0"}, {"-pi", "1"}, {"-m"}};
+        for (String[] step : steps) {
+            String[] stepArgs = Arrays.copyOf(args, args.length + step.length);
+            System.arraycopy(step, 0, stepArgs, args.length, step.length);
+            Main.main(stepArgs);
+        }
+
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        assertDirectoryEquals(
+                new File(expectedDir.toFile(), pyramidFilesFolder), actual,
+                "Partitioned pyramid should match the full pyramid");
+
+        // The merge must be computed from the root of the partition
+        File root = new File(actual, "5/0_0.png");
+        BufferedImage rootImage = ImageIO.read(root);
+        ImageIO.write(new BufferedImage(rootImage.getWidth(),
+                rootImage.getHeight(), rootImage.getType()), "png", root);
+        String[] mergeArgs = Arrays.copyOf(args, args.length + 1);
+        mergeArgs[args.length] = "-m";
+        Main.main(mergeArgs);
+        BufferedImage merged = ImageIO.read(new File(actual, "0/0_0.png"));
+        Assert.assertArrayEquals("The merge should read back the partitions",
+                new byte[merged.getRaster().getNumBands()],
+                (byte[]) merged.getRaster().getDataElements(0, 0, null));
+    }
+
+    @Test
+    public void testMainWithResumablePartitions() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        String[][] steps = {{"-pi", "0"}, {"-pi", "1"}, {"-m"}};
+        for (String[] step : steps) {
+            String[] args = {
+                "-i",
+                testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+                "-o",
+                tmpDir.toString(),
+                "-tf",
+                "png",
+                "-pc",
+                "2",
+                "-r"
+            };
+            String[] stepArgs = Arrays.copyOf(args, args.length + step.length);
+            System.arraycopy(step, 0, stepArgs, args.length, step.length);
+            Main.main(stepArgs);
+        }
+
+        assertDirectoryEquals(
+                new File(expectedDir.toFile(), pyramidFilesFolder),
+                new File(tmpDir.toFile(), pyramidFilesFolder),
+                "Partitioned pyramid should match the full pyramid");
+        File journal = new File(tmpDir.toFile(),
+                "grand-canyon-landscape-overlooking_journal");
+        for (String name : new String[]{"partition-0", "partition-1"}) {
+            Assert.assertTrue("Each partition should have its own journal",
+                    new File(journal, name + "/segment-000000.txt").isFile());
+        }
+        Assert.assertFalse("The partitions should not share a journal",
+                new File(journal, "segment-000000.txt").exists());
+    }
+
+    @Test
+    public void testMainWithUpdate() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        for (Path dir : new Path[]{expectedDir, tmpDir}) {
+            Main.main(new String[]{
+                "-i",
+                testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+                "-o",
+                dir.toString(),
+                "-tf",
+                "png"
+            });
+        }
+
+        // Damage the tiles covering the top left corner at every level
+        File expected = new File(expectedDir.toFile(), pyramidFilesFolder);
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        for (File level : actual.listFiles()) {
+            File tile = new File(level, "0_0.png");
+            BufferedImage image = ImageIO.read(tile);
+            ImageIO.write(new BufferedImage(image.getWidth(),
+                    image.getHeight(), image.getType()), "png", tile);
+        }
+
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "png",
+            "-u",
+            "0,0,10,10"
+        });
+
+        for (File level : expected.listFiles()) {
+            assertTilesEquals(level, new File(actual, level.getName()));
+        }
+    }
+
+    @Test
+    public void testMainWithResume() throws IOException {
+        Path expectedDir = Files.createTempDirectory("pyramidio-test");
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            expectedDir.toString(),
+            "-tf",
+            "png"
+        });
+
+        // Interrupted build having written the subtree of the tile 0_0 of
+        // level 12 and crashed while writing the entry of the tile 3_1
+        File expected = new File(expectedDir.toFile(), pyramidFilesFolder);
+        Path tmpDir = Files.createTempDirectory("pyramidio-test");
+        File actual = new File(tmpDir.toFile(), pyramidFilesFolder);
+        String[][] subtree = {{"12", "0_0"}, {"13", "0_0"}, {"13", "0_1"},
+            {"13", "1_0"}, {"13", "1_1"}};
+        for (String[] tile : subtree) {
+            File level = new File(actual, tile[0]);
+            level.mkdirs();
+            Files.copy(new File(new File(expected, tile[0]),
+                    tile[1] + ".png").toPath(),
+                    new File(level, tile[1] + ".png").toPath());
+        }
+        Path journal = tmpDir.resolve(
+                "grand-canyon-landscape-overlooking_journal");
+        Files.createDirectories(journal);
+        Files.write(journal.resolve("segment-000000.txt"),
+                "12 0 0\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(journal.resolve("segment-000001.txt"),
+                "12 3 1".getBytes(StandardCharsets.UTF_8));
+
+        Main.main(new String[]{
+            "-i",
+            testDataFolder + "grand-canyon-landscape-overlooking.jpg",
+            "-o",
+            tmpDir.toString(),
+            "-tf",
+            "png",
+            "-r"
+        });
+
+        assertDirectoryEquals(expected, actual,
+                "Resumed pyramid should match the full pyramid");
+    }
+
+    /**
+     * Create a png image with a flat background on its left and bottom sides
+     * and a part of the test image in its top right corner.
+     */
+    private File createUniformAreaImage() throws IOException {
+        BufferedImage source = ImageIO.read(new File(testDataFolder,
+                "grand-canyon-landscape-overlooking.jpg"));
+        BufferedImage image = new BufferedImage(1500, 1100,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(new Color(30, 60, 90));
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.drawImage(source.getSubimage(2000, 1000, 700, 500),
+                    800, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        Path inputDir = Files.createTempDirectory("pyramidio-test");
+        File input = new File(inputDir.toFile(), "uniform.png");
+        ImageIO.write(image, "png", input);
+        return input;
+    }
+
+    private int countFiles(File directory, String extension) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                count += countFiles(file, extension);
+            } else if (file.getName().endsWith(extension)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Assert that the tiles of a level decode to the same pixels.
+     */
+    private void assertTilesEquals(File expected, File actual)
+            throws IOException {
+        Assert.assertEquals("Level " + actual + " has a wrong number of tiles",
+                expected.listFiles().length, actual.listFiles().length);
+        for (File tile : expected.listFiles()) {
+            File actualTile = new File(actual, tile.getName());
+            BufferedImage expectedImage = ImageIO.read(tile);
+            BufferedImage actualImage = ImageIO.read(actualTile);
+            Assert.assertNotNull("File " + actualTile + " is missing",
+                    actualImage);
+            Assert.assertArrayEquals("File " + actualTile
+                    + " differs from " + tile,
+                    ((DataBufferByte) expectedImage.getRaster()
+                    .getDataBuffer()).getData(),
+                    ((DataBufferByte) actualImage.getRaster()
+                    .getDataBuffer()).getData());
+        }
+    }
+
     private void assertDirectoryEquals(File expected, File actual,
             String message) {
         String diff = assertDirectoryEquals(expected, actual);
@@ -0,0 +1,202 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builder of the pyramids of many images sharing one pool of threads and one
+ * memory budget.
+ *
+ * Up to parallelism images are built at the same time, each by a runner
+ * taking the next image of the batch once its previous image is done. The
+ * threads which are not busy with a runner help computing the subtrees of
+ * the images being built, so that small images keep all the cores busy while
+ * the memory budget limits the forks of the large images.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BatchPyramidBuilder {
+
+    private static final Logger logger = Logger.getLogger(
+            BatchPyramidBuilder.class.getName());
+
+    private final int parallelism;
+    private long memoryBudget;
+    private float maxImageCachePercentage;
+    private final List<Job> jobs = new ArrayList<>();
+
+    /**
+     * Create a batch builder.
+     *
+     * @param parallelism the number of threads shared by the builds
+     */
+    public BatchPyramidBuilder(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The parallelism must be positive.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the memory budget shared by all the builds of the batch. It
+     * replaces the memory budgets of the ScalablePyramidBuilders of the jobs.
+     *
+     * @param memoryBudget the budget in bytes or 0 to use the memory budgets
+     * of the ScalablePyramidBuilders of the jobs. Default to 0.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "The memory budget cannot be negative.");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the maximum portion of each input image which should be cached in
+     * RAM. Ignored if a memory budget is set.
+     *
+     * @param maxImageCachePercentage 0 for no cache, 1 to cache the entire
+     * image. Default to 0.
+     */
+    public void setMaxImageCachePercentage(float maxImageCachePercentage) {
+        this.maxImageCachePercentage = maxImageCachePercentage;
+    }
+
+    /**
+     * Add an image to the batch.
+     *
+     * @param builder the builder holding the options of the pyramid
+     * @param imageReader the image reader
+     * @param fileName the filename of the image
+     * @param archiver the archiver to use to store the image
+     */
+    public void add(ScalablePyramidBuilder builder,
+            PartialImageReader imageReader, String fileName,
+            FilesArchiver archiver) {
+        jobs.add(new Job(builder, imageReader, null, fileName, archiver));
+    }
+
+    /**
+     * Add an image file to the batch. The file is opened with a
+     * DirectImageReader when its build starts.
+     *
+     * @param builder the builder holding the options of the pyramid
+     * @param imageFile the image file
+     * @param fileName the filename of the image
+     * @param archiver the archiver to use to store the image
+     */
+    public void add(ScalablePyramidBuilder builder, File imageFile,
+            String fileName, FilesArchiver archiver) {
+        jobs.add(new Job(builder, null, imageFile, fileName, archiver));
+    }
+
+    /**
+     * Get the number of images in the batch.
+     *
+     * @return the number of images
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Build the pyramids of all the images of the batch. A failing image does
+     * not stop the batch.
+     *
+     * @return the exceptions of the images which failed, by filename. Empty
+     * if all the images have been built.
+     */
+    public Map<String, Exception> build() {
+        final Map<String, Exception> failures = Collections.synchronizedMap(
+                new LinkedHashMap<String, Exception>());
+        final MemoryGovernor governor = memoryBudget > 0
+                ? new MemoryGovernor(memoryBudget) : null;
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final AtomicInteger nextJob = new AtomicInteger();
+        final int nbRunners = Math.min(parallelism, jobs.size());
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> runners = new ArrayList<>();
+                    for (int i = 0; i < nbRunners; i++) {
+                        runners.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                int index;
+                                while ((index = nextJob.getAndIncrement())
+                                        < jobs.size()) {
+                                    Job job = jobs.get(index);
+                                    try {
+                                        job.build(pool, governor,
+                                                maxImageCachePercentage);
+                                    } catch (Exception ex) {
+                                        logger.log(Level.SEVERE,
+                                                "Cannot build pyramid "
+                                                + job.fileName, ex);
+                                        failures.put(job.fileName, ex);
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    invokeAll(runners);
+                }
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    private static class Job {
+
+        private final ScalablePyramidBuilder builder;
+        private final PartialImageReader imageReader;
+        private final File imageFile;
+        private final String fileName;
+        private final FilesArchiver archiver;
+
+        private Job(ScalablePyramidBuilder builder,
+                PartialImageReader imageReader, File imageFile,
+                String fileName, FilesArchiver archiver) {
+            this.builder = builder;
+            this.imageReader = imageReader;
+            this.imageFile = imageFile;
+            this.fileName = fileName;
+            this.archiver = archiver;
+        }
+
+        private void build(ForkJoinPool pool, MemoryGovernor governor,
+                float maxImageCachePercentage) throws IOException {
+            PartialImageReader reader = imageReader != null
+                    ? imageReader : new DirectImageReader(imageFile);
+            builder.buildPyramid(reader, fileName, archiver, pool, governor,
+                    maxImageCachePercentage);
+        }
+    }
+}
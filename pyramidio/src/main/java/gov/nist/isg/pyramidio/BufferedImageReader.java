@@ -11,6 +11,7 @@
  */
 package gov.nist.isg.pyramidio;
 
+import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -21,7 +22,7 @@ import javax.imageio.ImageIO;
  *
  * @author Antoine Vandecreme
  */
-public class BufferedImageReader implements PartialImageReader {
+public class BufferedImageReader implements SubsampledImageReader {
 
     private final BufferedImage image;
 
@@ -47,6 +48,24 @@ public class BufferedImageReader implements PartialImageReader {
                 rectangle.width, rectangle.height);
     }
 
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        if (subsampling == 1) {
+            return read(rectangle);
+        }
+        BufferedImage result = BufferedImageHelper.createBufferedImage(
+                (rectangle.width + subsampling - 1) / subsampling,
+                (rectangle.height + subsampling - 1) / subsampling, image);
+        BufferedImageHelper.subsample(image.getRaster(), rectangle,
+                subsampling, result.getRaster(), 0, 0);
+        return result;
+    }
+
     @Override
     public int getWidth() {
         return image.getWidth();
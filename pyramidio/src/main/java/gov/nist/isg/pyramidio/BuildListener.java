@@ -0,0 +1,91 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+/**
+ * Listener notified of the progress of the builds of a ScalablePyramidBuilder.
+ *
+ * The methods are called from the threads building and writing the tiles and
+ * must be thread safe. They should return quickly since they are called for
+ * every tile.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface BuildListener {
+
+    /**
+     * The stages of the computation of a tile.
+     */
+    enum Stage {
+        /**
+         * Reading a region of the input image.
+         */
+        READ,
+        /**
+         * Downsampling the 4 children of a tile.
+         */
+        RESIZE,
+        /**
+         * Encoding a tile in the tile format.
+         */
+        ENCODE,
+        /**
+         * Writing a tile in the archive, excluding the encoding.
+         */
+        WRITE
+    }
+
+    /**
+     * Called when a build starts.
+     *
+     * @param nbLevels the max level of the pyramid
+     */
+    void buildStarted(int nbLevels);
+
+    /**
+     * Called each time a stage completes.
+     *
+     * @param stage the stage
+     * @param nanos the duration of the stage in nanoseconds
+     */
+    void stageCompleted(Stage stage, long nanos);
+
+    /**
+     * Called each time a tile has been computed.
+     *
+     * @param level the level of the tile
+     * @param uniform true if all the pixels of the tile are identical and the
+     * detection of uniform tiles is enabled
+     * @param written true if the tile is written in the archive, false if it
+     * is recorded in the sparse tiles index only
+     */
+    void tileComputed(int level, boolean uniform, boolean written);
+
+    /**
+     * Called regularly with the statistics of the fork join pool computing the
+     * tiles, if any.
+     *
+     * @param parallelism the parallelism of the pool
+     * @param stealCount the number of tasks stolen so far
+     * @param queuedTasks the number of tasks waiting in the queues
+     * @param activeThreads the number of threads computing tasks
+     */
+    void poolSampled(int parallelism, long stealCount, long queuedTasks,
+            int activeThreads);
+
+    /**
+     * Called when a build completes, successfully or not.
+     *
+     * @param nanos the duration of the build in nanoseconds
+     */
+    void buildFinished(long nanos);
+}
@@ -0,0 +1,338 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BuildListener collecting the number of tiles computed per level, histograms
+ * of the durations of each stage and the statistics of the fork join pool.
+ *
+ * The metrics are accumulated over all the builds the instance listens to.
+ * They can be published over JMX with register and exported as a JSON report.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BuildMetrics implements BuildListener, BuildMetricsMXBean {
+
+    // Levels are computed from int dimensions so there are at most 32.
+    private static final int MAX_LEVELS = 33;
+
+    private final AtomicInteger buildCount = new AtomicInteger();
+    private final AtomicLong elapsedNanos = new AtomicLong();
+    private final AtomicInteger maxLevel = new AtomicInteger(-1);
+    private final AtomicLongArray computed = new AtomicLongArray(MAX_LEVELS);
+    private final AtomicLongArray written = new AtomicLongArray(MAX_LEVELS);
+    private final AtomicLongArray uniform = new AtomicLongArray(MAX_LEVELS);
+    private final Map<Stage, TimingHistogram> stages
+            = new EnumMap<>(Stage.class);
+
+    private volatile int poolParallelism;
+    private final AtomicLong poolStealCount = new AtomicLong();
+    private final AtomicLong poolPeakQueuedTasks = new AtomicLong();
+    private final AtomicInteger poolPeakActiveThreads = new AtomicInteger();
+
+    public BuildMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new TimingHistogram());
+        }
+    }
+
+    @Override
+    public void buildStarted(int nbLevels) {
+        int max = maxLevel.get();
+        while (nbLevels > max && !maxLevel.compareAndSet(max, nbLevels)) {
+            max = maxLevel.get();
+        }
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    @Override
+    public void tileComputed(int level, boolean uniform, boolean written) {
+        computed.incrementAndGet(level);
+        if (uniform) {
+            this.uniform.incrementAndGet(level);
+        }
+        if (written) {
+            this.written.incrementAndGet(level);
+        }
+    }
+
+    @Override
+    public void poolSampled(int parallelism, long stealCount,
+            long queuedTasks, int activeThreads) {
+        poolParallelism = parallelism;
+        updateMax(poolStealCount, stealCount);
+        updateMax(poolPeakQueuedTasks, queuedTasks);
+        int peak = poolPeakActiveThreads.get();
+        while (activeThreads > peak && !poolPeakActiveThreads.compareAndSet(
+                peak, activeThreads)) {
+            peak = poolPeakActiveThreads.get();
+        }
+    }
+
+    @Override
+    public void buildFinished(long nanos) {
+        buildCount.incrementAndGet();
+        elapsedNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public int getBuildCount() {
+        return buildCount.get();
+    }
+
+    @Override
+    public double getElapsedMillis() {
+        return toMillis(elapsedNanos.get());
+    }
+
+    @Override
+    public long getTilesComputed() {
+        return sum(computed);
+    }
+
+    @Override
+    public long getTilesWritten() {
+        return sum(written);
+    }
+
+    @Override
+    public long getUniformTiles() {
+        return sum(uniform);
+    }
+
+    @Override
+    public long[] getTilesComputedPerLevel() {
+        return toArray(computed);
+    }
+
+    @Override
+    public long[] getTilesWrittenPerLevel() {
+        return toArray(written);
+    }
+
+    /**
+     * Get the number of uniform tiles computed at each level.
+     *
+     * @return the number of uniform tiles indexed by level
+     */
+    public long[] getUniformTilesPerLevel() {
+        return toArray(uniform);
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, TimingHistogram> entry : stages.entrySet()) {
+            result.put(getName(entry.getKey()), entry.getValue().getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageTotalMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, TimingHistogram> entry : stages.entrySet()) {
+            result.put(getName(entry.getKey()),
+                    toMillis(entry.getValue().getTotalNanos()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageMaxMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<Stage, TimingHistogram> entry : stages.entrySet()) {
+            result.put(getName(entry.getKey()),
+                    toMillis(entry.getValue().getMaxNanos()));
+        }
+        return result;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the durations of a stage,
+     * accurate within a factor of 2.
+     *
+     * @param stage the stage
+     * @param percentile the percentile between 0 and 1
+     * @return the duration in milliseconds
+     */
+    public double getStagePercentileMillis(Stage stage, double percentile) {
+        return toMillis(stages.get(stage).getPercentileNanos(percentile));
+    }
+
+    @Override
+    public int getPoolParallelism() {
+        return poolParallelism;
+    }
+
+    @Override
+    public long getPoolStealCount() {
+        return poolStealCount.get();
+    }
+
+    @Override
+    public long getPoolPeakQueuedTasks() {
+        return poolPeakQueuedTasks.get();
+    }
+
+    @Override
+    public int getPoolPeakActiveThreads() {
+        return poolPeakActiveThreads.get();
+    }
+
+    @Override
+    public String getJsonReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"builds\": ").append(getBuildCount());
+        sb.append(",\n  \"elapsedMillis\": ")
+                .append(format(getElapsedMillis()));
+        sb.append(",\n  \"levels\": [");
+        for (int level = 0; level <= maxLevel.get(); level++) {
+            sb.append(level == 0 ? "\n" : ",\n");
+            sb.append("    {\"level\": ").append(level)
+                    .append(", \"computed\": ").append(computed.get(level))
+                    .append(", \"written\": ").append(written.get(level))
+                    .append(", \"uniform\": ").append(uniform.get(level))
+                    .append('}');
+        }
+        sb.append("\n  ],\n  \"stages\": {");
+        boolean first = true;
+        for (Map.Entry<Stage, TimingHistogram> entry : stages.entrySet()) {
+            TimingHistogram histogram = entry.getValue();
+            sb.append(first ? "\n" : ",\n");
+            first = false;
+            sb.append("    \"").append(getName(entry.getKey()))
+                    .append("\": {\"count\": ").append(histogram.getCount())
+                    .append(", \"totalMillis\": ")
+                    .append(format(toMillis(histogram.getTotalNanos())))
+                    .append(", \"p50Millis\": ")
+                    .append(format(toMillis(
+                            histogram.getPercentileNanos(0.5))))
+                    .append(", \"p99Millis\": ")
+                    .append(format(toMillis(
+                            histogram.getPercentileNanos(0.99))))
+                    .append(", \"maxMillis\": ")
+                    .append(format(toMillis(histogram.getMaxNanos())))
+                    .append('}');
+        }
+        sb.append("\n  },\n  \"pool\": {\"parallelism\": ")
+                .append(getPoolParallelism())
+                .append(", \"stealCount\": ").append(getPoolStealCount())
+                .append(", \"peakQueuedTasks\": ")
+                .append(getPoolPeakQueuedTasks())
+                .append(", \"peakActiveThreads\": ")
+                .append(getPoolPeakActiveThreads())
+                .append("}\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Write the JSON report of the metrics.
+     *
+     * @param writer the writer
+     * @throws IOException
+     */
+    public void writeJson(Writer writer) throws IOException {
+        writer.write(getJsonReport());
+        writer.flush();
+    }
+
+    /**
+     * Register the metrics in the platform MBean server.
+     *
+     * @param name the value of the name key of the object name
+     * @return the object name of the registered MBean
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(
+                    "gov.nist.isg.pyramidio:type=BuildMetrics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    this, objectName);
+            return objectName;
+        } catch (JMException ex) {
+            throw new RuntimeException("Cannot register the build metrics "
+                    + name + ".", ex);
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server.
+     *
+     * @param objectName the object name returned by register
+     */
+    public static void unregister(ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            throw new RuntimeException("Cannot unregister the build metrics "
+                    + objectName + ".", ex);
+        }
+    }
+
+    private long[] toArray(AtomicLongArray array) {
+        long[] result = new long[maxLevel.get() + 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = array.get(i);
+        }
+        return result;
+    }
+
+    private static long sum(AtomicLongArray array) {
+        long sum = 0;
+        for (int i = 0; i < array.length(); i++) {
+            sum += array.get(i);
+        }
+        return sum;
+    }
+
+    private static void updateMax(AtomicLong value, long candidate) {
+        long max = value.get();
+        while (candidate > max && !value.compareAndSet(max, candidate)) {
+            max = value.get();
+        }
+    }
+
+    private static String getName(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
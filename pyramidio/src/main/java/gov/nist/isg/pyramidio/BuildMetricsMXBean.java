@@ -0,0 +1,52 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.util.Map;
+
+/**
+ * Management interface of BuildMetrics.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface BuildMetricsMXBean {
+
+    int getBuildCount();
+
+    double getElapsedMillis();
+
+    long getTilesComputed();
+
+    long getTilesWritten();
+
+    long getUniformTiles();
+
+    long[] getTilesComputedPerLevel();
+
+    long[] getTilesWrittenPerLevel();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageTotalMillis();
+
+    Map<String, Double> getStageMaxMillis();
+
+    int getPoolParallelism();
+
+    long getPoolStealCount();
+
+    long getPoolPeakQueuedTasks();
+
+    int getPoolPeakActiveThreads();
+
+    String getJsonReport();
+}
@@ -0,0 +1,252 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimation of the cost of a pyramid build, computed without building it.
+ *
+ * The tile counts, the cache and coalesce levels and the source reads come
+ * from the geometry of the pyramid and are exact. The memory is estimated as
+ * the builder does for its memory budget, excluding the memory held by the
+ * image reader itself. The output bytes and the duration are extrapolated
+ * from the read, resize and encoding of a sample tile and are rough.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BuildPlan {
+
+    /**
+     * The tiles of a level.
+     */
+    public static class Level {
+
+        private final int level;
+        private final int width;
+        private final int height;
+        private final int columns;
+        private final int rows;
+        private final long estimatedBytes;
+
+        Level(int level, int width, int height, int columns, int rows,
+                long estimatedBytes) {
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.columns = columns;
+            this.rows = rows;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getColumns() {
+            return columns;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public long getTileCount() {
+            return (long) columns * rows;
+        }
+
+        /**
+         * @return the estimated bytes of the encoded tiles of the level
+         */
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final String sampleType;
+    private final int parallelism;
+    private final List<Level> levels;
+    private final int cacheLevel;
+    private final int coalesceLevel;
+    private final double readsPerSourcePixel;
+    private final long peakMemoryBytes;
+    private final long estimatedNanos;
+    private final List<String> suggestions;
+
+    BuildPlan(int width, int height, String sampleType, int parallelism,
+            List<Level> levels, int cacheLevel, int coalesceLevel,
+            double readsPerSourcePixel, long peakMemoryBytes,
+            long estimatedNanos, List<String> suggestions) {
+        this.width = width;
+        this.height = height;
+        this.sampleType = sampleType;
+        this.parallelism = parallelism;
+        this.levels = Collections.unmodifiableList(levels);
+        this.cacheLevel = cacheLevel;
+        this.coalesceLevel = coalesceLevel;
+        this.readsPerSourcePixel = readsPerSourcePixel;
+        this.peakMemoryBytes = peakMemoryBytes;
+        this.estimatedNanos = estimatedNanos;
+        this.suggestions = Collections.unmodifiableList(suggestions);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the description of the samples of the source, such as
+     * "3 x 8 bits"
+     */
+    public String getSampleType() {
+        return sampleType;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the levels, from level 0 to the full resolution level
+     */
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    public long getTileCount() {
+        long count = 0;
+        for (Level level : levels) {
+            count += level.getTileCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the estimated bytes of the encoded tiles of each file layout
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Level level : levels) {
+            bytes += level.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the level whose tile regions are cached or -1 without cache
+     */
+    public int getCacheLevel() {
+        return cacheLevel;
+    }
+
+    /**
+     * @return the level whose tile regions are read at once or -1 without
+     * read coalescing
+     */
+    public int getCoalesceLevel() {
+        return coalesceLevel;
+    }
+
+    /**
+     * @return the number of times each pixel of the source is read on
+     * average
+     */
+    public double getReadsPerSourcePixel() {
+        return readsPerSourcePixel;
+    }
+
+    /**
+     * @return the estimated memory high-water mark of the build
+     */
+    public long getPeakMemoryBytes() {
+        return peakMemoryBytes;
+    }
+
+    /**
+     * @return the rough estimation of the duration of the build
+     */
+    public long getEstimatedNanos() {
+        return estimatedNanos;
+    }
+
+    /**
+     * @return the settings which could make the build faster or fit in
+     * memory
+     */
+    public List<String> getSuggestions() {
+        return suggestions;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Image: %dx%d, %s%n",
+                width, height, sampleType));
+        sb.append(String.format(Locale.ROOT, "%5s %11s %11s %8s %10s%n",
+                "level", "width", "height", "tiles", "bytes"));
+        for (Level level : levels) {
+            sb.append(String.format(Locale.ROOT, "%5d %11d %11d %8d %10s%n",
+                    level.getLevel(), level.getWidth(), level.getHeight(),
+                    level.getTileCount(),
+                    formatBytes(level.getEstimatedBytes())));
+        }
+        sb.append(String.format(Locale.ROOT, "Tiles: %d (%s)%n",
+                getTileCount(), formatBytes(getEstimatedBytes())));
+        sb.append(String.format(Locale.ROOT, "Cache level: %s%n",
+                cacheLevel < 0 ? "none" : cacheLevel));
+        sb.append(String.format(Locale.ROOT, "Coalesce level: %s%n",
+                coalesceLevel < 0 ? "none" : coalesceLevel));
+        sb.append(String.format(Locale.ROOT,
+                "Reads per source pixel: %.2f%n", readsPerSourcePixel));
+        sb.append(String.format(Locale.ROOT, "Peak memory: %s%n",
+                formatBytes(peakMemoryBytes)));
+        sb.append(String.format(Locale.ROOT,
+                "Estimated time with %d threads: %.1fs%n", parallelism,
+                estimatedNanos / 1e9));
+        for (String suggestion : suggestions) {
+            sb.append("Suggestion: ").append(suggestion)
+                    .append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        String units = "KMGTPE";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f%sB", value,
+                units.charAt(unit));
+    }
+}
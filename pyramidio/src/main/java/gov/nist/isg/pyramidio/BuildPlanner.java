@@ -0,0 +1,268 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.pyramidio.encoding.TileEncoder;
+import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
+import gov.nist.isg.pyramidio.tools.ImageDownsamplingHelper;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimation of the cost of the full build of a tile builder, from the
+ * geometry of its pyramid and the timing of a sample tile.
+ *
+ * @author Antoine Vandecreme
+ */
+class BuildPlanner {
+
+    private static final int SAMPLE_RUNS = 3;
+
+    private final TileBuilder tileBuilder;
+    private final PartialImageReader imageReader;
+    private final int tileSize;
+    private final int overlap;
+    private final int nbLevels;
+    private final int originalWidth;
+    private final int originalHeight;
+
+    BuildPlanner(TileBuilder tileBuilder) {
+        this.tileBuilder = tileBuilder;
+        this.imageReader = tileBuilder.getImageReader();
+        this.tileSize = tileBuilder.getTileSize();
+        this.overlap = tileBuilder.getOverlap();
+        this.nbLevels = tileBuilder.getNbLevels();
+        this.originalWidth = imageReader.getWidth();
+        this.originalHeight = imageReader.getHeight();
+    }
+
+    /**
+     * Estimate the cost of a full build. The output bytes and the duration
+     * are extrapolated from a sample tile of the center of the image, read,
+     * resized and encoded a few times.
+     *
+     * @param parallelism the parallelism level
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM.
+     * @return the plan
+     * @throws IOException
+     */
+    BuildPlan plan(int parallelism, float maxImageCachePercentage)
+            throws IOException {
+        int threads = tileBuilder.getThreads(parallelism);
+        BufferedImage pixel = imageReader.read(new Rectangle(0, 0, 1, 1));
+        SampleModel sampleModel = pixel.getSampleModel();
+        String sampleType = sampleModel.getNumBands() + " x "
+                + sampleModel.getSampleSize(0) + " bits";
+        int cacheLevel = tileBuilder.planFullBuildReads(
+                threads, maxImageCachePercentage);
+        int coalesceLevel = tileBuilder.getCoalesceLevel();
+        int readLevel = cacheLevel >= 0 ? cacheLevel
+                : coalesceLevel >= 0 ? coalesceLevel : nbLevels;
+
+        // Source pixels read by the regions of the tiles of the read level.
+        // The sequential decoders decode all the rows above a region too.
+        boolean sequential = tileBuilder.isSequentialInput();
+        Dimension readLevelDimensions = tileBuilder.getLevelDimensions(
+                readLevel);
+        int readColumns = (int) Math.ceil(
+                (double) readLevelDimensions.width / tileSize);
+        int readRows = (int) Math.ceil(
+                (double) readLevelDimensions.height / tileSize);
+        long pixelsRead = 0;
+        long pixelsDecoded = 0;
+        for (int row = 0; row < readRows; row++) {
+            for (int col = 0; col < readColumns; col++) {
+                Rectangle region = tileBuilder.getTileRegionInEntireImage(
+                        readLevel, row, col);
+                pixelsRead += (long) region.width * region.height;
+                pixelsDecoded += getDecodedPixels(region, sequential);
+            }
+        }
+        double readsPerPixel = (double) pixelsRead
+                / ((long) originalWidth * originalHeight);
+
+        // Time the read, resize and encoding of a sample tile
+        Rectangle sampleRegion = tileBuilder.getTileRegionInEntireImage(
+                nbLevels, (originalHeight / tileSize) / 2,
+                (originalWidth / tileSize) / 2);
+        long samplePixels = (long) sampleRegion.width * sampleRegion.height;
+        // The native tiles of a tiled image are decoded once for all the
+        // tiles overlapping them
+        long sampleDecodedPixels = imageReader instanceof TiledImageReader
+                ? ((TiledImageReader) imageReader).getTilePixels(sampleRegion)
+                : getDecodedPixels(sampleRegion, sequential);
+        TileEncoder tileEncoder = tileBuilder.getTileEncoder();
+        long readNanos = Long.MAX_VALUE;
+        long resizeNanos = Long.MAX_VALUE;
+        long encodeNanos = Long.MAX_VALUE;
+        long encodedBytes = 0;
+        long encodedPixelBytes = 0;
+        for (int i = 0; i < SAMPLE_RUNS; i++) {
+            if (imageReader instanceof TiledImageReader) {
+                // Time the decoding, not the cache
+                ((TiledImageReader) imageReader).clearCache();
+            }
+            long start = System.nanoTime();
+            BufferedImage tile = imageReader.read(sampleRegion);
+            readNanos = Math.min(readNanos, System.nanoTime() - start);
+
+            int width = tile.getWidth();
+            int height = tile.getHeight();
+            start = System.nanoTime();
+            if (tileBuilder.isDirectDownsampling()) {
+                BufferedImage result = BufferedImageHelper
+                        .createBufferedImage(width, height, tile);
+                ImageDownsamplingHelper.downsampleByTwo(tile, tile, tile,
+                        tile, width, height, 0, 0, result.getRaster());
+            } else {
+                BufferedImage mosaic = BufferedImageHelper
+                        .createBufferedImage(2 * width, 2 * height, tile);
+                WritableRaster raster = mosaic.getRaster();
+                raster.setRect(0, 0, tile.getRaster());
+                raster.setRect(width, 0, tile.getRaster());
+                raster.setRect(0, height, tile.getRaster());
+                raster.setRect(width, height, tile.getRaster());
+                tileBuilder.getResampler().resize(mosaic, width, height);
+            }
+            resizeNanos = Math.min(resizeNanos, System.nanoTime() - start);
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            start = System.nanoTime();
+            tileEncoder.encode(tile, outputStream);
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+            encodedBytes = outputStream.size();
+
+            // Size of the headers of the tile format
+            outputStream.reset();
+            tileEncoder.encode(tile.getSubimage(0, 0, 1, 1), outputStream);
+            encodedPixelBytes = outputStream.size();
+        }
+        double bytesPerTilePixel = Math.max(0,
+                (double) (encodedBytes - encodedPixelBytes) / samplePixels);
+
+        List<BuildPlan.Level> levels = new ArrayList<>(nbLevels + 1);
+        long tilePixels = 0;
+        long maxLevelTilePixels = 0;
+        for (int level = 0; level <= nbLevels; level++) {
+            Dimension levelDimensions = tileBuilder.getLevelDimensions(level);
+            int columns = (int) Math.ceil(
+                    (double) levelDimensions.width / tileSize);
+            int rows = (int) Math.ceil(
+                    (double) levelDimensions.height / tileSize);
+            // Each boundary between 2 tiles is in the overlap of both
+            long pixels = (levelDimensions.width
+                    + 2L * overlap * (columns - 1))
+                    * (levelDimensions.height + 2L * overlap * (rows - 1));
+            tilePixels += pixels;
+            maxLevelTilePixels = pixels;
+            levels.add(new BuildPlan.Level(level, levelDimensions.width,
+                    levelDimensions.height, columns, rows,
+                    (long) columns * rows * encodedPixelBytes
+                    + Math.round(pixels * bytesPerTilePixel)));
+        }
+
+        long tileBytes = tileBuilder.getTileBytes();
+        int writerThreads = tileBuilder.getWriterThreads();
+        long writerBytes = 0;
+        if (writerThreads > 0) {
+            int writerQueueSize = tileBuilder.getWriterQueueSize();
+            int queueSize = writerQueueSize > 0
+                    ? writerQueueSize : 2 * writerThreads;
+            writerBytes = (queueSize + writerThreads) * tileBytes;
+        }
+        long readBytes = cacheLevel >= 0
+                ? tileBuilder.getRegionBytes(cacheLevel)
+                : coalesceLevel >= 0
+                        ? threads * tileBuilder.getRegionBytes(coalesceLevel)
+                        : 0;
+        long peakMemory = writerBytes
+                + threads * tileBuilder.getSubtreeBytes(0) + readBytes;
+        MemoryGovernor governor = tileBuilder.getGovernor();
+        if (governor != null) {
+            // The forks and blocks are limited to the budget
+            peakMemory = Math.min(peakMemory, Math.max(governor.getBudget(),
+                    tileBuilder.getBaseBytes()));
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        long nanos = (long) ((readNanos * (double) pixelsDecoded
+                / sampleDecodedPixels
+                + (encodeNanos * (double) tilePixels
+                + resizeNanos * (double) (tilePixels - maxLevelTilePixels))
+                / samplePixels) / Math.min(threads, processors));
+
+        List<String> suggestions = new ArrayList<>();
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (peakMemory > maxMemory) {
+            suggestions.add(governor == null
+                    ? "Set a memory budget below the maximum heap size of "
+                    + BuildPlan.formatBytes(maxMemory) + "."
+                    : "Lower the memory budget below the maximum heap size "
+                    + "of " + BuildPlan.formatBytes(maxMemory) + ".");
+        }
+        if (readsPerPixel > 1.5) {
+            suggestions.add("Use read coalescing or an input cache, each "
+                    + "source pixel being read "
+                    + String.format(Locale.ROOT, "%.1f", readsPerPixel)
+                    + " times.");
+        }
+        if (cacheLevel < 0 && coalesceLevel < 0 && isStreamableInput()) {
+            suggestions.add("Build by strips, the input image being decoded "
+                    + "in a single pass.");
+        }
+        if (threads != processors) {
+            suggestions.add("Use a parallelism of " + processors
+                    + ", the number of available processors.");
+        }
+        if (threads > 1 && writerThreads == 0
+                && encodeNanos > resizeNanos + readNanos) {
+            suggestions.add("Use tile writer threads, the encoding of the "
+                    + "tiles being the longest stage.");
+        }
+
+        return new BuildPlan(originalWidth, originalHeight, sampleType,
+                threads, levels, cacheLevel, coalesceLevel, readsPerPixel,
+                peakMemory, nanos, suggestions);
+    }
+
+    /**
+     * Get the number of pixels decoded to read a region of the input image.
+     */
+    private long getDecodedPixels(Rectangle region, boolean sequential) {
+        return sequential
+                ? (long) (region.y + region.height) * originalWidth
+                : (long) region.width * region.height;
+    }
+
+    /**
+     * Check if the input image is decoded in a single pass by the builds by
+     * strips, instead of being decoded again for each strip.
+     */
+    private boolean isStreamableInput() throws IOException {
+        if (!tileBuilder.isSequentialInput()) {
+            return false;
+        }
+        try (StripReader stripReader = PngStripReader.open(
+                ((DirectImageReader) imageReader).getImageFile())) {
+            return stripReader != null;
+        }
+    }
+}
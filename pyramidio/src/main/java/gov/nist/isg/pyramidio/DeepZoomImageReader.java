@@ -11,8 +11,9 @@
  */
 package gov.nist.isg.pyramidio;
 
+import gov.nist.isg.pyramidio.resampling.BicubicResampler;
+import gov.nist.isg.pyramidio.resampling.Resampler;
 import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
-import gov.nist.isg.pyramidio.tools.ImageResizingHelper;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
@@ -33,7 +34,7 @@ import org.apache.commons.io.FilenameUtils;
  *
  * @author Antoine Vandecreme
  */
-public class DeepZoomImageReader implements PartialImageReader {
+public class DeepZoomImageReader implements SubsampledImageReader {
 
     private final File dziFile;
     private final File filesFolder;
@@ -44,6 +45,8 @@ public class DeepZoomImageReader implements PartialImageReader {
     private final int height;
     private final int maxLevel;
     private final ImageTypeSpecifier rawImageType;
+    private final SparseTiles sparseTiles;
+    private volatile Resampler resampler = new BicubicResampler();
 
     public DeepZoomImageReader(File dziFile) throws IOException {
         this(dziFile, null);
@@ -74,6 +77,22 @@ public class DeepZoomImageReader implements PartialImageReader {
 
         int maxDim = Math.max(width, height);
         maxLevel = (int) Math.ceil(Math.log(maxDim) / Math.log(2));
+
+        sparseTiles = SparseTiles.load(new File(dziFile.getParent(),
+                name + SparseTiles.DIRECTORY_SUFFIX));
+    }
+
+    /**
+     * Set the resampler used to resize the regions read at a zoom which is
+     * not the one of a pyramid level.
+     *
+     * @param resampler the resampler. Default to a BicubicResampler.
+     */
+    public void setResampler(Resampler resampler) {
+        if (resampler == null) {
+            throw new IllegalArgumentException("The resampler cannot be null.");
+        }
+        this.resampler = resampler;
     }
 
     public File getDziFile() {
@@ -116,6 +135,46 @@ public class DeepZoomImageReader implements PartialImageReader {
         return getRegion(rectangle, 1);
     }
 
+    /**
+     * Read a region from the pyramid level with the largest downsampling
+     * not above the subsampling factor, resized with the resampler when the
+     * subsampling is not a power of 2.
+     */
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        if (subsampling == 1) {
+            return read(rectangle);
+        }
+        if (rectangle == null || rectangle.isEmpty()
+                || !new Rectangle(width, height).contains(rectangle)) {
+            throw new IllegalArgumentException(
+                    "Region empty or outside image.");
+        }
+        int resultWidth = (rectangle.width + subsampling - 1) / subsampling;
+        int resultHeight = (rectangle.height + subsampling - 1)
+                / subsampling;
+        int downsampling = Math.min(maxLevel,
+                31 - Integer.numberOfLeadingZeros(subsampling));
+        int level = maxLevel - downsampling;
+        int factor = 1 << downsampling;
+        int levelWidth = (width + factor - 1) / factor;
+        int levelHeight = (height + factor - 1) / factor;
+        int x = rectangle.x / factor;
+        int y = rectangle.y / factor;
+        Rectangle levelRegion = new Rectangle(x, y,
+                Math.min(levelWidth, (rectangle.x + rectangle.width
+                        + factor - 1) / factor) - x,
+                Math.min(levelHeight, (rectangle.y + rectangle.height
+                        + factor - 1) / factor) - y);
+        BufferedImage image = readRegionOfLevel(levelRegion, level);
+        return resampler.resize(image, resultWidth, resultHeight);
+    }
+
     /**
      * Get the whole image at the specified zoom level.
      *
@@ -207,7 +266,7 @@ public class DeepZoomImageReader implements PartialImageReader {
         int h = (int) Math.round(region.height * zoomOfLevel);
 
         BufferedImage image = readRegionOfLevel(new Rectangle(x, y, w, h), level);
-        return ImageResizingHelper.resizeImage(image, resultWidth, resultHeight);
+        return resampler.resize(image, resultWidth, resultHeight);
     }
 
     public BufferedImage readRegionOfLevel(Rectangle region, int level)
@@ -295,10 +354,48 @@ public class DeepZoomImageReader implements PartialImageReader {
         return result;
     }
 
+    /**
+     * Read an entire tile of the pyramid, overlap included.
+     *
+     * @param level the level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @return the tile
+     * @throws IOException
+     */
+    public BufferedImage readTile(int level, int column, int row)
+            throws IOException {
+        File levelFolder = new File(filesFolder, Integer.toString(level));
+        File tile = new File(levelFolder, column + "_" + row + "." + format);
+        int[] uniformPixel = getSparsePixel(tile, level, column, row);
+        if (uniformPixel != null) {
+            Rectangle region = getTileRegion(level, column, row);
+            return createUniformImage(region.width, region.height,
+                    uniformPixel);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(tile)) {
+            if (iis == null) {
+                throw new IOException("Cannot open tile " + tile);
+            }
+            ImageReader reader = getImageReader(iis);
+            try {
+                reader.setInput(iis);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
     private BufferedImage readRegionOfTile(Rectangle region, int level,
             int column, int row) throws IOException {
         File levelFolder = new File(filesFolder, Integer.toString(level));
         File tile = new File(levelFolder, column + "_" + row + "." + format);
+        int[] uniformPixel = getSparsePixel(tile, level, column, row);
+        if (uniformPixel != null) {
+            return createUniformImage(region.width, region.height,
+                    uniformPixel);
+        }
         try (ImageInputStream iis = ImageIO.createImageInputStream(tile)) {
             ImageReader reader = getImageReader(iis);
             reader.setInput(iis);
@@ -308,6 +405,38 @@ public class DeepZoomImageReader implements PartialImageReader {
         }
     }
 
+    /**
+     * Get the pixel of a uniform tile which has not been written.
+     *
+     * @return the pixel or null if the tile has been written
+     */
+    private int[] getSparsePixel(File tile, int level, int column, int row) {
+        int[] pixel = sparseTiles.get(level, column, row);
+        // The tile might have been written by an update since
+        return pixel == null || tile.exists() ? null : pixel;
+    }
+
+    private BufferedImage createUniformImage(int width, int height,
+            int[] pixel) {
+        BufferedImage image;
+        synchronized (this) {
+            image = rawImageType.createBufferedImage(width, height);
+        }
+        BufferedImageHelper.fill(image.getRaster(), pixel);
+        return image;
+    }
+
+    private Rectangle getTileRegion(int level, int column, int row) {
+        double factor = getZoomOfLevel(level);
+        int levelWidth = (int) Math.ceil(width * factor);
+        int levelHeight = (int) Math.ceil(height * factor);
+        int x = column * tileSize - (column == 0 ? 0 : overlap);
+        int y = row * tileSize - (row == 0 ? 0 : overlap);
+        int w = Math.min(levelWidth, (column + 1) * tileSize + overlap) - x;
+        int h = Math.min(levelHeight, (row + 1) * tileSize + overlap) - y;
+        return new Rectangle(x, y, w, h);
+    }
+
     private int getClosestLevel(double zoom) {
         if (zoom > 0.5) {
             return maxLevel;
@@ -14,21 +14,40 @@ package gov.nist.isg.pyramidio;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 
 /**
+ * Reader of the regions of an image file decoded by ImageIO.
+ *
+ * The ImageIO readers are kept open between the reads in a pool of decoder
+ * sessions, so that the file is opened, the codec looked up and the header
+ * parsed once per session instead of once per read. Each session is used by
+ * one thread at a time. The sessions are released by close, after which the
+ * reader can still be used, opening new sessions as needed. The sessions
+ * opened to get the size or the layout of the image are closed right away, so
+ * a reader which has not read any region does not keep the file open.
+ *
  * @author plitvak
  */
-public class DirectImageReader implements PartialImageReader {
+public class DirectImageReader implements SubsampledImageReader, Closeable {
+
+    // Sessions beyond this number are closed when released
+    private static final int MAX_IDLE_SESSIONS = 16;
 
     private final File imageFile;
+    private final Deque<Session> idleSessions = new ArrayDeque<>();
     private final Dimension dimension;
 
     public DirectImageReader(File imageFile) throws IOException {
@@ -37,6 +56,10 @@ public class DirectImageReader implements PartialImageReader {
         this.dimension = getImageDimension();
     }
 
+    public File getImageFile() {
+        return imageFile;
+    }
+
     @Override
     public BufferedImage read() throws IOException {
         return read(new Rectangle(0, 0, dimension.width, dimension.height));
@@ -44,7 +67,22 @@ public class DirectImageReader implements PartialImageReader {
 
     @Override
     public BufferedImage read(Rectangle rectangle) throws IOException {
-        return readRegion(rectangle);
+        return readRegion(rectangle, 1);
+    }
+
+    /**
+     * Read a region subsampled by the decoder, which can skip the rows and
+     * columns not read.
+     */
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        return subsampling == 1
+                ? read(rectangle) : readRegion(rectangle, subsampling);
     }
 
     @Override
@@ -59,7 +97,7 @@ public class DirectImageReader implements PartialImageReader {
 
     private Dimension getImageDimension() throws IOException {
 
-        return executeWithImageReader(new Function<Dimension>() {
+        return probeImageReader(new Function<Dimension>() {
             @Override
             public Dimension apply(ImageReader imageReader) throws IOException {
                 return new Dimension(
@@ -68,8 +106,8 @@ public class DirectImageReader implements PartialImageReader {
         });
     }
 
-    private BufferedImage readRegion(final Rectangle rectangle)
-            throws IOException {
+    private BufferedImage readRegion(final Rectangle rectangle,
+            final int subsampling) throws IOException {
 
         return executeWithImageReader(new Function<BufferedImage>() {
             @Override
@@ -77,34 +115,164 @@ public class DirectImageReader implements PartialImageReader {
                     throws IOException {
                 ImageReadParam param = imageReader.getDefaultReadParam();
                 param.setSourceRegion(rectangle);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling,
+                            0, 0);
+                }
 
                 return imageReader.read(0, param);
             }
         });
     }
 
-    private <T> T executeWithImageReader(Function<T> f) throws IOException {
+    /**
+     * Check whether the image is stored in tiles which can be decoded
+     * separately, in which case a TiledImageReader reads it faster.
+     *
+     * @return true if the image is tiled
+     * @throws IOException
+     */
+    public boolean isTiled() throws IOException {
+        return probeImageReader(new Function<Boolean>() {
+            @Override
+            public Boolean apply(ImageReader imageReader) throws IOException {
+                return imageReader.isImageTiled(0);
+            }
+        });
+    }
+
+    <T> T executeWithImageReader(Function<T> f) throws IOException {
+        return execute(f, true);
+    }
 
-        try (ImageInputStream iis = ImageIO.createImageInputStream(
-                new FileInputStream(imageFile).getChannel())) {
+    /**
+     * Query the ImageIO reader with an idle session, or with a new session
+     * which is closed afterward instead of being put in the pool.
+     */
+    <T> T probeImageReader(Function<T> f) throws IOException {
+        return execute(f, false);
+    }
 
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-            if (readers.hasNext()) {
-                ImageReader reader = readers.next();
-                try {
-                    reader.setInput(iis);
-                    return f.apply(reader);
-                } finally {
-                    reader.dispose();
+    private <T> T execute(Function<T> f, boolean keepNewSession)
+            throws IOException {
+        Session session;
+        synchronized (idleSessions) {
+            session = idleSessions.pollFirst();
+        }
+        boolean keep = session != null || keepNewSession;
+        if (session == null) {
+            session = new Session(imageFile);
+        }
+        boolean succeeded = false;
+        try {
+            T result = f.apply(session.reader);
+            succeeded = true;
+            return result;
+        } finally {
+            // A failed read may leave the decoder in an undefined state
+            if (!succeeded || !keep || !release(session)) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sessions in the pool
+     */
+    int getIdleSessionCount() {
+        synchronized (idleSessions) {
+            return idleSessions.size();
+        }
+    }
+
+    /**
+     * Put back a session in the pool.
+     *
+     * @return false if the pool is full
+     */
+    private boolean release(Session session) {
+        synchronized (idleSessions) {
+            if (idleSessions.size() >= MAX_IDLE_SESSIONS) {
+                return false;
+            }
+            idleSessions.addFirst(session);
+            return true;
+        }
+    }
+
+    /**
+     * Close the idle decoder sessions. The sessions used by reads in progress
+     * are closed once the reads complete if the pool is full, or are kept
+     * until the next call otherwise.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        List<Session> sessions;
+        synchronized (idleSessions) {
+            sessions = new ArrayList<>(idleSessions);
+            idleSessions.clear();
+        }
+        IOException failure = null;
+        for (Session session : sessions) {
+            try {
+                session.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * An open file with its ImageIO reader.
+     */
+    private static class Session implements Closeable {
+
+        private final FileInputStream fileStream;
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+
+        private Session(File imageFile) throws IOException {
+            fileStream = new FileInputStream(imageFile);
+            ImageInputStream iis = null;
+            try {
+                iis = ImageIO.createImageInputStream(fileStream.getChannel());
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (!readers.hasNext()) {
+                    throw new IOException(
+                            "No codec found for image " + imageFile);
+                }
+                reader = readers.next();
+                reader.setInput(iis);
+                stream = iis;
+            } catch (IOException | RuntimeException ex) {
+                if (iis != null) {
+                    iis.close();
                 }
-            } else {
-                throw new IOException("No codec found for image " + imageFile);
+                fileStream.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            try {
+                stream.close();
+            } finally {
+                fileStream.close();
             }
         }
     }
 
     // for compatibility with pre Java 8 source
-    private interface Function<T> {
+    interface Function<T> {
 
         T apply(ImageReader imageReader) throws IOException;
     }
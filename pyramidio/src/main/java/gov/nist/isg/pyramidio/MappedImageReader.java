@@ -0,0 +1,505 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Reader of the regions of an uncompressed image by memory mapping its file.
+ * The rows of the regions are copied in bulk from the mapped bytes, without
+ * any decoding.
+ *
+ * Supported files are the uncompressed TIFF and BigTIFF files, striped or
+ * tiled, and the raw files described by an ENVI header (file.hdr or
+ * file.ext.hdr). The pixels must be 8 bits gray, RGB or RGBA or 16 bits
+ * gray. Files bigger than 2GB are mapped in several parts.
+ *
+ * The file is closed once mapped. The mappings are released by close, after
+ * which the reads fail.
+ *
+ * @author Antoine Vandecreme
+ */
+public class MappedImageReader implements SubsampledImageReader,
+        Closeable {
+
+    // Size of the parts of the file mapped, each part also mapping the
+    // beginning of the next one so that a row is never split.
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    private final File imageFile;
+    private final int width;
+    private final int height;
+    private final int bands;
+    private final int bytesPerSample;
+    private final ByteOrder byteOrder;
+    private final boolean separatePlanes;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final int blocksAcross;
+    private final int blocksPerPlane;
+    private final long[] blockOffsets;
+    private final long blockRowStride;
+    private final int imageType;
+    private volatile MappedByteBuffer[] mappings;
+
+    /**
+     * Open an uncompressed TIFF file or a raw file with an ENVI header.
+     *
+     * @param imageFile the image file
+     * @throws IOException if the file can not be read or is not supported
+     */
+    public MappedImageReader(File imageFile) throws IOException {
+        this.imageFile = imageFile;
+        try (FileChannel channel = FileChannel.open(imageFile.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            header.flip();
+            Layout layout = TiffDirectory.isTiff(header)
+                    ? getTiffLayout(TiffDirectory.read(channel))
+                    : getEnviLayout(imageFile);
+
+            width = layout.width;
+            height = layout.height;
+            bands = layout.bands;
+            bytesPerSample = layout.bitsPerSample / 8;
+            byteOrder = layout.byteOrder;
+            separatePlanes = layout.separatePlanes;
+            blockWidth = layout.blockWidth;
+            blockHeight = layout.blockHeight;
+            blocksAcross = (int) ((width + (long) blockWidth - 1)
+                    / blockWidth);
+            int blocksDown = (int) ((height + (long) blockHeight - 1)
+                    / blockHeight);
+            blocksPerPlane = blocksAcross * blocksDown;
+            blockOffsets = layout.blockOffsets;
+            blockRowStride = (long) blockWidth
+                    * (separatePlanes ? 1 : bands) * bytesPerSample;
+            if (blockRowStride >= MAPPING_SIZE) {
+                throw new IOException("Rows of " + blockRowStride
+                        + " bytes are not supported.");
+            }
+            imageType = getImageType(bands, bytesPerSample);
+
+            long fileSize = channel.size();
+            for (int i = 0; i < blockOffsets.length; i++) {
+                int blockRow = (i % blocksPerPlane) / blocksAcross;
+                int rows = layout.tiled ? blockHeight : Math.min(
+                        blockHeight, height - blockRow * blockHeight);
+                if (blockOffsets[i] < 0 || blockOffsets[i]
+                        + rows * blockRowStride > fileSize) {
+                    throw new IOException("Truncated image file "
+                            + imageFile);
+                }
+            }
+            mappings = map(channel, fileSize);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long fileSize)
+            throws IOException {
+        int nbMappings = (int) Math.max(1,
+                (fileSize + MAPPING_SIZE - 1) / MAPPING_SIZE);
+        MappedByteBuffer[] mappings = new MappedByteBuffer[nbMappings];
+        for (int i = 0; i < nbMappings; i++) {
+            long start = i * MAPPING_SIZE;
+            // The overlap with the next part is smaller than the mapping size
+            long size = Math.min(fileSize - start, 2 * MAPPING_SIZE - 1);
+            mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start, size);
+        }
+        return mappings;
+    }
+
+    public File getImageFile() {
+        return imageFile;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BufferedImage read() throws IOException {
+        return read(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public BufferedImage read(Rectangle rectangle) throws IOException {
+        return read(rectangle, 1);
+    }
+
+    /**
+     * Read a region copying only the rows kept by the subsampling.
+     */
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        if (rectangle.isEmpty() || rectangle.x < 0 || rectangle.y < 0
+                || rectangle.x + rectangle.width > width
+                || rectangle.y + rectangle.height > height) {
+            throw new IllegalArgumentException("The region " + rectangle
+                    + " is not inside the image " + imageFile);
+        }
+        MappedByteBuffer[] mappings = this.mappings;
+        if (mappings == null) {
+            throw new IOException("The reader of " + imageFile
+                    + " is closed.");
+        }
+        int x = rectangle.x;
+        int y = rectangle.y;
+        int w = (rectangle.width + subsampling - 1) / subsampling;
+        int h = (rectangle.height + subsampling - 1) / subsampling;
+        BufferedImage image = new BufferedImage(w, h, imageType);
+        WritableRaster raster = image.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        Object data = bytesPerSample == 1
+                ? ((DataBufferByte) dataBuffer).getData()
+                : ((DataBufferUShort) dataBuffer).getData();
+        // The samples are in the order of the bands in the file and in the
+        // order of the band offsets in the image.
+        int[] bandOffsets = ((ComponentSampleModel) raster.getSampleModel())
+                .getBandOffsets();
+        Object samples = bands > 1 || subsampling > 1
+                ? (bytesPerSample == 1 ? new byte[rectangle.width * bands]
+                        : new short[rectangle.width])
+                : null;
+
+        int pixelSamples = separatePlanes ? 1 : bands;
+        int firstBlockRow = y / blockHeight;
+        int lastBlockRow = (y + rectangle.height - 1) / blockHeight;
+        int firstBlockCol = x / blockWidth;
+        int lastBlockCol = (x + rectangle.width - 1) / blockWidth;
+        for (int blockRow = firstBlockRow; blockRow <= lastBlockRow;
+                blockRow++) {
+            int blockY = blockRow * blockHeight;
+            int endY = Math.min(y + rectangle.height, blockY + blockHeight);
+            // First row of the block kept by the subsampling
+            int startY = y + (Math.max(y, blockY) - y + subsampling - 1)
+                    / subsampling * subsampling;
+            for (int blockCol = firstBlockCol; blockCol <= lastBlockCol;
+                    blockCol++) {
+                int blockX = blockCol * blockWidth;
+                int endX = Math.min(x + rectangle.width, blockX + blockWidth);
+                int startX = x + (Math.max(x, blockX) - x + subsampling - 1)
+                        / subsampling * subsampling;
+                if (startX >= endX) {
+                    continue;
+                }
+                int runPixels = endX - startX;
+                int pixels = (runPixels + subsampling - 1) / subsampling;
+                int block = blockRow * blocksAcross + blockCol;
+                for (int plane = 0; plane < (separatePlanes ? bands : 1);
+                        plane++) {
+                    long blockOffset = blockOffsets[
+                            plane * blocksPerPlane + block];
+                    for (int row = startY; row < endY; row += subsampling) {
+                        long offset = blockOffset
+                                + (row - blockY) * blockRowStride
+                                + (long) (startX - blockX) * pixelSamples
+                                * bytesPerSample;
+                        int index = ((row - y) / subsampling * w
+                                + (startX - x) / subsampling) * bands;
+                        if (samples == null) {
+                            copy(mappings, offset, data, index, runPixels);
+                            continue;
+                        }
+                        copy(mappings, offset, samples, 0,
+                                runPixels * pixelSamples);
+                        if (separatePlanes) {
+                            scatter(samples, 0, subsampling, pixels, data,
+                                    index + bandOffsets[plane]);
+                        } else {
+                            for (int band = 0; band < bands; band++) {
+                                scatter(samples, band, subsampling * bands,
+                                        pixels, data,
+                                        index + bandOffsets[band]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Release the mappings of the file. The memory is unmapped once the
+     * buffers are garbage collected.
+     */
+    @Override
+    public void close() {
+        mappings = null;
+    }
+
+    /**
+     * Copy samples from the file to an array.
+     */
+    private void copy(MappedByteBuffer[] mappings, long offset,
+            Object array, int index, int samples) {
+        int part = (int) (offset / MAPPING_SIZE);
+        ByteBuffer buffer = mappings[part].duplicate().order(byteOrder);
+        buffer.position((int) (offset - part * MAPPING_SIZE));
+        if (bytesPerSample == 1) {
+            buffer.get((byte[]) array, index, samples);
+        } else {
+            buffer.asShortBuffer().get((short[]) array, index, samples);
+        }
+    }
+
+    /**
+     * Copy the samples of one band, found every stride samples from first,
+     * to every bands-th element of an array from index.
+     */
+    private void scatter(Object samples, int first, int stride, int pixels,
+            Object array, int index) {
+        if (bytesPerSample == 1) {
+            byte[] source = (byte[]) samples;
+            byte[] destination = (byte[]) array;
+            for (int i = 0; i < pixels; i++) {
+                destination[index + i * bands] = source[first + i * stride];
+            }
+        } else {
+            short[] source = (short[]) samples;
+            short[] destination = (short[]) array;
+            for (int i = 0; i < pixels; i++) {
+                destination[index + i * bands] = source[first + i * stride];
+            }
+        }
+    }
+
+    private static int getImageType(int bands, int bytesPerSample) {
+        switch (bands) {
+            case 1:
+                return bytesPerSample == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                        : BufferedImage.TYPE_USHORT_GRAY;
+            case 3:
+                return BufferedImage.TYPE_3BYTE_BGR;
+            default:
+                return BufferedImage.TYPE_4BYTE_ABGR;
+        }
+    }
+
+    private static Layout getTiffLayout(TiffDirectory directory)
+            throws IOException {
+        if (directory.getCompression() != TiffDirectory.COMPRESSION_NONE) {
+            throw new IOException("Compressed TIFF files are not supported.");
+        }
+        if (directory.getSampleFormat() != 1) {
+            throw new IOException(
+                    "Only unsigned integer samples are supported.");
+        }
+        int photometric = directory.getPhotometric();
+        int samples = directory.getSamplesPerPixel();
+        if (photometric != -1 && !(photometric == 1 && samples == 1)
+                && !(photometric == 2 && samples > 1)) {
+            throw new IOException("The photometric interpretation "
+                    + photometric + " is not supported.");
+        }
+        Layout layout = new Layout(directory.getWidth(),
+                directory.getHeight(), samples,
+                directory.getBitsPerSample(), directory.getByteOrder());
+        layout.separatePlanes = samples > 1
+                && directory.getPlanarConfiguration()
+                == TiffDirectory.PLANAR_SEPARATE;
+        layout.tiled = directory.isTiled();
+        layout.blockWidth = directory.getBlockWidth();
+        layout.blockHeight = directory.getBlockHeight();
+        layout.blockOffsets = directory.getOffsets();
+        return layout;
+    }
+
+    private static Layout getEnviLayout(File imageFile) throws IOException {
+        File headerFile = new File(imageFile.getPath() + ".hdr");
+        if (!headerFile.isFile()) {
+            headerFile = new File(FilenameUtils.removeExtension(
+                    imageFile.getPath()) + ".hdr");
+        }
+        if (!headerFile.isFile()) {
+            throw new IOException("No ENVI header found for raw image "
+                    + imageFile);
+        }
+        Map<String, String> header = parseEnviHeader(headerFile);
+        int dataType = getEnviInt(header, "data type", headerFile);
+        if (dataType != 1 && dataType != 12) {
+            throw new IOException("The ENVI data type " + dataType
+                    + " is not supported, only 1 (8 bits) and 12 "
+                    + "(16 bits unsigned) are.");
+        }
+        String byteOrder = header.get("byte order");
+        Layout layout = new Layout(
+                getEnviInt(header, "samples", headerFile),
+                getEnviInt(header, "lines", headerFile),
+                getEnviInt(header, "bands", headerFile),
+                dataType == 1 ? 8 : 16,
+                "1".equals(byteOrder)
+                        ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        long headerOffset = header.containsKey("header offset")
+                ? getEnviInt(header, "header offset", headerFile) : 0;
+
+        String interleave = header.get("interleave");
+        interleave = interleave == null
+                ? "bsq" : interleave.toLowerCase(Locale.ROOT);
+        long rowBytes = (long) layout.width * layout.bitsPerSample / 8;
+        layout.blockWidth = layout.width;
+        switch (interleave) {
+            case "bip":
+                layout.blockHeight = layout.height;
+                layout.blockOffsets = new long[]{headerOffset};
+                break;
+            case "bsq":
+                layout.separatePlanes = true;
+                layout.blockHeight = layout.height;
+                layout.blockOffsets = new long[layout.bands];
+                for (int band = 0; band < layout.bands; band++) {
+                    layout.blockOffsets[band] = headerOffset
+                            + (long) band * layout.height * rowBytes;
+                }
+                break;
+            case "bil":
+                // Each row of each band is a block
+                layout.separatePlanes = true;
+                layout.blockHeight = 1;
+                layout.blockOffsets = new long[
+                        layout.bands * layout.height];
+                for (int band = 0; band < layout.bands; band++) {
+                    for (int row = 0; row < layout.height; row++) {
+                        layout.blockOffsets[band * layout.height + row]
+                                = headerOffset
+                                + ((long) row * layout.bands + band)
+                                * rowBytes;
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unknown ENVI interleave "
+                        + interleave);
+        }
+        return layout;
+    }
+
+    private static Map<String, String> parseEnviHeader(File headerFile)
+            throws IOException {
+        String text = new String(Files.readAllBytes(headerFile.toPath()),
+                StandardCharsets.ISO_8859_1);
+        if (!text.trim().startsWith("ENVI")) {
+            throw new IOException("Invalid ENVI header " + headerFile);
+        }
+        Map<String, String> header = new HashMap<>();
+        int index = text.indexOf('\n');
+        while (index >= 0 && index < text.length()) {
+            int equal = text.indexOf('=', index);
+            if (equal < 0) {
+                break;
+            }
+            String key = text.substring(index, equal).trim()
+                    .toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+            int start = equal + 1;
+            while (start < text.length()
+                    && (text.charAt(start) == ' '
+                    || text.charAt(start) == '\t')) {
+                start++;
+            }
+            int end;
+            if (start < text.length() && text.charAt(start) == '{') {
+                end = text.indexOf('}', start);
+                end = end < 0 ? text.length() : end + 1;
+            } else {
+                end = text.indexOf('\n', start);
+                end = end < 0 ? text.length() : end;
+            }
+            header.put(key, text.substring(start, end).trim());
+            index = end;
+        }
+        return header;
+    }
+
+    private static int getEnviInt(Map<String, String> header, String key,
+            File headerFile) throws IOException {
+        String value = header.get(key);
+        if (value == null) {
+            throw new IOException("Missing " + key + " in ENVI header "
+                    + headerFile);
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid " + key + " in ENVI header "
+                    + headerFile, ex);
+        }
+    }
+
+    /**
+     * Placement of the samples in the file.
+     */
+    private static class Layout {
+
+        private final int width;
+        private final int height;
+        private final int bands;
+        private final int bitsPerSample;
+        private final ByteOrder byteOrder;
+        private boolean separatePlanes;
+        private boolean tiled;
+        private int blockWidth;
+        private int blockHeight;
+        private long[] blockOffsets;
+
+        private Layout(int width, int height, int bands, int bitsPerSample,
+                ByteOrder byteOrder) throws IOException {
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Invalid image size " + width + "x"
+                        + height);
+            }
+            if (!(bitsPerSample == 8 && (bands == 1 || bands == 3
+                    || bands == 4)) && !(bitsPerSample == 16 && bands == 1)) {
+                throw new IOException(bands + " samples of " + bitsPerSample
+                        + " bits per pixel are not supported.");
+            }
+            this.width = width;
+            this.height = height;
+            this.bands = bands;
+            this.bitsPerSample = bitsPerSample;
+            this.byteOrder = byteOrder;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps track of the estimated number of bytes used by the images held by the
+ * builds so that they stay under a budget.
+ *
+ * Reservations which are optional, such as forking subtrees, should use
+ * tryReserve and fall back to a cheaper strategy when it fails. Mandatory
+ * reservations use reserve which waits for the memory to be released. A
+ * reservation bigger than the budget is granted once nothing else is reserved.
+ *
+ * @author Antoine Vandecreme
+ */
+class MemoryGovernor {
+
+    private final long budget;
+    private long reserved;
+
+    MemoryGovernor(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException(
+                    "The memory budget must be positive.");
+        }
+        this.budget = budget;
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Reserve the specified number of bytes if available.
+     *
+     * @param bytes the number of bytes
+     * @return true if the bytes have been reserved
+     */
+    synchronized boolean tryReserve(long bytes) {
+        if (!canReserve(bytes)) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Reserve the specified number of bytes, waiting for them to be available.
+     * When called from a ForkJoinPool, the pool is allowed to start another
+     * thread while waiting.
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedException
+     */
+    void reserve(final long bytes) throws InterruptedException {
+        if (tryReserve(bytes)) {
+            return;
+        }
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean reserved;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                synchronized (MemoryGovernor.this) {
+                    while (!canReserve(bytes)) {
+                        MemoryGovernor.this.wait();
+                    }
+                    MemoryGovernor.this.reserved += bytes;
+                }
+                reserved = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                if (!reserved) {
+                    reserved = tryReserve(bytes);
+                }
+                return reserved;
+            }
+        });
+    }
+
+    /**
+     * Reserve the specified number of bytes while already holding a
+     * reservation. The held bytes are given back while waiting, so that
+     * callers holding memory while waiting for each other cannot deadlock.
+     * The held bytes are reserved again when this method returns, even if it
+     * fails.
+     *
+     * @param bytes the number of bytes
+     * @param heldBytes the number of bytes already reserved by the caller
+     * @throws InterruptedException
+     */
+    void reserve(long bytes, long heldBytes) throws InterruptedException {
+        if (tryReserve(bytes)) {
+            return;
+        }
+        release(heldBytes);
+        boolean reserved = false;
+        try {
+            reserve(heldBytes + bytes);
+            reserved = true;
+        } finally {
+            if (!reserved) {
+                synchronized (this) {
+                    this.reserved += heldBytes;
+                }
+            }
+        }
+    }
+
+    synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    private boolean canReserve(long bytes) {
+        return reserved == 0 || reserved + bytes <= budget;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Strip reader decoding a PNG file in a single pass, keeping the inflater
+ * state between strips.
+ *
+ * Only non interlaced 8 bits gray, RGB and RGBA images and 16 bits gray
+ * images are supported, which are decoded to the same image types than the
+ * ImageIO PNG reader.
+ *
+ * @author Antoine Vandecreme
+ */
+class PngStripReader extends StripReader {
+
+    private static final byte[] SIGNATURE
+            = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int RGBA = 6;
+
+    private final DataInputStream pixels;
+    private final Inflater inflater;
+    private final int colorType;
+    private final int bitDepth;
+    private final int bytesPerPixel;
+    private byte[] previousRow;
+    private byte[] currentRow;
+
+    private PngStripReader(DataInputStream pixels, Inflater inflater,
+            int width, int height, int colorType, int bitDepth) {
+        super(width, height);
+        this.pixels = pixels;
+        this.inflater = inflater;
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        int channels = colorType == RGB ? 3 : colorType == RGBA ? 4 : 1;
+        this.bytesPerPixel = channels * bitDepth / 8;
+        previousRow = new byte[width * bytesPerPixel];
+        currentRow = new byte[width * bytesPerPixel];
+    }
+
+    /**
+     * Open a PNG strip reader on the specified file.
+     *
+     * @param file the file to read
+     * @return the strip reader or null if the file is not a PNG file which
+     * can be decoded by this reader
+     * @throws IOException
+     */
+    static PngStripReader open(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 65536));
+        boolean opened = false;
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            try {
+                input.readFully(signature);
+            } catch (EOFException ex) {
+                return null;
+            }
+            if (!Arrays.equals(signature, SIGNATURE)) {
+                return null;
+            }
+
+            int length = input.readInt();
+            if (input.readInt() != chunkType("IHDR") || length != 13) {
+                throw new IOException("Invalid PNG header in " + file);
+            }
+            int width = input.readInt();
+            int height = input.readInt();
+            int bitDepth = input.readUnsignedByte();
+            int colorType = input.readUnsignedByte();
+            input.readUnsignedByte(); // Compression method, always deflate
+            input.readUnsignedByte(); // Filter method, always adaptive
+            int interlace = input.readUnsignedByte();
+            input.readInt(); // CRC
+
+            boolean supported = interlace == 0
+                    && ((bitDepth == 8 && (colorType == GRAY
+                    || colorType == RGB || colorType == RGBA))
+                    || (bitDepth == 16 && colorType == GRAY));
+            if (!supported) {
+                return null;
+            }
+
+            // Skip the chunks up to the first IDAT one
+            while (true) {
+                length = input.readInt();
+                int type = input.readInt();
+                if (type == chunkType("IDAT")) {
+                    break;
+                }
+                if (type == chunkType("tRNS") || type == chunkType("iCCP")) {
+                    // Those chunks change the image type produced by ImageIO
+                    return null;
+                }
+                skipFully(input, length + 4L);
+            }
+
+            // The inflater is not released by the stream which did not
+            // create it
+            Inflater inflater = new Inflater();
+            DataInputStream pixels = new DataInputStream(
+                    new InflaterInputStream(
+                            new IdatInputStream(input, length),
+                            inflater, 65536));
+            opened = true;
+            return new PngStripReader(pixels, inflater,
+                    width, height, colorType, bitDepth);
+        } finally {
+            if (!opened) {
+                input.close();
+            }
+        }
+    }
+
+    @Override
+    protected BufferedImage readRows(int y, int rows) throws IOException {
+        int width = getWidth();
+        int imageType = bitDepth == 16 ? BufferedImage.TYPE_USHORT_GRAY
+                : colorType == GRAY ? BufferedImage.TYPE_BYTE_GRAY
+                : colorType == RGB ? BufferedImage.TYPE_3BYTE_BGR
+                : BufferedImage.TYPE_4BYTE_ABGR;
+        BufferedImage strip = new BufferedImage(width, rows, imageType);
+
+        for (int row = 0; row < rows; row++) {
+            readRow();
+            if (bitDepth == 16) {
+                short[] data = ((DataBufferUShort) strip.getRaster()
+                        .getDataBuffer()).getData();
+                int offset = row * width;
+                for (int x = 0; x < width; x++) {
+                    data[offset + x] = (short) (((currentRow[2 * x] & 0xff)
+                            << 8) | (currentRow[2 * x + 1] & 0xff));
+                }
+            } else {
+                byte[] data = ((DataBufferByte) strip.getRaster()
+                        .getDataBuffer()).getData();
+                int offset = row * width * bytesPerPixel;
+                if (colorType == GRAY) {
+                    System.arraycopy(currentRow, 0, data, offset, width);
+                } else {
+                    // ImageIO uses BGR and ABGR orderings
+                    for (int x = 0; x < width; x++) {
+                        int i = x * bytesPerPixel;
+                        int o = offset + i;
+                        if (colorType == RGB) {
+                            data[o] = currentRow[i + 2];
+                            data[o + 1] = currentRow[i + 1];
+                            data[o + 2] = currentRow[i];
+                        } else {
+                            data[o] = currentRow[i + 3];
+                            data[o + 1] = currentRow[i + 2];
+                            data[o + 2] = currentRow[i + 1];
+                            data[o + 3] = currentRow[i];
+                        }
+                    }
+                }
+            }
+        }
+        return strip;
+    }
+
+    private void readRow() throws IOException {
+        byte[] swap = previousRow;
+        previousRow = currentRow;
+        currentRow = swap;
+
+        int filter = pixels.readUnsignedByte();
+        pixels.readFully(currentRow);
+        byte[] cur = currentRow;
+        byte[] prev = previousRow;
+        int bpp = bytesPerPixel;
+        int length = cur.length;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < length; i++) {
+                    cur[i] += cur[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    cur[i] += prev[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < bpp; i++) {
+                    cur[i] += (prev[i] & 0xff) >> 1;
+                }
+                for (int i = bpp; i < length; i++) {
+                    cur[i] += ((cur[i - bpp] & 0xff) + (prev[i] & 0xff)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < bpp; i++) {
+                    cur[i] += prev[i];
+                }
+                for (int i = bpp; i < length; i++) {
+                    cur[i] += paeth(cur[i - bpp] & 0xff, prev[i] & 0xff,
+                            prev[i - bpp] & 0xff);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type " + filter);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            pixels.close();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int chunkType(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16)
+                | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static void skipFully(DataInputStream input, long n)
+            throws IOException {
+        while (n > 0) {
+            long skipped = input.skip(n);
+            if (skipped <= 0) {
+                input.readByte();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Stream of the concatenated data of consecutive IDAT chunks.
+     */
+    private static class IdatInputStream extends InputStream {
+
+        private final DataInputStream input;
+        private int remaining;
+        private boolean ended;
+
+        private IdatInputStream(DataInputStream input, int firstChunkLength) {
+            this.input = input;
+            this.remaining = firstChunkLength;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !ended) {
+                input.readInt(); // CRC of the current chunk
+                int length = input.readInt();
+                if (input.readInt() != chunkType("IDAT")) {
+                    ended = true;
+                } else {
+                    remaining = length;
+                }
+            }
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return input.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = input.read(b, off, Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated PNG data.");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
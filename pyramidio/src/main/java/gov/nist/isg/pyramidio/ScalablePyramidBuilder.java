@@ -12,8 +12,21 @@
 package gov.nist.isg.pyramidio;
 
 import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.encoding.ImageIOTileEncoder;
+import gov.nist.isg.pyramidio.encoding.TileEncoder;
+import gov.nist.isg.pyramidio.layout.DeepZoomLayout;
+import gov.nist.isg.pyramidio.layout.TileLayout;
+import gov.nist.isg.pyramidio.resampling.BicubicResampler;
+import gov.nist.isg.pyramidio.resampling.Resampler;
+import java.awt.Rectangle;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import javax.imageio.ImageIO;
+import org.apache.commons.io.FilenameUtils;
 
 /**
  * Pyramid builder class which is scalable for very large images not fitting in
@@ -32,6 +45,20 @@ public class ScalablePyramidBuilder {
     private final String tileFormat;
     private final String descriptorExt;
 
+    private int tileWriterThreads;
+    private int tileWriterQueueSize;
+    private ExecutorService ioExecutor;
+    private boolean resumable;
+    private long memoryBudget;
+    private Resampler resampler = new BicubicResampler();
+    private boolean directDownsampling;
+    private TileEncoder tileEncoder;
+    private List<TileLayout> layouts;
+    private BuildListener buildListener;
+    private int readCoalescing;
+    private boolean detectUniformTiles;
+    private boolean sparseOutput;
+
     public ScalablePyramidBuilder() {
         this(254, 1, "png", "dzi");
     }
@@ -50,9 +77,238 @@ public class ScalablePyramidBuilder {
         this.overlap = overlap;
         this.tileFormat = tileFormat;
         this.descriptorExt = descriptorExt;
+        this.tileEncoder = new ImageIOTileEncoder(tileFormat);
+        this.layouts = Arrays.<TileLayout>asList(
+                new DeepZoomLayout(descriptorExt));
         ImageIO.setUseCache(false);
     }
 
+    /**
+     * Set the number of threads dedicated to encoding and writing the tiles.
+     * When set, the threads building the pyramid hand the tiles over to
+     * those threads instead of writing them, so that downsampling continues
+     * while the tiles are encoded.
+     *
+     * @param tileWriterThreads the number of writer threads. Set to 0 to
+     * write the tiles on the building threads. Default to 0.
+     */
+    public void setTileWriterThreads(int tileWriterThreads) {
+        if (tileWriterThreads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of writer threads cannot be negative.");
+        }
+        this.tileWriterThreads = tileWriterThreads;
+    }
+
+    /**
+     * Set the maximum number of tiles waiting to be written. When the queue is
+     * full, the threads building the pyramid wait for the writer threads
+     * which caps the memory used by the pending tiles. Ignored if no writer
+     * threads are set.
+     *
+     * @param tileWriterQueueSize the queue size. Set to 0 to use twice the
+     * number of writer threads. Default to 0.
+     */
+    public void setTileWriterQueueSize(int tileWriterQueueSize) {
+        if (tileWriterQueueSize < 0) {
+            throw new IllegalArgumentException(
+                    "The writer queue size cannot be negative.");
+        }
+        this.tileWriterQueueSize = tileWriterQueueSize;
+    }
+
+    /**
+     * Run the blocking I/O of the builds on an executor: the reads of the
+     * input image and of the tiles read back, and the appends of the encoded
+     * tiles to the archiver. This is intended for inputs and archivers on a
+     * network, such as HDFS or S3. The parallelism can then stay sized to the
+     * number of cores for the composition, resizing and encoding of the
+     * tiles, while the executor runs as many concurrent I/O as it allows.
+     * The pool starts spare threads for at most as many threads waiting for a
+     * read as its parallelism.
+     *
+     * On Java 21 and later, a virtual thread per task executor is a natural
+     * choice. The executor is not shut down by the builder. The number of
+     * appends waiting for the executor is bounded by the tile writer queue
+     * size, or 64 if not set.
+     *
+     * @param ioExecutor the executor or null to do the I/O on the threads
+     * building the pyramid. Default to null.
+     */
+    public void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Make the builds resumable. The subtrees of tiles completely written are
+     * recorded in a journal stored in the archive next to the tiles (in the
+     * fileName_journal folder, in a partition-N subfolder for the
+     * partitions). When a build is restarted with the same
+     * archive, the recorded subtrees are skipped and the tiles needed to
+     * compute their parents are read back from the archive instead of being
+     * computed from the input image.
+     *
+     * Resumable builds require an archiver implementing
+     * ReadableFilesArchiver, such as DirectoryArchiver. It is ignored by
+     * buildPyramidByStrips.
+     *
+     * @param resumable true to make the builds resumable. Default to false.
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Set the maximum number of bytes the images held by a build should use.
+     * The estimate accounts for the bytes per pixel of the input image, the
+     * tiles held by each thread and the tiles waiting to be written.
+     *
+     * When set, the portion of the input image which is cached is the biggest
+     * one fitting in the budget and the maxImageCachePercentage parameter is
+     * ignored. The subtrees are computed sequentially instead of in parallel
+     * when forking them would exceed the budget.
+     *
+     * The budget does not include the memory used by the image reader while
+     * decoding the input image, nor the memory used by the tile encoders.
+     *
+     * @param memoryBudget the budget in bytes. Set to 0 to not limit the
+     * memory. Default to 0.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "The memory budget cannot be negative.");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Read the input image by blocks of k x k tiles at max level instead of
+     * reading each tile separately. Decoders such as the JPEG and PNG ones
+     * have to decode all the rows above a region to read it, so reading
+     * bigger regions saves most of the decoding. Not used for the subtrees
+     * whose region is cached.
+     *
+     * @param readCoalescing the number of tiles k in each dimension of a
+     * block, a power of 2. 1 to read each tile separately. Default to 0,
+     * which chooses k from the tile size and the format of the input file of
+     * a DirectImageReader.
+     */
+    public void setReadCoalescing(int readCoalescing) {
+        if (readCoalescing < 0
+                || (readCoalescing & (readCoalescing - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "The read coalescing must be 0 or a power of 2.");
+        }
+        this.readCoalescing = readCoalescing;
+    }
+
+    /**
+     * Set the listener notified of the progress of the builds, such as a
+     * BuildMetrics instance.
+     *
+     * @param buildListener the listener or null to remove it
+     */
+    public void setBuildListener(BuildListener buildListener) {
+        this.buildListener = buildListener;
+    }
+
+    /**
+     * Set the resampler used to compute each tile from the 4 tiles of the next
+     * level. The BoxResampler is much faster than the default
+     * BicubicResampler while the LanczosResampler is sharper but slower.
+     *
+     * @param resampler the resampler. Default to a BicubicResampler.
+     */
+    public void setResampler(Resampler resampler) {
+        if (resampler == null) {
+            throw new IllegalArgumentException("The resampler cannot be null.");
+        }
+        this.resampler = resampler;
+    }
+
+    /**
+     * Set the encoder of the tiles. An ImageIOTileEncoder can be configured
+     * with the compression quality and type of the tiles.
+     *
+     * @param tileEncoder the encoder, which must produce files in the tile
+     * format. Default to an ImageIOTileEncoder without compression settings.
+     */
+    public void setTileEncoder(TileEncoder tileEncoder) {
+        if (tileEncoder == null) {
+            throw new IllegalArgumentException(
+                    "The tile encoder cannot be null.");
+        }
+        this.tileEncoder = tileEncoder;
+    }
+
+    /**
+     * Set the layouts in which the pyramid is written, such as DeepZoom,
+     * Zoomify and IIIF. All the layouts are written in a single build, the
+     * tiles being encoded once for all the layouts with the same overlap.
+     *
+     * Resumable builds and partition merges read back the tiles of the first
+     * layout, which must then be a DeepZoomLayout. Sparse output is only
+     * supported by DeepZoom layouts.
+     *
+     * @param layouts the layouts. Default to a DeepZoomLayout with the
+     * descriptor extension of this builder.
+     */
+    public void setLayouts(TileLayout... layouts) {
+        if (layouts.length == 0) {
+            throw new IllegalArgumentException(
+                    "At least one layout is required.");
+        }
+        this.layouts = new ArrayList<>(Arrays.asList(layouts));
+    }
+
+    /**
+     * Compute each tile by averaging blocks of 2x2 pixels of the 4 tiles of
+     * the next level, reading their pixels directly. This avoids assembling
+     * the 4 tiles in an intermediate image and the multiple bicubic resizing
+     * passes, at the cost of a slightly blurrier result. When set, the
+     * resampler is not used.
+     *
+     * @param directDownsampling true to average blocks of 2x2 pixels. Default
+     * to false.
+     */
+    public void setDirectDownsampling(boolean directDownsampling) {
+        this.directDownsampling = directDownsampling;
+    }
+
+    /**
+     * Detect the tiles whose pixels all have the same value, such as the
+     * background of mosaics. A tile whose 4 children are uniform with the same
+     * value is filled with that value instead of being downsampled, and the
+     * uniform tiles are encoded only once per value and dimensions.
+     *
+     * The detection is done on integer images only.
+     *
+     * @param detectUniformTiles true to detect the uniform tiles. Default to
+     * false.
+     */
+    public void setUniformTileDetection(boolean detectUniformTiles) {
+        this.detectUniformTiles = detectUniformTiles;
+    }
+
+    /**
+     * Do not write the uniform tiles but record them in an index stored in the
+     * fileName_sparse folder next to the descriptor. DeepZoomImageReader
+     * synthesizes the tiles of the index without reading any file. Other
+     * DeepZoom viewers will not find those tiles. The tiles of level 0 are
+     * always written. Implies the uniform tile detection.
+     *
+     * Sparse output is not supported by resumable builds and updates. When
+     * rebuilding a pyramid at the same location, the previous index should
+     * be deleted first.
+     *
+     * @param sparseOutput true to not write the uniform tiles. Default to
+     * false.
+     */
+    public void setSparseOutput(boolean sparseOutput) {
+        this.sparseOutput = sparseOutput;
+    }
+
     /**
      * Build the DeepZoom pyramid from the given image reader.
      *
@@ -89,14 +345,227 @@ public class ScalablePyramidBuilder {
      * @param parallelism the parallelism level
      * @param maxImageCachePercentage the maximum portion of the input image
      * which should be cached in RAM. Set to 0 for no cache, 1 to cache the
-     * entire image. Default to 0.
+     * entire image. Default to 0. Ignored if a memory budget is set.
      * @throws IOException
      */
     public void buildPyramid(PartialImageReader imageReader, String fileName,
             FilesArchiver archiver, int parallelism, float maxImageCachePercentage) throws IOException {
-        new TileBuilder(tileSize, overlap, tileFormat, descriptorExt,
-                imageReader, fileName, archiver)
-                .build(parallelism, maxImageCachePercentage);
+        TileBuilder tileBuilder = createTileBuilder(
+                imageReader, fileName, archiver);
+        tileBuilder.writeDescriptor();
+        tileBuilder.build(parallelism, maxImageCachePercentage);
+    }
+
+    /**
+     * Estimate the tile counts, bytes, memory and duration of a build of the
+     * pyramid with buildPyramid, without building it. Only a sample tile of
+     * the image is read.
+     *
+     * @param imageReader the image reader used to generate the deep zoom image
+     * @param parallelism the parallelism level
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM. Ignored if a memory budget is set.
+     * @return the plan of the build
+     * @throws IOException
+     */
+    public BuildPlan plan(PartialImageReader imageReader, int parallelism,
+            float maxImageCachePercentage) throws IOException {
+        return createTileBuilder(imageReader, "", null)
+                .plan(parallelism, maxImageCachePercentage);
     }
 
+    /**
+     * Build the DeepZoom pyramid reading the image only once, from top to
+     * bottom, in horizontal strips. Each level is downsampled from the level
+     * above it with the resampler, or by averaging blocks of 2x2 pixels with
+     * direct downsampling. The strips being resized separately, the tiles
+     * may slightly differ from the ones of the other builds below the
+     * maximum level.
+     *
+     * This is intended for images which can not be randomly accessed
+     * efficiently and which are too big to be cached in memory. The memory
+     * used is proportional to the image width times the tile size instead of
+     * the image area. Non interlaced PNG images read by a DirectImageReader
+     * are decoded in a single pass. Non-tiled TIFF images are also read
+     * efficiently, the ImageIO TIFF decoder only decoding the strips of the
+     * file overlapping each strip read. The other formats decoded
+     * sequentially, such as JPEG, GIF and BMP, are decoded again from their
+     * first row for each strip.
+     *
+     * @param imageReader the image reader used to generate the deep zoom image
+     * @param fileName the filename of the image
+     * @param archiver the archiver to use to store the image
+     * @throws IOException
+     */
+    public void buildPyramidByStrips(PartialImageReader imageReader,
+            String fileName, FilesArchiver archiver) throws IOException {
+        TileBuilder tileBuilder = createTileBuilder(
+                imageReader, fileName, archiver);
+        tileBuilder.writeDescriptor();
+        tileBuilder.buildByStrips();
+    }
+
+    /**
+     * Update an existing DeepZoom pyramid after a region of the image changed.
+     * Only the tiles at the maximum level overlapping the dirty region and
+     * their ancestors up to level 0 are rebuilt. The other tiles needed to
+     * compute the ancestors are read from the existing pyramid.
+     *
+     * The tile size, overlap and format of this builder must match the ones
+     * of the existing pyramid. The tiles are written to the archiver under the
+     * name of the existing pyramid, so to update the pyramid in place, the
+     * archiver should write in the folder containing the existing pyramid.
+     *
+     * @param imageReader the image reader of the updated image
+     * @param existingPyramid the existing pyramid of the image
+     * @param dirtyRegion the region of the image which changed
+     * @param archiver the archiver to use to store the updated tiles
+     * @param parallelism the parallelism level
+     * @throws IOException
+     */
+    public void updatePyramid(PartialImageReader imageReader,
+            DeepZoomImageReader existingPyramid, Rectangle dirtyRegion,
+            FilesArchiver archiver, int parallelism) throws IOException {
+        if (existingPyramid.getWidth() != imageReader.getWidth()
+                || existingPyramid.getHeight() != imageReader.getHeight()) {
+            throw new IllegalArgumentException("The existing pyramid is "
+                    + existingPyramid.getWidth() + "x"
+                    + existingPyramid.getHeight() + " but the image is "
+                    + imageReader.getWidth() + "x" + imageReader.getHeight());
+        }
+        if (existingPyramid.getTileSize() != tileSize
+                || existingPyramid.getOverlap() != overlap
+                || !existingPyramid.getFormat().equals(tileFormat)) {
+            throw new IllegalArgumentException("The existing pyramid tile "
+                    + "size, overlap or format does not match the builder's.");
+        }
+        String fileName = FilenameUtils.getBaseName(
+                existingPyramid.getDziFile().getName());
+        TileBuilder tileBuilder = createTileBuilder(
+                imageReader, fileName, archiver);
+        tileBuilder.setResumable(false);
+        tileBuilder.setUniformTiles(detectUniformTiles, false);
+        tileBuilder.setDirtyRegion(dirtyRegion, existingPyramid);
+        tileBuilder.writeDescriptor();
+        tileBuilder.build(parallelism, 0);
+    }
+
+    /**
+     * Get the level at which a pyramid should be split to be built by the
+     * specified number of partitions. This is the highest level with about 4
+     * subtrees per partition.
+     *
+     * @param imageReader the image reader used to generate the deep zoom image
+     * @param partitionCount the number of partitions
+     * @return the partition level
+     * @throws IOException
+     */
+    public int getPartitionLevel(PartialImageReader imageReader,
+            int partitionCount) throws IOException {
+        return createTileBuilder(imageReader, "", null)
+                .getPartitionLevel(partitionCount);
+    }
+
+    /**
+     * Build one partition of the DeepZoom pyramid. The pyramid is split at the
+     * partition level into independent subtrees, distributed among the
+     * partitions in a round robin fashion. Each partition can be built by a
+     * different process or machine writing to a shared location. Once all
+     * the partitions are built, mergePyramidPartitions must be called to build
+     * the levels above the partition level and the descriptor.
+     *
+     * @param imageReader the image reader used to generate the deep zoom image
+     * @param fileName the filename of the image
+     * @param archiver the archiver to use to store the image
+     * @param partitionLevel the level at which the pyramid is split
+     * @param partition the index of the partition to build, starting at 0
+     * @param partitionCount the number of partitions
+     * @param parallelism the parallelism level
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM.
+     * @throws IOException
+     */
+    public void buildPyramidPartition(PartialImageReader imageReader,
+            String fileName, FilesArchiver archiver, int partitionLevel,
+            int partition, int partitionCount, int parallelism,
+            float maxImageCachePercentage) throws IOException {
+        createTileBuilder(imageReader, fileName, archiver).buildPartition(
+                partitionLevel, partition, partitionCount, parallelism,
+                maxImageCachePercentage);
+    }
+
+    /**
+     * Build the levels above the partition level from the root tiles written
+     * by the partitions, and write the descriptor.
+     *
+     * With a lossy tile format, the levels above the partition level are
+     * computed from the decoded root tiles and can therefore slightly differ
+     * from the ones of a build in a single process.
+     *
+     * @param imageReader the image reader used to generate the deep zoom
+     * image. Only its dimensions are used.
+     * @param fileName the filename of the image
+     * @param archiver the archiver where the partitions have been stored. It
+     * must implement ReadableFilesArchiver.
+     * @param partitionLevel the level at which the pyramid has been split
+     * @param parallelism the parallelism level
+     * @throws IOException
+     */
+    public void mergePyramidPartitions(PartialImageReader imageReader,
+            String fileName, FilesArchiver archiver, int partitionLevel,
+            int parallelism) throws IOException {
+        TileBuilder tileBuilder = createTileBuilder(
+                imageReader, fileName, archiver);
+        tileBuilder.setResumable(false);
+        tileBuilder.writeDescriptor();
+        tileBuilder.merge(partitionLevel, parallelism);
+    }
+
+    /**
+     * Build the DeepZoom pyramid as a job of a batch, computing the tiles on
+     * the pool of the batch.
+     *
+     * @param imageReader the image reader used to generate the deep zoom image
+     * @param fileName the filename of the image
+     * @param archiver the archiver to use to store the image
+     * @param pool the pool shared by the jobs of the batch
+     * @param governor the memory governor shared by the jobs of the batch or
+     * null to use the memory budget of this builder
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM. Ignored if a memory budget is set.
+     * @throws IOException
+     */
+    void buildPyramid(PartialImageReader imageReader, String fileName,
+            FilesArchiver archiver, ForkJoinPool pool,
+            MemoryGovernor governor, float maxImageCachePercentage)
+            throws IOException {
+        TileBuilder tileBuilder = createTileBuilder(
+                imageReader, fileName, archiver);
+        tileBuilder.setForkJoinPool(pool);
+        if (governor != null) {
+            tileBuilder.setMemoryGovernor(governor);
+        }
+        tileBuilder.writeDescriptor();
+        tileBuilder.build(pool.getParallelism(), maxImageCachePercentage);
+    }
+
+    private TileBuilder createTileBuilder(PartialImageReader imageReader,
+            String fileName, FilesArchiver archiver) throws IOException {
+        TileBuilder tileBuilder = new TileBuilder(tileSize, overlap,
+                tileFormat, descriptorExt, imageReader, fileName, archiver);
+        tileBuilder.setTileWriter(tileWriterThreads, tileWriterQueueSize);
+        tileBuilder.setIoExecutor(ioExecutor);
+        tileBuilder.setResumable(resumable);
+        tileBuilder.setUniformTiles(detectUniformTiles, sparseOutput);
+        tileBuilder.setResampler(resampler);
+        tileBuilder.setTileEncoder(tileEncoder);
+        tileBuilder.setLayouts(layouts);
+        tileBuilder.setBuildListener(buildListener);
+        tileBuilder.setReadCoalescing(readCoalescing);
+        tileBuilder.setDirectDownsampling(directDownsampling);
+        if (memoryBudget > 0) {
+            tileBuilder.setMemoryGovernor(new MemoryGovernor(memoryBudget));
+        }
+        return tileBuilder;
+    }
 }
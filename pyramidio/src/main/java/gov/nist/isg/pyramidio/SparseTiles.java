@@ -0,0 +1,143 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the uniform tiles of a pyramid which have not been written.
+ *
+ * The index is stored in the fileName_sparse folder next to the descriptor.
+ * Each build writes its own file in the folder, listing
+ * "level column row sample0 sample1..." lines.
+ *
+ * @author Antoine Vandecreme
+ */
+class SparseTiles {
+
+    private static final Logger logger = Logger.getLogger(
+            SparseTiles.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String DIRECTORY_SUFFIX = "_sparse";
+
+    private final Map<Long, int[]> tiles = new HashMap<>();
+
+    synchronized void add(int level, int column, int row, int[] pixel) {
+        tiles.put(getKey(level, column, row), pixel);
+    }
+
+    /**
+     * Get the pixel of a uniform tile.
+     *
+     * @return the samples of the pixel or null if the tile is not in the index
+     */
+    synchronized int[] get(int level, int column, int row) {
+        return tiles.get(getKey(level, column, row));
+    }
+
+    synchronized boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    /**
+     * Write the index in the archive.
+     *
+     * @param archiver the archiver
+     * @param path the path of the file in the archive
+     * @throws IOException
+     */
+    synchronized void write(FilesArchiver archiver, String path)
+            throws IOException {
+        archiver.appendFile(path, new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream) throws IOException {
+                Writer out = new OutputStreamWriter(outputStream, UTF8);
+                for (Map.Entry<Long, int[]> entry : tiles.entrySet()) {
+                    long key = entry.getKey();
+                    out.write((key >>> 58) + " " + ((key >>> 29) & 0x1fffffff)
+                            + " " + (key & 0x1fffffff));
+                    for (int sample : entry.getValue()) {
+                        out.write(" " + sample);
+                    }
+                    out.write("\n");
+                }
+                out.flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Load all the index files of a folder.
+     *
+     * @param directory the folder
+     * @return the index, empty if the folder does not exist
+     * @throws IOException
+     */
+    static SparseTiles load(File directory) throws IOException {
+        SparseTiles sparseTiles = new SparseTiles();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return sparseTiles;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                sparseTiles.loadFile(file);
+            }
+        }
+        return sparseTiles;
+    }
+
+    private void loadFile(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    int[] pixel = new int[fields.length - 3];
+                    for (int i = 0; i < pixel.length; i++) {
+                        pixel[i] = Integer.parseInt(fields[i + 3]);
+                    }
+                    add(Integer.parseInt(fields[0]),
+                            Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]), pixel);
+                } catch (NumberFormatException ex) {
+                    logger.log(Level.WARNING,
+                            "Ignoring invalid sparse tile entry {0}", line);
+                }
+            }
+        }
+    }
+
+    private static long getKey(int level, int column, int row) {
+        return ((long) level << 58) | ((long) column << 29) | row;
+    }
+}
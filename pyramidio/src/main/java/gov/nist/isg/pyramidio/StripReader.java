@@ -0,0 +1,119 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sequential reader of an image, from top to bottom, in full width horizontal
+ * strips.
+ *
+ * @author Antoine Vandecreme
+ */
+abstract class StripReader implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(
+            StripReader.class.getName());
+
+    private final int width;
+    private final int height;
+    private int nextRow;
+
+    StripReader(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Open a strip reader on the specified image reader. Non interlaced PNG
+     * images get a dedicated reader decoding them in a single pass, other
+     * images are read strip by strip through the image reader. The ImageIO
+     * TIFF decoder only decodes the strips of the TIFF files overlapping the
+     * region read, but the other sequential formats such as JPEG are decoded
+     * again from their first row for each strip.
+     *
+     * @param imageReader the image reader
+     * @return the strip reader
+     * @throws IOException
+     */
+    static StripReader open(PartialImageReader imageReader)
+            throws IOException {
+        if (imageReader instanceof DirectImageReader) {
+            File file = ((DirectImageReader) imageReader).getImageFile();
+            StripReader pngReader = PngStripReader.open(file);
+            if (pngReader != null) {
+                return pngReader;
+            }
+            if (!(imageReader instanceof TiledImageReader)
+                    && TileBuilder.isSequentialFormat(file)) {
+                logger.log(Level.WARNING, "{0} is decoded again from its "
+                        + "first row for each strip, only non interlaced PNG "
+                        + "images are decoded in a single pass.", file);
+            }
+        }
+        return new RegionStripReader(imageReader);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Read the next strip.
+     *
+     * @param rows the number of rows to read
+     * @return the strip, which may have less rows than requested at the bottom
+     * of the image or null if all the rows have been read
+     * @throws IOException
+     */
+    BufferedImage read(int rows) throws IOException {
+        if (nextRow >= height) {
+            return null;
+        }
+        rows = Math.min(rows, height - nextRow);
+        BufferedImage strip = readRows(nextRow, rows);
+        nextRow += rows;
+        return strip;
+    }
+
+    protected abstract BufferedImage readRows(int y, int rows)
+            throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static class RegionStripReader extends StripReader {
+
+        private final PartialImageReader imageReader;
+
+        private RegionStripReader(PartialImageReader imageReader) {
+            super(imageReader.getWidth(), imageReader.getHeight());
+            this.imageReader = imageReader;
+        }
+
+        @Override
+        protected BufferedImage readRows(int y, int rows) throws IOException {
+            return imageReader.read(new Rectangle(0, y, getWidth(), rows));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
+import gov.nist.isg.pyramidio.tools.ImageDownsamplingHelper;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * Tile builder reading the input image only once, from top to bottom, in
+ * horizontal strips.
+ *
+ * Each level keeps a rolling window of full width rows. As soon as the window
+ * contains a complete row of tiles, those tiles are written. Pairs of rows are
+ * downsampled to the next level as soon as they are available, with the
+ * resampler of the tile builder or by averaging blocks of 2x2 pixels with
+ * direct downsampling. The rows no longer needed by either are dropped.
+ *
+ * @author Antoine Vandecreme
+ */
+class StripTileBuilder {
+
+    private final TileBuilder tileBuilder;
+    private final StripReader stripReader;
+    private final int tileSize;
+    private final int overlap;
+
+    StripTileBuilder(TileBuilder tileBuilder, StripReader stripReader,
+            int tileSize, int overlap) {
+        this.tileBuilder = tileBuilder;
+        this.stripReader = stripReader;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+    }
+
+    void build() throws IOException {
+        int nbLevels = tileBuilder.getNbLevels();
+        Level parent = null;
+        for (int i = 0; i <= nbLevels; i++) {
+            parent = new Level(i, tileBuilder.getLevelDimensions(i), parent);
+        }
+        Level maxLevel = parent;
+
+        BufferedImage strip;
+        long start = tileBuilder.startStage();
+        while ((strip = stripReader.read(tileSize)) != null) {
+            tileBuilder.endStage(BuildListener.Stage.READ, start);
+            maxLevel.append(strip);
+            start = tileBuilder.startStage();
+        }
+    }
+
+    private class Level {
+
+        private final int level;
+        private final int width;
+        private final int height;
+        private final int nbColumns;
+        private final int nbRows;
+        private final Level parent;
+
+        // Rows [bufferY, bufferY + buffer.getHeight()) of the level
+        private BufferedImage buffer;
+        private int bufferY;
+        private int nextTileRow;
+        private int nextParentRow;
+
+        private Level(int level, Dimension dimensions, Level parent) {
+            this.level = level;
+            this.width = dimensions.width;
+            this.height = dimensions.height;
+            this.nbColumns = (int) Math.ceil((double) width / tileSize);
+            this.nbRows = (int) Math.ceil((double) height / tileSize);
+            this.parent = parent;
+        }
+
+        private void append(BufferedImage rows) {
+            int keepFrom = getTileTop(nextTileRow);
+            if (parent != null) {
+                keepFrom = Math.min(keepFrom, 2 * nextParentRow);
+            }
+            concat(keepFrom, rows);
+            int end = bufferY + buffer.getHeight();
+
+            while (nextTileRow < nbRows && getTileBottom(nextTileRow) <= end) {
+                writeTileRow(nextTileRow);
+                nextTileRow++;
+            }
+
+            if (parent != null) {
+                int parentEnd = end == height ? (end + 1) / 2 : end / 2;
+                if (parentEnd > nextParentRow) {
+                    int y = 2 * nextParentRow;
+                    int h = Math.min(end, 2 * parentEnd) - y;
+                    BufferedImage pairs = buffer.getSubimage(
+                            0, y - bufferY, width, h);
+                    int parentRows = parentEnd - nextParentRow;
+                    nextParentRow = parentEnd;
+                    long start = tileBuilder.startStage();
+                    BufferedImage downsampled
+                            = tileBuilder.isDirectDownsampling()
+                            ? ImageDownsamplingHelper.downsampleByTwo(pairs)
+                            : tileBuilder.getResampler().resize(
+                                    pairs, parent.width, parentRows);
+                    tileBuilder.endStage(BuildListener.Stage.RESIZE, start);
+                    parent.append(downsampled);
+                }
+            }
+        }
+
+        /**
+         * Replace the buffer by the rows of the current buffer from keepFrom
+         * followed by the new rows. The current buffer is never modified since
+         * tiles waiting to be written may still reference it.
+         */
+        private void concat(int keepFrom, BufferedImage rows) {
+            if (buffer == null) {
+                buffer = rows;
+                return;
+            }
+            int end = bufferY + buffer.getHeight();
+            keepFrom = Math.max(bufferY, Math.min(keepFrom, end));
+            int keep = end - keepFrom;
+            if (keep == 0) {
+                buffer = rows;
+                bufferY = end;
+                return;
+            }
+            BufferedImage result = BufferedImageHelper.createBufferedImage(
+                    width, keep + rows.getHeight(), rows);
+            WritableRaster raster = result.getRaster();
+            // Rasters silently ignore negative offsets, so the kept rows are
+            // copied from a child starting at keepFrom instead
+            raster.setRect(buffer.getRaster().createChild(
+                    0, keepFrom - bufferY, width, keep, 0, 0, null));
+            raster.setRect(0, keep, rows.getRaster());
+            buffer = result;
+            bufferY = keepFrom;
+        }
+
+        private void writeTileRow(int row) {
+            int y = getTileTop(row);
+            int h = getTileBottom(row) - y;
+            for (int col = 0; col < nbColumns; col++) {
+                int x = col * tileSize - (col == 0 ? 0 : overlap);
+                int w = Math.min(width, (col + 1) * tileSize + overlap) - x;
+                BufferedImage tile = buffer.getSubimage(x, y - bufferY, w, h);
+                tileBuilder.writeTile(tile, level, row, col);
+            }
+        }
+
+        private int getTileTop(int row) {
+            if (row >= nbRows) {
+                return height;
+            }
+            return row * tileSize - (row == 0 ? 0 : overlap);
+        }
+
+        private int getTileBottom(int row) {
+            return Math.min(height, (row + 1) * tileSize + overlap);
+        }
+    }
+}
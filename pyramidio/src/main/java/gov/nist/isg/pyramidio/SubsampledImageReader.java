@@ -0,0 +1,41 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Partial image reader able to read regions at a reduced resolution without
+ * decoding or copying all their pixels.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface SubsampledImageReader extends PartialImageReader {
+
+    /**
+     * Read a region keeping one pixel every subsampling pixels in each
+     * direction, starting from the top left pixel of the region. The image
+     * returned is ceil(width / subsampling) x ceil(height / subsampling).
+     * The readers of downsampled images, such as the pyramids, may return
+     * filtered pixels instead of the exact pixels of the image.
+     *
+     * @param rectangle the region, entirely inside the image
+     * @param subsampling the subsampling factor, 1 to read the region at
+     * full resolution
+     * @return the subsampled region
+     * @throws IOException
+     */
+    BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException;
+}
@@ -0,0 +1,361 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * First image file directory of a TIFF or BigTIFF file, restricted to the
+ * tags describing the layout of the samples in the file.
+ *
+ * @author Antoine Vandecreme
+ */
+class TiffDirectory {
+
+    static final int COMPRESSION_NONE = 1;
+    static final int PLANAR_CHUNKY = 1;
+    static final int PLANAR_SEPARATE = 2;
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC = 262;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_TILE_WIDTH = 322;
+    private static final int TAG_TILE_LENGTH = 323;
+    private static final int TAG_TILE_OFFSETS = 324;
+    private static final int TAG_TILE_BYTE_COUNTS = 325;
+    private static final int TAG_SAMPLE_FORMAT = 339;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_LONG8 = 16;
+
+    private final ByteOrder byteOrder;
+    private int width;
+    private int height;
+    private int bitsPerSample = 1;
+    private int samplesPerPixel = 1;
+    private int compression = COMPRESSION_NONE;
+    private int photometric = -1;
+    private int planarConfiguration = PLANAR_CHUNKY;
+    private int sampleFormat = 1;
+    private long rowsPerStrip;
+    private int blockWidth;
+    private int blockHeight;
+    private boolean tiled;
+    private long[] offsets;
+    private long[] byteCounts;
+
+    private TiffDirectory(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+    }
+
+    /**
+     * Check whether the given bytes start a TIFF or BigTIFF file.
+     */
+    static boolean isTiff(ByteBuffer header) {
+        if (header.remaining() < 4) {
+            return false;
+        }
+        int b0 = header.get(0);
+        int b1 = header.get(1);
+        if (b0 != b1 || (b0 != 'I' && b0 != 'M')) {
+            return false;
+        }
+        ByteBuffer buffer = header.duplicate().order(
+                b0 == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int version = buffer.getShort(2);
+        return version == 42 || version == 43;
+    }
+
+    /**
+     * Read the first image file directory of a TIFF or BigTIFF file.
+     *
+     * @param channel the channel of the file
+     * @return the directory
+     * @throws IOException if the file is not a valid TIFF file
+     */
+    static TiffDirectory read(FileChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+        if (!isTiff(header)) {
+            throw new IOException("Not a TIFF file.");
+        }
+        ByteOrder order = header.get(0) == 'I'
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        header.order(order);
+        boolean bigTiff = header.getShort(2) == 43;
+        long ifdOffset = bigTiff ? header.getLong(8)
+                : header.getInt(4) & 0xFFFFFFFFL;
+
+        TiffDirectory directory = new TiffDirectory(order);
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        int valueSize = bigTiff ? 8 : 4;
+        ByteBuffer countBuffer = readFully(
+                channel, ifdOffset, countSize, order);
+        long count = bigTiff ? countBuffer.getLong(0)
+                : countBuffer.getShort(0) & 0xFFFF;
+        if (count <= 0 || count > 0xFFFF) {
+            throw new IOException("Invalid TIFF directory.");
+        }
+        ByteBuffer entries = readFully(channel, ifdOffset + countSize,
+                (int) count * entrySize, order);
+        for (int i = 0; i < count; i++) {
+            int entry = i * entrySize;
+            int tag = entries.getShort(entry) & 0xFFFF;
+            int type = entries.getShort(entry + 2) & 0xFFFF;
+            long nbValues = bigTiff ? entries.getLong(entry + 4)
+                    : entries.getInt(entry + 4) & 0xFFFFFFFFL;
+            int typeSize = getTypeSize(type);
+            if (typeSize == 0 || nbValues <= 0
+                    || nbValues > Integer.MAX_VALUE / 8) {
+                // Not a tag describing the layout of the samples
+                continue;
+            }
+            ByteBuffer values;
+            int valuesOffset = entry + (bigTiff ? 12 : 8);
+            if (nbValues * typeSize <= valueSize) {
+                values = entries.duplicate().order(order);
+                values.position(valuesOffset);
+                values = values.slice().order(order);
+            } else {
+                long offset = bigTiff ? entries.getLong(valuesOffset)
+                        : entries.getInt(valuesOffset) & 0xFFFFFFFFL;
+                values = readFully(channel, offset,
+                        (int) nbValues * typeSize, order);
+            }
+            directory.setTag(tag, getValues(values, type, (int) nbValues));
+        }
+        directory.validate();
+        return directory;
+    }
+
+    private static int getTypeSize(int type) {
+        switch (type) {
+            case TYPE_BYTE:
+                return 1;
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_LONG:
+                return 4;
+            case TYPE_LONG8:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private static long[] getValues(ByteBuffer buffer, int type, int count) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            switch (type) {
+                case TYPE_BYTE:
+                    values[i] = buffer.get(i) & 0xFF;
+                    break;
+                case TYPE_SHORT:
+                    values[i] = buffer.getShort(2 * i) & 0xFFFF;
+                    break;
+                case TYPE_LONG:
+                    values[i] = buffer.getInt(4 * i) & 0xFFFFFFFFL;
+                    break;
+                default:
+                    values[i] = buffer.getLong(8 * i);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private void setTag(int tag, long[] values) throws IOException {
+        switch (tag) {
+            case TAG_IMAGE_WIDTH:
+                width = toInt(values[0]);
+                break;
+            case TAG_IMAGE_LENGTH:
+                height = toInt(values[0]);
+                break;
+            case TAG_BITS_PER_SAMPLE:
+                bitsPerSample = toInt(values[0]);
+                for (long value : values) {
+                    if (value != bitsPerSample) {
+                        throw new IOException(
+                                "Mixed bits per sample are not supported.");
+                    }
+                }
+                break;
+            case TAG_COMPRESSION:
+                compression = toInt(values[0]);
+                break;
+            case TAG_PHOTOMETRIC:
+                photometric = toInt(values[0]);
+                break;
+            case TAG_SAMPLES_PER_PIXEL:
+                samplesPerPixel = toInt(values[0]);
+                break;
+            case TAG_ROWS_PER_STRIP:
+                rowsPerStrip = Math.min(values[0], Integer.MAX_VALUE);
+                break;
+            case TAG_PLANAR_CONFIGURATION:
+                planarConfiguration = toInt(values[0]);
+                break;
+            case TAG_TILE_WIDTH:
+                tiled = true;
+                blockWidth = toInt(values[0]);
+                break;
+            case TAG_TILE_LENGTH:
+                tiled = true;
+                blockHeight = toInt(values[0]);
+                break;
+            case TAG_STRIP_OFFSETS:
+            case TAG_TILE_OFFSETS:
+                offsets = values;
+                break;
+            case TAG_STRIP_BYTE_COUNTS:
+            case TAG_TILE_BYTE_COUNTS:
+                byteCounts = values;
+                break;
+            case TAG_SAMPLE_FORMAT:
+                sampleFormat = toInt(values[0]);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void validate() throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid TIFF image size.");
+        }
+        if (!tiled) {
+            blockWidth = width;
+            blockHeight = rowsPerStrip <= 0 || rowsPerStrip > height
+                    ? height : (int) rowsPerStrip;
+        } else if (blockWidth <= 0 || blockHeight <= 0) {
+            throw new IOException("Invalid TIFF tile size.");
+        }
+        long blocks = (long) getBlocksAcross() * getBlocksDown()
+                * (planarConfiguration == PLANAR_SEPARATE
+                        ? samplesPerPixel : 1);
+        if (offsets == null || offsets.length != blocks) {
+            throw new IOException("Invalid TIFF strip or tile offsets.");
+        }
+        if (byteCounts == null || byteCounts.length != blocks) {
+            throw new IOException("Invalid TIFF strip or tile byte counts.");
+        }
+    }
+
+    private static int toInt(long value) throws IOException {
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid TIFF tag value " + value);
+        }
+        return (int) value;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position,
+            int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated TIFF file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    int getSamplesPerPixel() {
+        return samplesPerPixel;
+    }
+
+    int getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the photometric interpretation or -1 if not specified
+     */
+    int getPhotometric() {
+        return photometric;
+    }
+
+    int getPlanarConfiguration() {
+        return planarConfiguration;
+    }
+
+    int getSampleFormat() {
+        return sampleFormat;
+    }
+
+    boolean isTiled() {
+        return tiled;
+    }
+
+    /**
+     * @return the width of the tiles, or the image width for strips
+     */
+    int getBlockWidth() {
+        return blockWidth;
+    }
+
+    /**
+     * @return the height of the tiles, or the rows per strip for strips
+     */
+    int getBlockHeight() {
+        return blockHeight;
+    }
+
+    int getBlocksAcross() {
+        return (int) ((width + (long) blockWidth - 1) / blockWidth);
+    }
+
+    int getBlocksDown() {
+        return (int) ((height + (long) blockHeight - 1) / blockHeight);
+    }
+
+    /**
+     * Get the offsets of the strips or tiles, the blocks of each sample
+     * following each other for separate planes.
+     */
+    long[] getOffsets() {
+        return offsets;
+    }
+
+    long[] getByteCounts() {
+        return byteCounts;
+    }
+}
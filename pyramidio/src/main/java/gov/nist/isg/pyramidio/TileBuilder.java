@@ -12,16 +12,47 @@
 package gov.nist.isg.pyramidio;
 
 import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.archiver.ReadableFilesArchiver;
+import gov.nist.isg.pyramidio.encoding.ImageIOTileEncoder;
+import gov.nist.isg.pyramidio.encoding.TileEncoder;
+import gov.nist.isg.pyramidio.layout.ContainerLayout;
+import gov.nist.isg.pyramidio.layout.DeepZoomLayout;
+import gov.nist.isg.pyramidio.layout.TileContainer;
+import gov.nist.isg.pyramidio.layout.TileLayout;
+import gov.nist.isg.pyramidio.resampling.BicubicResampler;
+import gov.nist.isg.pyramidio.resampling.Resampler;
 import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
-import gov.nist.isg.pyramidio.tools.ImageResizingHelper;
+import gov.nist.isg.pyramidio.tools.ImageDownsamplingHelper;
 import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import org.apache.commons.io.FilenameUtils;
 
@@ -37,6 +68,9 @@ import org.apache.commons.io.FilenameUtils;
  */
 class TileBuilder {
 
+    private static final Logger logger = Logger.getLogger(
+            TileBuilder.class.getName());
+
     private final int tileSize;
     private final int overlap;
     private final String tileFormat;
@@ -45,79 +79,1007 @@ class TileBuilder {
 
     private final FilesArchiver archiver;
     private final int nbLevels;
+    // Deepest level fitting in a single tile
+    private final int collapseLevel;
+
+    private final String fileName;
+    private final DziFile pyramid;
+    private List<TileLayout> layouts;
+    private final List<TileContainer> containers = new ArrayList<>();
+    private final List<Boolean> containersOverlapped = new ArrayList<>();
+    private final String journalDir;
+    private final String sparseDir;
 
-    private final String imgDir;
+    private Rectangle dirtyTiles;
+    private DeepZoomImageReader existingPyramid;
 
     private final int originalWidth;
     private final int originalHeight;
 
+    private int writerThreads;
+    private int writerQueueSize;
+    private TileWritePipeline writePipeline;
+
+    private static final int DEFAULT_IO_QUEUE_SIZE = 64;
+    private ExecutorService ioExecutor;
+    private TileWritePipeline ioPipeline;
+    private Semaphore managedBlocks;
+
+    private boolean resumable;
+    private TileJournal journal;
+
+    private int mergeLevel = -1;
+
+    private MemoryGovernor governor;
+    private long bytesPerPixel;
+    private long tileBytes;
+
+    private Resampler resampler = new BicubicResampler();
+    private boolean directDownsampling;
+
+    private TileEncoder tileEncoder;
+
+    private static final int MAX_UNIFORM_ENCODINGS = 256;
+    private boolean detectUniformTiles;
+    private boolean sparseOutput;
+    private SparseTiles sparseTiles;
+    private int rootLevel;
+    private final ConcurrentHashMap<String, byte[]> uniformEncodings
+            = new ConcurrentHashMap<>();
+
+    // Formats whose decoders decode all the rows above a region to read it
+    private static final List<String> SEQUENTIAL_FORMATS = Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "bmp");
+    private int readCoalescing;
+    private int coalesceLevel = -1;
+
+    private BuildListener listener;
+    private ForkJoinPool pool;
+    private long buildStart;
+    private long baseBytes;
+
     TileBuilder(int tileSize, int overlap, String tileFormat,
             String descriptorExt, PartialImageReader imageReader,
             String fileName, FilesArchiver archiver) throws IOException {
         this.tileSize = tileSize;
         this.overlap = overlap;
         this.tileFormat = tileFormat;
+        this.tileEncoder = new ImageIOTileEncoder(tileFormat);
         this.imageReader = imageReader;
         this.archiver = archiver;
 
         originalWidth = imageReader.getWidth();
         originalHeight = imageReader.getHeight();
 
-        String nameWithoutExtension = FilenameUtils.getBaseName(fileName);
-        String descriptorName = nameWithoutExtension + '.' + descriptorExt;
-        DziFile dziFile = new DziFile(tileSize, overlap, tileFormat,
+        this.fileName = fileName;
+        pyramid = new DziFile(tileSize, overlap, tileFormat,
                 originalWidth, originalHeight);
-        dziFile.write(descriptorName, archiver);
+        layouts = Collections.<TileLayout>singletonList(
+                new DeepZoomLayout(descriptorExt));
 
         int maxDim = Math.max(originalWidth, originalHeight);
         nbLevels = (int) Math.ceil(Math.log(maxDim) / Math.log(2));
+        int level = nbLevels;
+        Dimension levelDimensions = getLevelDimensions(level);
+        while (levelDimensions.width > tileSize
+                || levelDimensions.height > tileSize) {
+            level--;
+            levelDimensions = getLevelDimensions(level);
+        }
+        collapseLevel = level;
+
+        journalDir = fileName + "_journal";
+        sparseDir = fileName + SparseTiles.DIRECTORY_SUFFIX;
+    }
+
+    /**
+     * Encode and write the tiles on dedicated threads instead of the threads
+     * building the pyramid.
+     *
+     * @param threads the number of writer threads (0 to write the tiles on
+     * the building threads)
+     * @param queueSize the maximum number of tiles waiting to be written
+     * before the building threads are blocked
+     */
+    void setTileWriter(int threads, int queueSize) {
+        this.writerThreads = threads;
+        this.writerQueueSize = queueSize;
+    }
+
+    /**
+     * Run the reads of the input image and of the tiles read back and the
+     * appends of the tiles to the archiver on an executor, such as a virtual
+     * thread per task executor. The threads of the fork join pool waiting
+     * for a read are managed as blocked, so that the pool can activate spare
+     * threads to keep composing and resizing tiles meanwhile. At most as many
+     * threads as the parallelism are managed as blocked at once, the others
+     * wait for their read without spare thread, so that the pool has at most
+     * twice its parallelism of threads. The tiles are still encoded by the
+     * threads computing them or by the writer threads.
+     *
+     * @param ioExecutor the executor or null to do the I/O on the threads
+     * computing the tiles
+     */
+    void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Write the tiles and descriptors of each layout. The tiles are encoded
+     * once for all the layouts with the same overlap.
+     *
+     * @param layouts the layouts. The first one is used to read back the
+     * tiles of resumable builds and merges. The container layouts are not
+     * supported by partitions, merges, resumable builds and updates.
+     */
+    void setLayouts(List<TileLayout> layouts) {
+        this.layouts = layouts;
+    }
+
+    /**
+     * Record the completed subtrees in a journal stored in the archive and
+     * skip the subtrees already recorded by a previous build.
+     *
+     * @param resumable true to use a journal
+     */
+    void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Keep the estimated memory used by the build under the budget of the
+     * specified governor. The input cache is then sized according to the
+     * budget instead of the maximum image cache percentage, and the subtrees
+     * are computed sequentially instead of being forked when the budget is
+     * exhausted.
+     *
+     * @param governor the governor or null to not limit the memory
+     */
+    void setMemoryGovernor(MemoryGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Compute the tiles on a pool shared with other builds instead of a pool
+     * created for each build. The parallelism passed to the build methods is
+     * then ignored.
+     *
+     * @param pool the pool or null to create a pool for each build
+     */
+    void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Read the regions of blocks of k x k tiles at max level in one call
+     * instead of reading each tile separately.
+     *
+     * @param readCoalescing the number of tiles k in each dimension of a
+     * block, a power of 2. 1 to read each tile separately, 0 to choose k from
+     * the tile size and the input format.
+     */
+    void setReadCoalescing(int readCoalescing) {
+        this.readCoalescing = readCoalescing;
+    }
+
+    /**
+     * Set the listener notified of the progress of the builds.
+     *
+     * @param listener the listener or null
+     */
+    void setBuildListener(BuildListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the start time of a stage to be passed to endStage.
+     *
+     * @return the start time or 0 if there is no listener
+     */
+    long startStage() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Notify the listener that a stage started with startStage completed.
+     */
+    void endStage(BuildListener.Stage stage, long start) {
+        if (listener != null) {
+            listener.stageCompleted(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Set the resampler used to downsample the mosaic of the 4 children of
+     * each tile.
+     *
+     * @param resampler the resampler
+     */
+    void setResampler(Resampler resampler) {
+        this.resampler = resampler;
+    }
+
+    /**
+     * Set the encoder of the tiles.
+     *
+     * @param tileEncoder the encoder
+     */
+    void setTileEncoder(TileEncoder tileEncoder) {
+        this.tileEncoder = tileEncoder;
+    }
+
+    /**
+     * Compute the parent tiles by averaging each block of 2x2 pixels of their
+     * children directly into the parent tile, instead of assembling the
+     * children in a mosaic and resizing it.
+     *
+     * @param directDownsampling true to average blocks of 2x2 pixels
+     */
+    void setDirectDownsampling(boolean directDownsampling) {
+        this.directDownsampling = directDownsampling;
+    }
+
+    /**
+     * Detect the tiles whose pixels all have the same value. A parent of 4
+     * uniform tiles of the same value is not computed from its children, and
+     * uniform tiles are encoded only once per value and dimensions.
+     *
+     * @param detect true to detect the uniform tiles
+     * @param sparse true to not write the uniform tiles but record them in
+     * an index stored next to the descriptor. The tiles of level 0 and of the
+     * root level of partitions are always written.
+     */
+    void setUniformTiles(boolean detect, boolean sparse) {
+        this.detectUniformTiles = detect || sparse;
+        this.sparseOutput = sparse;
+    }
+
+    /**
+     * Only rebuild the tiles affected by a region of the input image, reading
+     * the other tiles from an existing pyramid of the same image.
+     *
+     * @param dirtyRegion the region of the input image which changed
+     * @param existingPyramid the existing pyramid
+     */
+    void setDirtyRegion(Rectangle dirtyRegion,
+            DeepZoomImageReader existingPyramid) {
+        this.existingPyramid = existingPyramid;
+        int nbColumns = (int) Math.ceil((double) originalWidth / tileSize);
+        int nbRows = (int) Math.ceil((double) originalHeight / tileSize);
+        int firstColumn = Integer.MAX_VALUE;
+        int lastColumn = -1;
+        for (int col = 0; col < nbColumns; col++) {
+            int x = col * tileSize - (col == 0 ? 0 : overlap);
+            int w = tileSize + (col == 0 ? 1 : 2) * overlap;
+            if (x < dirtyRegion.x + dirtyRegion.width
+                    && x + w > dirtyRegion.x) {
+                firstColumn = Math.min(firstColumn, col);
+                lastColumn = col;
+            }
+        }
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (int row = 0; row < nbRows; row++) {
+            int y = row * tileSize - (row == 0 ? 0 : overlap);
+            int h = tileSize + (row == 0 ? 1 : 2) * overlap;
+            if (y < dirtyRegion.y + dirtyRegion.height
+                    && y + h > dirtyRegion.y) {
+                firstRow = Math.min(firstRow, row);
+                lastRow = row;
+            }
+        }
+        // Range of the tiles at max level which must be rebuilt
+        dirtyTiles = lastColumn < 0 || lastRow < 0 || dirtyRegion.isEmpty()
+                ? new Rectangle()
+                : new Rectangle(firstColumn, firstRow,
+                        lastColumn - firstColumn + 1, lastRow - firstRow + 1);
+    }
+
+    void writeDescriptor() throws IOException {
+        for (TileLayout layout : layouts) {
+            layout.writeDescriptor(fileName, pyramid, archiver);
+        }
+    }
+
+    void build(int parallelism, float maxImageCachePercentage)
+            throws IOException {
+        buildSubtrees(0, 0, 1, parallelism, maxImageCachePercentage);
+    }
+
+    /**
+     * Build a partition of the pyramid. The pyramid is split at the partition
+     * level into independent subtrees which are distributed among the
+     * partitions in a round robin fashion. Only the subtrees of the specified
+     * partition are built, their root tiles included. The levels above the
+     * partition level must then be built with merge.
+     *
+     * @param partitionLevel the level at which the pyramid is split
+     * @param partition the index of the partition to build
+     * @param partitionCount the number of partitions
+     * @param parallelism the parallelism level
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM.
+     * @throws IOException
+     */
+    void buildPartition(int partitionLevel, int partition,
+            int partitionCount, int parallelism,
+            float maxImageCachePercentage) throws IOException {
+        if (partitionLevel < 0 || partitionLevel > nbLevels) {
+            throw new IllegalArgumentException("The partition level must be "
+                    + "between 0 and " + nbLevels + ".");
+        }
+        if (partition < 0 || partition >= partitionCount) {
+            throw new IllegalArgumentException("The partition must be "
+                    + "between 0 and " + (partitionCount - 1) + ".");
+        }
+        buildSubtrees(partitionLevel, partition, partitionCount,
+                parallelism, maxImageCachePercentage);
+    }
+
+    /**
+     * Build the levels above the partition level from the root tiles of the
+     * partitions, read back from the archive.
+     *
+     * @param partitionLevel the level at which the pyramid has been split
+     * @param parallelism the parallelism level
+     * @throws IOException
+     */
+    void merge(int partitionLevel, int parallelism) throws IOException {
+        if (!(archiver instanceof ReadableFilesArchiver)) {
+            throw new IllegalArgumentException("Merging partitions requires "
+                    + "an archiver able to read back its files.");
+        }
+        checkReadableLayout("Merging partitions");
+        checkNoContainer("Merging partitions");
+        mergeLevel = partitionLevel;
+        try {
+            buildSubtrees(0, 0, 1, parallelism, 0);
+        } finally {
+            mergeLevel = -1;
+        }
+    }
+
+    /**
+     * Get the highest level at which the pyramid has enough tiles to be split
+     * in about 4 subtrees per partition.
+     *
+     * @param partitionCount the number of partitions
+     * @return the partition level
+     */
+    int getPartitionLevel(int partitionCount) {
+        for (int level = 0; level < nbLevels; level++) {
+            Dimension levelDimensions = getLevelDimensions(level);
+            long nbTiles = (long) Math.ceil(
+                    (double) levelDimensions.width / tileSize)
+                    * (long) Math.ceil(
+                            (double) levelDimensions.height / tileSize);
+            if (nbTiles >= 4L * partitionCount) {
+                return level;
+            }
+        }
+        return nbLevels;
+    }
+
+    /**
+     * Estimate the cost of a full build without building the pyramid.
+     *
+     * @param parallelism the parallelism level
+     * @param maxImageCachePercentage the maximum portion of the input image
+     * which should be cached in RAM.
+     * @return the plan
+     * @throws IOException
+     */
+    BuildPlan plan(int parallelism, float maxImageCachePercentage)
+            throws IOException {
+        try {
+            return new BuildPlanner(this).plan(
+                    parallelism, maxImageCachePercentage);
+        } finally {
+            closeReaderSessions();
+        }
+    }
+
+    private void buildSubtrees(final int rootLevel, int partition,
+            int partitionCount, int parallelism,
+            float maxImageCachePercentage) throws IOException {
+        if (sparseOutput && (resumable || dirtyTiles != null)) {
+            throw new IllegalArgumentException("Sparse output is not "
+                    + "supported by resumable builds and updates.");
+        }
+        if (partitionCount > 1) {
+            checkNoContainer("Partitions");
+        }
+        if (dirtyTiles != null) {
+            checkNoContainer("Updates");
+        }
+        this.rootLevel = rootLevel;
+        int plannedCacheLevel = planReads(rootLevel, parallelism,
+                maxImageCachePercentage);
+        final boolean useCache = plannedCacheLevel >= 0;
+        final int cacheLevel = useCache ? plannedCacheLevel : nbLevels;
+        if (imageReader instanceof TiledImageReader && !useCache) {
+            // Keep the native tiles of the blocks read by each thread, the
+            // tiles of 2x2 tiles of the max level being read in a row
+            Rectangle block = getTileRegionInEntireImage(coalesceLevel >= 0
+                    ? coalesceLevel : Math.max(nbLevels - 1, 0), 0, 0);
+            ((TiledImageReader) imageReader).ensureCacheCapacity(
+                    block.width, block.height, getThreads(parallelism));
+        }
+
+        Dimension levelDimensions = getLevelDimensions(rootLevel);
+        int nbColumns = (int) Math.ceil(
+                (double) levelDimensions.width / tileSize);
+        int nbRows = (int) Math.ceil(
+                (double) levelDimensions.height / tileSize);
+        final List<Point> roots = new ArrayList<>();
+        for (int row = 0; row < nbRows; row++) {
+            for (int col = 0; col < nbColumns; col++) {
+                if (((long) row * nbColumns + col) % partitionCount
+                        == partition) {
+                    roots.add(new Point(col, row));
+                }
+            }
+        }
+
+        if (resumable) {
+            if (!(archiver instanceof ReadableFilesArchiver)) {
+                throw new IllegalArgumentException("Resumable builds require "
+                        + "an archiver able to read back its files.");
+            }
+            checkReadableLayout("Resumable builds");
+            checkNoContainer("Resumable builds");
+            // Each partition and the merge have their own journal since
+            // they may run concurrently in the same archive
+            journal = new TileJournal((ReadableFilesArchiver) archiver,
+                    mergeLevel >= 0 ? FilenameUtils.concat(journalDir, "merge")
+                            : partitionCount > 1 ? FilenameUtils.concat(
+                                    journalDir, "partition-" + partition)
+                                    : journalDir);
+        }
+        if (baseBytes > 0) {
+            reserveMemory(baseBytes);
+        }
+        String sparseFile = mergeLevel >= 0 ? "merge.txt"
+                : partitionCount > 1 ? "partition-" + partition + ".txt"
+                        : "sparse.txt";
+        managedBlocks = new Semaphore(getThreads(parallelism));
+        startWriting();
+        try {
+            if (pool == null && parallelism <= 1) {
+                for (Point root : roots) {
+                    new TileBuilderTask(rootLevel, root.y, root.x, false,
+                            useCache, cacheLevel, null).compute();
+                }
+            } else {
+                RecursiveAction rootsAction = new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        if (useCache || governor != null) {
+                            // Only one cached region at a time. With a
+                            // governor, the forks within the subtrees are
+                            // limited instead.
+                            for (Point root : roots) {
+                                new TileBuilderTask(rootLevel, root.y, root.x,
+                                        true, useCache, cacheLevel, null)
+                                        .compute();
+                            }
+                            return;
+                        }
+                        List<TileBuilderTask> tasks = new ArrayList<>();
+                        for (Point root : roots) {
+                            tasks.add(new TileBuilderTask(rootLevel, root.y,
+                                    root.x, true, useCache, cacheLevel, null));
+                        }
+                        invokeAll(tasks);
+                    }
+                };
+                if (pool != null) {
+                    if (ForkJoinTask.getPool() == pool) {
+                        rootsAction.invoke();
+                    } else {
+                        pool.invoke(rootsAction);
+                    }
+                    samplePool(pool);
+                } else {
+                    ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+                    try {
+                        forkJoinPool.invoke(rootsAction);
+                        samplePool(forkJoinPool);
+                    } finally {
+                        forkJoinPool.shutdownNow();
+                    }
+                }
+            }
+            finishWriting(sparseFile);
+        } finally {
+            stopWriting();
+            if (journal != null) {
+                journal.flush();
+                journal = null;
+            }
+            if (baseBytes > 0) {
+                governor.release(baseBytes);
+            }
+        }
+    }
+
+    /**
+     * Choose how the input image is read by a build of the subtrees of a
+     * level. Set the base bytes held by the build and the coalesce level.
+     *
+     * @return the level of the cached regions or -1 to not use the cache
+     */
+    private int planReads(int rootLevel, int parallelism,
+            float maxImageCachePercentage) throws IOException {
+        boolean cached;
+        int cachedLevel;
+        baseBytes = 0;
+        if (governor != null) {
+            bytesPerPixel = getBytesPerPixel();
+            tileBytes = (long) (tileSize + 2 * overlap)
+                    * (tileSize + 2 * overlap) * bytesPerPixel;
+            if (writerThreads > 0) {
+                int queueSize = writerQueueSize > 0
+                        ? writerQueueSize : 2 * writerThreads;
+                baseBytes += (queueSize + writerThreads) * tileBytes;
+            }
+            baseBytes += getSubtreeBytes(rootLevel);
+            // Merges and updates read only a few regions of the input image
+            int budgetCacheLevel = mergeLevel < 0 && dirtyTiles == null
+                    ? getCacheLevel(governor.getBudget() - baseBytes,
+                            rootLevel, parallelism)
+                    : -1;
+            cached = budgetCacheLevel >= 0;
+            cachedLevel = cached ? budgetCacheLevel : nbLevels;
+        } else {
+            cached = maxImageCachePercentage > 0;
+            cachedLevel = Math.max(rootLevel,
+                    getCacheLevel(maxImageCachePercentage));
+        }
+
+        // Merges and updates read only the regions of the dirty subtrees
+        int coalescing = readCoalescing > 0
+                ? readCoalescing : getDefaultReadCoalescing();
+        coalesceLevel = coalescing > 1 && mergeLevel < 0
+                && dirtyTiles == null
+                ? Math.max(rootLevel, nbLevels
+                        - Integer.numberOfTrailingZeros(coalescing))
+                : -1;
+        if (coalesceLevel >= 0 && governor != null) {
+            // Use smaller blocks if the blocks of all the threads do not fit
+            long blocksBudget = (governor.getBudget() - baseBytes)
+                    / Math.max(parallelism, 1);
+            while (coalesceLevel < nbLevels
+                    && getRegionBytes(coalesceLevel) > blocksBudget) {
+                coalesceLevel++;
+            }
+            if (coalesceLevel == nbLevels) {
+                coalesceLevel = -1;
+            }
+        }
+        if (coalesceLevel >= 0 && cached) {
+            if (cachedLevel > coalesceLevel) {
+                // The cached regions would be smaller than the blocks while
+                // the cache prevents forking above its level
+                cached = false;
+                cachedLevel = nbLevels;
+            } else {
+                coalesceLevel = -1;
+            }
+        }
+        return cached ? cachedLevel : -1;
+    }
+
+    /**
+     * Build the pyramid reading the input image only once, from top to
+     * bottom, in horizontal strips of tileSize rows. Each level keeps only the
+     * rows needed by its next row of tiles, so the memory used is proportional
+     * to the image width times the tile size instead of the image area.
+     *
+     * @throws IOException
+     */
+    void buildByStrips() throws IOException {
+        if (resumable) {
+            logger.warning("Builds by strips are not resumable, "
+                    + "the journal is ignored.");
+        }
+        rootLevel = 0;
+        if (imageReader instanceof TiledImageReader) {
+            // Keep the native tiles overlapping 2 strips
+            ((TiledImageReader) imageReader).ensureCacheCapacity(
+                    originalWidth, tileSize, 1);
+        }
+        startWriting();
+        try (StripReader stripReader = StripReader.open(imageReader)) {
+            new StripTileBuilder(this, stripReader, tileSize, overlap).build();
+            finishWriting("sparse.txt");
+        } finally {
+            stopWriting();
+        }
+    }
+
+    private void startWriting() throws IOException {
+        if (listener != null) {
+            buildStart = System.nanoTime();
+            listener.buildStarted(nbLevels);
+        }
+        if (sparseOutput) {
+            for (TileLayout layout : layouts) {
+                if (!(layout instanceof DeepZoomLayout)) {
+                    throw new IllegalArgumentException("Sparse output is "
+                            + "only supported by the DeepZoom layout.");
+                }
+            }
+            sparseTiles = new SparseTiles();
+        }
+        for (TileLayout layout : layouts) {
+            if (layout instanceof ContainerLayout) {
+                containers.add(((ContainerLayout) layout).open(
+                        fileName, pyramid, archiver));
+                containersOverlapped.add(layout.isOverlapped());
+            }
+        }
+        if (writerThreads > 0) {
+            writePipeline = new TileWritePipeline(writerThreads,
+                    writerQueueSize > 0 ? writerQueueSize : 2 * writerThreads);
+        }
+        if (ioExecutor != null) {
+            ioPipeline = new TileWritePipeline(ioExecutor,
+                    writerQueueSize > 0
+                            ? writerQueueSize : DEFAULT_IO_QUEUE_SIZE);
+        }
+    }
+
+    private void finishWriting(String sparseFile) throws IOException {
+        if (writePipeline != null) {
+            writePipeline.finish();
+        }
+        if (ioPipeline != null) {
+            ioPipeline.finish();
+        }
+        for (TileContainer container : containers) {
+            container.close();
+        }
+        if (sparseTiles != null && !sparseTiles.isEmpty()) {
+            sparseTiles.write(archiver,
+                    FilenameUtils.concat(sparseDir, sparseFile));
+        }
+    }
 
-        imgDir = fileName + "_files";
+    private void stopWriting() {
+        if (writePipeline != null) {
+            writePipeline.abort();
+            writePipeline = null;
+        }
+        if (ioPipeline != null) {
+            ioPipeline.abort();
+            ioPipeline = null;
+        }
+        for (TileContainer container : containers) {
+            container.abort();
+        }
+        containers.clear();
+        containersOverlapped.clear();
+        sparseTiles = null;
+        uniformEncodings.clear();
+        closeReaderSessions();
+        closeTileEncoder();
+        if (listener != null) {
+            listener.buildFinished(System.nanoTime() - buildStart);
+        }
+    }
+
+    /**
+     * Release the writers kept by the tile encoder for the build.
+     */
+    private void closeTileEncoder() {
+        if (tileEncoder instanceof Closeable) {
+            try {
+                ((Closeable) tileEncoder).close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot close the tile encoder.",
+                        ex);
+            }
+        }
+    }
+
+    /**
+     * Close the decoder sessions kept open by the input image reader.
+     */
+    private void closeReaderSessions() {
+        if (imageReader instanceof DirectImageReader) {
+            try {
+                ((DirectImageReader) imageReader).close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot close the decoders of "
+                        + ((DirectImageReader) imageReader).getImageFile(),
+                        ex);
+            }
+        }
+    }
+
+    private void samplePool(ForkJoinPool pool) {
+        if (listener != null && pool != null) {
+            listener.poolSampled(pool.getParallelism(), pool.getStealCount(),
+                    pool.getQueuedTaskCount(), pool.getActiveThreadCount());
+        }
+    }
+
+    int getNbLevels() {
+        return nbLevels;
+    }
+
+    PartialImageReader getImageReader() {
+        return imageReader;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getOverlap() {
+        return overlap;
+    }
+
+    TileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
+    int getWriterThreads() {
+        return writerThreads;
+    }
+
+    int getWriterQueueSize() {
+        return writerQueueSize;
+    }
+
+    MemoryGovernor getGovernor() {
+        return governor;
+    }
+
+    long getBaseBytes() {
+        return baseBytes;
+    }
+
+    long getTileBytes() {
+        return tileBytes;
+    }
+
+    int getCoalesceLevel() {
+        return coalesceLevel;
+    }
+
+    /**
+     * Get the number of threads computing the tiles of a build.
+     */
+    int getThreads(int parallelism) {
+        return pool != null ? pool.getParallelism() : Math.max(parallelism, 1);
+    }
+
+    /**
+     * Choose how the input image would be read by a full build, as
+     * buildSubtrees does.
+     *
+     * @return the level of the cached regions or -1 to not use the cache
+     */
+    int planFullBuildReads(int parallelism, float maxImageCachePercentage)
+            throws IOException {
+        bytesPerPixel = getBytesPerPixel();
+        tileBytes = (long) (tileSize + 2 * overlap)
+                * (tileSize + 2 * overlap) * bytesPerPixel;
+        rootLevel = 0;
+        return planReads(0, parallelism, maxImageCachePercentage);
+    }
+
+    Resampler getResampler() {
+        return resampler;
+    }
+
+    boolean isDirectDownsampling() {
+        return directDownsampling;
+    }
+
+    private int getCacheLevel(float maxImageCachePercentage) {
+        if (maxImageCachePercentage >= 1) {
+            return 0;
+        }
+        if (maxImageCachePercentage <= 0) {
+            return nbLevels;
+        }
+
+        int imageWidth = imageReader.getWidth();
+        int imageHeight = imageReader.getHeight();
+
+        long area = (long) imageWidth * (long) imageHeight;
+
+        float maxCachedArea = area * maxImageCachePercentage;
+        double maxCachedSize = Math.floor(Math.sqrt(maxCachedArea));
+
+        for (int i = 0; i < nbLevels; i++) {
+            Rectangle tileRegion = getTileRegionInEntireImage(i, 0, 0);
+            if (tileRegion.width <= maxCachedSize &&
+                    tileRegion.height <= maxCachedSize) {
+                return i;
+            }
+        }
+
+        return nbLevels;
+    }
+
+    /**
+     * Get the lowest level whose top left tile region of the input image can
+     * be cached along with the tiles computed by the other threads working in
+     * it.
+     *
+     * @return the cache level or -1 if no region fits in the budget
+     */
+    private int getCacheLevel(long budget, int rootLevel, int parallelism) {
+        // Caching the regions of single tiles at max level is useless
+        for (int level = rootLevel; level < nbLevels; level++) {
+            long regionBytes = getRegionBytes(level);
+            // The path from the root is part of the budget already
+            if (regionBytes + (Math.max(parallelism, 1) - 1)
+                    * getSubtreeBytes(level)
+                    <= budget) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of tiles in each dimension of the blocks read at once.
+     * Reading a region of the formats decoded sequentially costs about as
+     * much as reading all the rows above it, so bigger blocks are read.
+     */
+    private int getDefaultReadCoalescing() {
+        if (!(imageReader instanceof DirectImageReader)
+                || imageReader instanceof TiledImageReader) {
+            // The other readers have cheap random accesses or cache the
+            // native tiles of the image
+            return 1;
+        }
+        int blockSize = isSequentialInput() ? 2048 : 1024;
+        int coalescing = 1;
+        while (2 * coalescing * tileSize <= blockSize) {
+            coalescing *= 2;
+        }
+        return coalescing;
     }
 
-    void build(int parallelism, float maxImageCachePercentage) {
-        boolean useCache = maxImageCachePercentage > 0;
-        int cacheLevel = getCacheLevel(maxImageCachePercentage);
-        if (parallelism <= 1) {
-            new TileBuilderTask(0, 0, 0, false, useCache, cacheLevel, null)
-                    .compute();
-            return;
+    /**
+     * Check if the input image is read by a decoder decoding all the rows
+     * above a region to read it.
+     */
+    boolean isSequentialInput() {
+        if (!(imageReader instanceof DirectImageReader)
+                || imageReader instanceof TiledImageReader) {
+            return false;
         }
+        return isSequentialFormat(
+                ((DirectImageReader) imageReader).getImageFile());
+    }
 
-        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
-        try {
-            forkJoinPool.invoke(new TileBuilderTask(
-                    0, 0, 0, true, useCache, cacheLevel, null));
-        } finally {
-            forkJoinPool.shutdownNow();
-        }
+    /**
+     * Check if the format of an image file is decoded by ImageIO decoding
+     * all the rows above a region to read it.
+     */
+    static boolean isSequentialFormat(File imageFile) {
+        String extension = FilenameUtils.getExtension(imageFile.getName());
+        return SEQUENTIAL_FORMATS.contains(extension.toLowerCase());
     }
 
-    private int getCacheLevel(float maxImageCachePercentage) {
-        if (maxImageCachePercentage >= 1) {
-            return 0;
-        }
-        if (maxImageCachePercentage <= 0) {
-            return nbLevels;
-        }
+    /**
+     * Get the number of bytes of the region of the input image of the top
+     * left tile of a level.
+     */
+    long getRegionBytes(int level) {
+        Rectangle region = getTileRegionInEntireImage(level, 0, 0);
+        return (long) region.width * region.height * bytesPerPixel;
+    }
 
-        int imageWidth = imageReader.getWidth();
-        int imageHeight = imageReader.getHeight();
+    /**
+     * Estimate the memory held while a subtree is computed by one thread: up
+     * to 3 computed children at each level down to the max level, plus the 4
+     * children, the image they are assembled in and the resulting tile of the
+     * tile being computed.
+     */
+    long getSubtreeBytes(int level) {
+        return tileBytes * (9 + 3L * (nbLevels - level));
+    }
 
-        long area = (long) imageWidth * (long) imageHeight;
+    private long getBytesPerPixel() throws IOException {
+        BufferedImage sample = imageReader.read(new Rectangle(0, 0, 1, 1));
+        SampleModel sampleModel = sample.getSampleModel();
+        long bits = (long) sampleModel.getNumDataElements()
+                * DataBuffer.getDataTypeSize(sampleModel.getDataType());
+        return Math.max(1, bits / 8);
+    }
 
-        float maxCachedArea = area * maxImageCachePercentage;
-        double maxCachedSize = Math.floor(Math.sqrt(maxCachedArea));
+    private ImageReaderCache readCache(final Rectangle region)
+            throws IOException {
+        return runIo(new Callable<ImageReaderCache>() {
+            @Override
+            public ImageReaderCache call() throws IOException {
+                return new ImageReaderCache(imageReader, region);
+            }
+        });
+    }
 
-        for (int i = 0; i < nbLevels; i++) {
-            Rectangle tileRegion = getTileRegionInEntireImage(i, 0, 0);
-            if (tileRegion.width <= maxCachedSize &&
-                    tileRegion.height <= maxCachedSize) {
-                return i;
+    /**
+     * Run a blocking I/O on the I/O executor if any, or on the calling
+     * thread otherwise.
+     */
+    private <T> T runIo(Callable<T> io) throws IOException {
+        if (ioExecutor == null) {
+            try {
+                return io.call();
+            } catch (IOException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(ex);
             }
         }
+        final Future<T> future = ioExecutor.submit(io);
+        try {
+            // Each managed block may add a spare thread to the pool
+            if (ForkJoinTask.inForkJoinPool() && managedBlocks != null
+                    && managedBlocks.tryAcquire()) {
+                try {
+                    ForkJoinPool.managedBlock(
+                            new ForkJoinPool.ManagedBlocker() {
+                        @Override
+                        public boolean block() throws InterruptedException {
+                            try {
+                                future.get();
+                            } catch (ExecutionException ex) {
+                                // Thrown by the get below
+                            }
+                            return true;
+                        }
 
-        return nbLevels;
+                        @Override
+                        public boolean isReleasable() {
+                            return future.isDone();
+                        }
+                    });
+                } finally {
+                    managedBlocks.release();
+                }
+            }
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for I/O.",
+                    ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void reserveMemory(long bytes) {
+        reserveMemory(bytes, 0);
+    }
+
+    private void reserveMemory(long bytes, long heldBytes) {
+        try {
+            governor.reserve(bytes, heldBytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting for memory.", ex);
+        }
     }
 
     private class TileBuilderTask extends RecursiveTask<BufferedImage> {
@@ -128,26 +1090,50 @@ class TileBuilder {
         private final boolean useFork;
         private final boolean useCache;
         private final int cacheLevel;
-        private final ImageReaderCache imageReaderCache;
+        private ImageReaderCache imageReaderCache;
+        private final SubtreeCompletion parentCompletion;
+        private final boolean prebuilt;
+        private long cacheBytes;
+        private SubtreeCompletion completion;
+        private int[] uniformPixel;
 
         private TileBuilderTask(int level, int tileRow, int tileColumn,
                 boolean useFork, boolean useCache, int cacheLevel,
                 ImageReaderCache imageReaderCache) {
+            this(level, tileRow, tileColumn, useFork, useCache, cacheLevel,
+                    imageReaderCache, null);
+        }
+
+        private TileBuilderTask(int level, int tileRow, int tileColumn,
+                boolean useFork, boolean useCache, int cacheLevel,
+                ImageReaderCache imageReaderCache,
+                SubtreeCompletion parentCompletion) {
             this.level = level;
             this.tileRow = tileRow;
             this.tileColumn = tileColumn;
             this.useFork = useFork;
             this.useCache = useCache;
             this.cacheLevel = cacheLevel;
+            this.parentCompletion = parentCompletion;
+            this.prebuilt = isPrebuilt(level, tileRow, tileColumn);
 
-            if (useCache && level == cacheLevel) {
+            if (useCache && level == cacheLevel && !prebuilt) {
                 Rectangle tileRegion = getTileRegionInEntireImage(
                         level, tileRow, tileColumn);
                 if (tileRegion != null) {
+                    if (governor != null) {
+                        cacheBytes = (long) tileRegion.width
+                                * tileRegion.height * bytesPerPixel;
+                        // The governor may be shared with other builds
+                        // holding their base bytes too
+                        reserveMemory(cacheBytes, baseBytes);
+                    }
                     try {
-                        imageReaderCache = new ImageReaderCache(
-                                imageReader, tileRegion);
+                        long start = startStage();
+                        imageReaderCache = readCache(tileRegion);
+                        endStage(BuildListener.Stage.READ, start);
                     } catch (Exception e) {
+                        releaseCache();
                         throw new RuntimeException("Cannot cache region "
                                 + tileRegion, e);
                     }
@@ -159,6 +1145,92 @@ class TileBuilder {
 
         @Override
         protected BufferedImage compute() {
+            try {
+                return computeSubtree();
+            } finally {
+                releaseCache();
+            }
+        }
+
+        private void releaseCache() {
+            if (cacheBytes > 0) {
+                governor.release(cacheBytes);
+                cacheBytes = 0;
+            }
+        }
+
+        private BufferedImage computeSubtree() {
+            if (prebuilt) {
+                // The whole subtree has been built by a previous build
+                BufferedImage tile;
+                try {
+                    tile = runIo(new Callable<BufferedImage>() {
+                        @Override
+                        public BufferedImage call() throws IOException {
+                            return readPrebuiltTile(
+                                    level, tileRow, tileColumn);
+                        }
+                    });
+                } catch (IOException ex) {
+                    throw new RuntimeException("Cannot read back tile at "
+                            + "level " + level + " row " + tileRow
+                            + " column " + tileColumn + ".", ex);
+                }
+                if (parentCompletion != null) {
+                    parentCompletion.done();
+                }
+                return tile;
+            }
+            if (coalesceLevel >= 0 && level >= coalesceLevel
+                    && level < nbLevels && imageReaderCache == null) {
+                // Try smaller blocks if the memory of a bigger one has not
+                // been available
+                readBlock();
+            }
+            if (journal == null) {
+                return computeTile();
+            }
+            // Wait for the tile write and the 4 subtrees if any
+            completion = new SubtreeCompletion(parentCompletion,
+                    level, tileRow, tileColumn, level == nbLevels ? 1 : 5);
+            BufferedImage result = computeTile();
+            if (result == null && parentCompletion != null) {
+                // Empty tile, no subtree has been computed
+                parentCompletion.done();
+            }
+            return result;
+        }
+
+        /**
+         * Read the region of the subtree in one call. The tiles at max level
+         * are then sliced out of it.
+         */
+        private void readBlock() {
+            Rectangle region = getTileRegionInEntireImage(
+                    level, tileRow, tileColumn);
+            if (region == null) {
+                return;
+            }
+            if (governor != null) {
+                long bytes = (long) region.width * region.height
+                        * bytesPerPixel;
+                if (!governor.tryReserve(bytes)) {
+                    // Read the tiles separately instead
+                    return;
+                }
+                cacheBytes = bytes;
+            }
+            try {
+                long start = startStage();
+                imageReaderCache = readCache(region);
+                endStage(BuildListener.Stage.READ, start);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot read region " + region
+                        + ".", ex);
+            }
+        }
+
+        private BufferedImage computeTile() {
             BufferedImage result;
 
             if (level == nbLevels) {
@@ -168,6 +1240,9 @@ class TileBuilder {
                     throw new RuntimeException("Cannot read tile at row "
                             + tileRow + " column " + tileColumn + ".", ex);
                 }
+                if (detectUniformTiles && result != null) {
+                    uniformPixel = BufferedImageHelper.getUniformPixel(result);
+                }
             } else {
                 Dimension tileDimensions = getTileDimensions(
                         level, tileRow, tileColumn);
@@ -177,45 +1252,113 @@ class TileBuilder {
                     return null;
                 }
 
+                // The journal records the completion of each subtree and the
+                // merges must read back the roots of the partitions instead
+                // of computing the collapse level below them
+                if (level < collapseLevel && journal == null
+                        && (!useCache || level >= cacheLevel)
+                        && (mergeLevel < 0 || collapseLevel <= mergeLevel)) {
+                    return computeCollapsedLevels();
+                }
+
                 // The tile we are currently computing is a downsampling of
                 // 4 tiles at level + 1 (except in the corners)
                 BufferedImage topLeft;
                 BufferedImage topRight;
                 BufferedImage bottomLeft;
                 BufferedImage bottomRight;
-                if (useFork && (!useCache || level >= cacheLevel)) {
-                    TileBuilderTask topLeftTask = getTask(
-                            level + 1, tileRow * 2, tileColumn * 2);
-                    TileBuilderTask topRightTask = getTask(
-                            level + 1, tileRow * 2, tileColumn * 2 + 1);
-                    TileBuilderTask bottomLeftTask = getTask(
-                            level + 1, tileRow * 2 + 1, tileColumn * 2);
-                    TileBuilderTask bottomRightTask = getTask(
-                            level + 1, tileRow * 2 + 1, tileColumn * 2 + 1);
-                    topLeftTask.fork();
-                    topRightTask.fork();
-                    bottomLeftTask.fork();
-                    bottomRight = bottomRightTask.compute();
-                    topLeft = topLeftTask.join();
-                    topRight = topRightTask.join();
-                    bottomLeft = bottomLeftTask.join();
+                TileBuilderTask topLeftTask;
+                TileBuilderTask topRightTask;
+                TileBuilderTask bottomLeftTask;
+                TileBuilderTask bottomRightTask;
+                boolean fork = useFork && (!useCache || level >= cacheLevel);
+                long forkBytes = 0;
+                if (fork && governor != null) {
+                    // The 3 forked subtrees may be computed concurrently
+                    forkBytes = 3 * getSubtreeBytes(level + 1);
+                    fork = governor.tryReserve(forkBytes);
+                }
+                if (fork) {
+                    try {
+                        topLeftTask = getTask(
+                                level + 1, tileRow * 2, tileColumn * 2);
+                        topRightTask = getTask(
+                                level + 1, tileRow * 2, tileColumn * 2 + 1);
+                        bottomLeftTask = getTask(
+                                level + 1, tileRow * 2 + 1, tileColumn * 2);
+                        bottomRightTask = getTask(
+                                level + 1, tileRow * 2 + 1,
+                                tileColumn * 2 + 1);
+                        topLeftTask.fork();
+                        topRightTask.fork();
+                        bottomLeftTask.fork();
+                        bottomRight = bottomRightTask.compute();
+                        topLeft = topLeftTask.join();
+                        topRight = topRightTask.join();
+                        bottomLeft = bottomLeftTask.join();
+                    } finally {
+                        if (forkBytes > 0) {
+                            governor.release(forkBytes);
+                        }
+                    }
                 } else {
                     // Important to build task and then compute immediately
                     // because getTask might fill the cache.
-                    TileBuilderTask topLeftTask = getTask(
+                    topLeftTask = getTask(
                             level + 1, tileRow * 2, tileColumn * 2);
                     topLeft = topLeftTask.compute();
-                    TileBuilderTask topRightTask = getTask(
+                    topRightTask = getTask(
                             level + 1, tileRow * 2, tileColumn * 2 + 1);
                     topRight = topRightTask.compute();
-                    TileBuilderTask bottomLeftTask = getTask(
+                    bottomLeftTask = getTask(
                             level + 1, tileRow * 2 + 1, tileColumn * 2);
                     bottomLeft = bottomLeftTask.compute();
-                    TileBuilderTask bottomRightTask = getTask(
+                    bottomRightTask = getTask(
                             level + 1, tileRow * 2 + 1, tileColumn * 2 + 1);
                     bottomRight = bottomRightTask.compute();
                 }
 
+                samplePool(getPool());
+
+                if (detectUniformTiles) {
+                    uniformPixel = getCommonPixel(
+                            new BufferedImage[]{topLeft, topRight,
+                                bottomLeft, bottomRight},
+                            new TileBuilderTask[]{topLeftTask, topRightTask,
+                                bottomLeftTask, bottomRightTask});
+                }
+                if (uniformPixel != null) {
+                    // No need to downsample
+                    result = BufferedImageHelper.createBufferedImage(
+                            tileDimensions.width, tileDimensions.height,
+                            topLeft);
+                    BufferedImageHelper.fill(result.getRaster(),
+                            uniformPixel);
+                    writeTile(result, level, tileRow, tileColumn,
+                            completion, uniformPixel);
+                    return result;
+                }
+
+                int rightTilesX = tileSize - overlap
+                        + (tileColumn == 0 ? 0 : overlap);
+                int bottomTilesY = tileSize - overlap
+                        + (tileRow == 0 ? 0 : overlap);
+
+                long resizeStart = startStage();
+                if (directDownsampling) {
+                    result = BufferedImageHelper.createBufferedImage(
+                            tileDimensions.width, tileDimensions.height,
+                            topLeft);
+                    ImageDownsamplingHelper.downsampleByTwo(topLeft, topRight,
+                            bottomLeft, bottomRight, rightTilesX,
+                            bottomTilesY, tileColumn == 0 ? 0 : overlap,
+                            tileRow == 0 ? 0 : overlap, result.getRaster());
+                    endStage(BuildListener.Stage.RESIZE, resizeStart);
+                    writeTile(result, level, tileRow, tileColumn,
+                            completion, null);
+                    return result;
+                }
+
                 int bigWidth = topLeft.getWidth()
                         + (topRight == null ? 0
                                 : topRight.getWidth() - 2 * overlap);
@@ -228,11 +1371,6 @@ class TileBuilder {
 
                 WritableRaster raster = result.getRaster();
 
-                int rightTilesX = tileSize - overlap
-                        + (tileColumn == 0 ? 0 : overlap);
-                int bottomTilesY = tileSize - overlap
-                        + (tileRow == 0 ? 0 : overlap);
-
                 raster.setRect(0, 0, topLeft.getRaster());
                 if (topRight != null) {
                     raster.setRect(rightTilesX, 0, topRight.getRaster());
@@ -245,29 +1383,98 @@ class TileBuilder {
                             bottomRight.getRaster());
                 }
 
-                result = ImageResizingHelper.resizeImage(result,
+                result = resampler.resize(result,
                         tileDimensions.width, tileDimensions.height);
+                endStage(BuildListener.Stage.RESIZE, resizeStart);
             }
 
             if (result != null) {
-                String dir = FilenameUtils.concat(
-                        imgDir, Integer.toString(level));
-                String outputFile = FilenameUtils.concat(
-                        dir, tileColumn + "_" + tileRow);
-                try {
-                    writeImage(result, tileFormat, outputFile, archiver);
-                } catch (IOException ex) {
-                    throw new RuntimeException("Cannot write tile at level "
-                            + level + " row " + tileRow + " column "
-                            + tileColumn + ".", ex);
-                }
+                writeTile(result, level, tileRow, tileColumn, completion,
+                        uniformPixel);
             }
             return result;
         }
 
+        /**
+         * Compute the tile of a level fitting in a single tile by
+         * downsampling the tile of the collapse level in a loop, instead of
+         * building a subtree with 3 empty children at each level. The tiles
+         * of the levels in between are written once all of them have been
+         * computed.
+         */
+        private BufferedImage computeCollapsedLevels() {
+            TileBuilderTask collapseTask = getTask(collapseLevel, 0, 0);
+            BufferedImage image = collapseTask.compute();
+            uniformPixel = collapseTask.uniformPixel;
+            BufferedImage[] tiles = new BufferedImage[collapseLevel - level];
+            for (int l = collapseLevel - 1; l >= level; l--) {
+                Dimension levelDimensions = getLevelDimensions(l);
+                if (uniformPixel != null) {
+                    // No need to downsample
+                    image = BufferedImageHelper.createBufferedImage(
+                            levelDimensions.width, levelDimensions.height,
+                            image);
+                    BufferedImageHelper.fill(image.getRaster(),
+                            uniformPixel);
+                    tiles[l - level] = image;
+                    continue;
+                }
+                long resizeStart = startStage();
+                if (directDownsampling) {
+                    BufferedImage result
+                            = BufferedImageHelper.createBufferedImage(
+                                    levelDimensions.width,
+                                    levelDimensions.height, image);
+                    ImageDownsamplingHelper.downsampleByTwo(image, null,
+                            null, null, tileSize - overlap,
+                            tileSize - overlap, 0, 0, result.getRaster());
+                    image = result;
+                } else {
+                    if (l + 1 == nbLevels) {
+                        // Resize a copy of the tile read, as the mosaic
+                        // built from 4 children would be
+                        BufferedImage mosaic
+                                = BufferedImageHelper.createBufferedImage(
+                                        image.getWidth(), image.getHeight(),
+                                        image);
+                        mosaic.getRaster().setRect(0, 0, image.getRaster());
+                        image = mosaic;
+                    }
+                    image = resampler.resize(image,
+                            levelDimensions.width, levelDimensions.height);
+                }
+                endStage(BuildListener.Stage.RESIZE, resizeStart);
+                tiles[l - level] = image;
+            }
+            for (int l = collapseLevel - 1; l >= level; l--) {
+                writeTile(tiles[l - level], l, 0, 0, null, uniformPixel);
+            }
+            return image;
+        }
+
+        /**
+         * Get the pixel shared by all the uniform children or null if one
+         * child is not uniform or their pixels differ. Children outside of
+         * the image are ignored.
+         */
+        private int[] getCommonPixel(BufferedImage[] images,
+                TileBuilderTask[] children) {
+            int[] pixel = children[0].uniformPixel;
+            if (pixel == null) {
+                return null;
+            }
+            for (int i = 1; i < children.length; i++) {
+                if (images[i] != null
+                        && !Arrays.equals(pixel, children[i].uniformPixel)) {
+                    return null;
+                }
+            }
+            return pixel;
+        }
+
         private TileBuilderTask getTask(int level, int tileRow, int tileColumn) {
             return new TileBuilderTask(level, tileRow, tileColumn, useFork,
-                    useCache, cacheLevel, imageReaderCache);
+                    useCache, cacheLevel, imageReaderCache, completion);
         }
 
         private BufferedImage getTile(int row, int col)
@@ -284,18 +1491,354 @@ class TileBuilder {
                 h = originalHeight - y;
             }
 
-            Rectangle region = new Rectangle(x, y, w, h);
+            final Rectangle region = new Rectangle(x, y, w, h);
             if (region.isEmpty()) {
                 return null;
             }
 
-            return useCache
+            long start = startStage();
+            BufferedImage tile = imageReaderCache != null
                     ? imageReaderCache.read(region)
-                    : imageReader.read(region);
+                    : runIo(new Callable<BufferedImage>() {
+                        @Override
+                        public BufferedImage call() throws IOException {
+                            return imageReader.read(region);
+                        }
+                    });
+            endStage(BuildListener.Stage.READ, start);
+            return tile;
+        }
+    }
+
+    /**
+     * Tracks the completion of the writes of a tile and of all the tiles it
+     * has been computed from.
+     */
+    private class SubtreeCompletion {
+
+        private final SubtreeCompletion parent;
+        private final int level;
+        private final int tileRow;
+        private final int tileColumn;
+        private final AtomicInteger pending;
+
+        private SubtreeCompletion(SubtreeCompletion parent, int level,
+                int tileRow, int tileColumn, int pending) {
+            this.parent = parent;
+            this.level = level;
+            this.tileRow = tileRow;
+            this.tileColumn = tileColumn;
+            this.pending = new AtomicInteger(pending);
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                // Leaves are not journaled to keep the journal small.
+                if (level < nbLevels) {
+                    journal.complete(level, tileRow, tileColumn);
+                }
+                if (parent != null) {
+                    parent.done();
+                }
+            }
+        }
+    }
+
+    void writeTile(BufferedImage tile, int level, int tileRow,
+            int tileColumn) {
+        writeTile(tile, level, tileRow, tileColumn, null,
+                detectUniformTiles
+                        ? BufferedImageHelper.getUniformPixel(tile) : null);
+    }
+
+    private void writeTile(final BufferedImage tile, final int level,
+            final int tileRow, final int tileColumn,
+            final SubtreeCompletion completion, final int[] uniformPixel) {
+        if (uniformPixel != null && sparseTiles != null && level > rootLevel) {
+            if (listener != null) {
+                listener.tileComputed(level, true, false);
+            }
+            sparseTiles.add(level, tileColumn, tileRow, uniformPixel);
+            if (completion != null) {
+                completion.done();
+            }
+            return;
+        }
+        if (listener != null) {
+            listener.tileComputed(level, uniformPixel != null, true);
+        }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                // The appends are deferred to the I/O executor if any
+                final List<Runnable> appends = ioPipeline == null
+                        ? null : new ArrayList<Runnable>(1);
+                try {
+                    writeTileFiles(tile, uniformPixel, level, tileRow,
+                            tileColumn, appends);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Cannot write tile at level "
+                            + level + " row " + tileRow + " column "
+                            + tileColumn + ".", ex);
+                }
+                if (appends == null) {
+                    if (completion != null) {
+                        completion.done();
+                    }
+                    return;
+                }
+                ioPipeline.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Runnable append : appends) {
+                            append.run();
+                        }
+                        if (completion != null) {
+                            completion.done();
+                        }
+                    }
+                });
+            }
+        };
+        if (writePipeline == null) {
+            write.run();
+        } else {
+            writePipeline.submit(write);
+        }
+    }
+
+    /**
+     * Write a tile in each layout and container. The layouts without overlap
+     * get the tile cropped to the tile grid, which is the tile itself without
+     * overlap.
+     */
+    private void writeTileFiles(BufferedImage tile, int[] uniformPixel,
+            int level, int tileRow, int tileColumn, List<Runnable> appends)
+            throws IOException {
+        List<String> paths = new ArrayList<>(layouts.size());
+        List<String> croppedPaths = new ArrayList<>(0);
+        for (TileLayout layout : layouts) {
+            String path = layout.getTilePath(
+                    fileName, pyramid, level, tileColumn, tileRow);
+            if (path != null) {
+                if (layout.isOverlapped() || overlap == 0) {
+                    paths.add(path);
+                } else {
+                    croppedPaths.add(path);
+                }
+            }
+        }
+        if (!paths.isEmpty()) {
+            writeImage(tile, uniformPixel, paths, appends);
+        }
+        BufferedImage cropped = null;
+        if (!croppedPaths.isEmpty()) {
+            cropped = crop(tile, level, tileRow, tileColumn);
+            writeImage(cropped, uniformPixel, croppedPaths, appends);
+        }
+        for (int i = 0; i < containers.size(); i++) {
+            BufferedImage image = tile;
+            if (!containersOverlapped.get(i) && overlap > 0) {
+                if (cropped == null) {
+                    cropped = crop(tile, level, tileRow, tileColumn);
+                }
+                image = cropped;
+            }
+            long start = startStage();
+            containers.get(i).writeTile(level, tileColumn, tileRow, image,
+                    uniformPixel);
+            endStage(BuildListener.Stage.WRITE, start);
+        }
+    }
+
+    /**
+     * Crop a tile to the tile grid.
+     */
+    private BufferedImage crop(BufferedImage tile, int level, int tileRow,
+            int tileColumn) {
+        Dimension levelDimensions = getLevelDimensions(level);
+        int x = tileColumn * tileSize;
+        int y = tileRow * tileSize;
+        return tile.getSubimage(
+                tileColumn == 0 ? 0 : overlap,
+                tileRow == 0 ? 0 : overlap,
+                Math.min(tileSize, levelDimensions.width - x),
+                Math.min(tileSize, levelDimensions.height - y));
+    }
+
+    /**
+     * Write an image to several paths.
+     *
+     * @param appends the list where the appends to the archiver are added
+     * instead of being run, or null to run them
+     */
+    private void writeImage(BufferedImage image, int[] uniformPixel,
+            List<String> paths, List<Runnable> appends) throws IOException {
+        if (uniformPixel != null) {
+            writeUniformImage(image, uniformPixel, paths, appends);
+        } else if (paths.size() == 1 && appends == null) {
+            writeImage(image, paths.get(0));
+        } else {
+            long start = startStage();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            tileEncoder.encode(image, outputStream);
+            endStage(BuildListener.Stage.ENCODE, start);
+            writeBytes(outputStream.toByteArray(), paths, appends);
+        }
+    }
+
+    /**
+     * Write a uniform tile, reusing the encoding of a previous tile with the
+     * same dimensions and pixel if any.
+     */
+    private void writeUniformImage(BufferedImage tile, int[] pixel,
+            List<String> paths, List<Runnable> appends) throws IOException {
+        String key = tile.getWidth() + "x" + tile.getHeight() + " "
+                + Arrays.toString(pixel);
+        byte[] encoding = uniformEncodings.get(key);
+        if (encoding == null) {
+            long start = startStage();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            tileEncoder.encode(tile, outputStream);
+            encoding = outputStream.toByteArray();
+            endStage(BuildListener.Stage.ENCODE, start);
+            if (uniformEncodings.size() < MAX_UNIFORM_ENCODINGS) {
+                uniformEncodings.putIfAbsent(key, encoding);
+            }
+        }
+        writeBytes(encoding, paths, appends);
+    }
+
+    /**
+     * Write an encoded tile to several paths.
+     *
+     * @param appends the list where the append is added instead of being
+     * run, or null to run it
+     */
+    private void writeBytes(final byte[] bytes, final List<String> paths,
+            List<Runnable> appends) throws IOException {
+        if (appends != null) {
+            appends.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeBytes(bytes, paths, null);
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Cannot write tile "
+                                + paths.get(0) + ".", ex);
+                    }
+                }
+            });
+            return;
+        }
+        long start = startStage();
+        for (String path : paths) {
+            archiver.appendFile(path, new FilesArchiver.FileAppender<Void>() {
+                @Override
+                public Void append(OutputStream outputStream)
+                        throws IOException {
+                    outputStream.write(bytes);
+                    return null;
+                }
+            });
+        }
+        endStage(BuildListener.Stage.WRITE, start);
+    }
+
+    /**
+     * Check that the tiles can be read back from the first layout.
+     *
+     * @param feature the feature reading back the tiles, for the error
+     * message
+     */
+    private void checkReadableLayout(String feature) {
+        if (!(layouts.get(0) instanceof DeepZoomLayout)) {
+            throw new IllegalArgumentException(feature + " require the "
+                    + "DeepZoom layout to be the first layout.");
+        }
+    }
+
+    /**
+     * Check that no layout is a container, which cannot be completed by
+     * several builds.
+     *
+     * @param feature the feature requiring several builds, for the error
+     * message
+     */
+    private void checkNoContainer(String feature) {
+        for (TileLayout layout : layouts) {
+            if (layout instanceof ContainerLayout) {
+                throw new IllegalArgumentException(feature + " do not "
+                        + "support the container layouts.");
+            }
+        }
+    }
+
+    /**
+     * Check if a tile and all the tiles it is computed from have already been
+     * built and do not need to be recomputed.
+     */
+    private boolean isPrebuilt(int level, int tileRow, int tileColumn) {
+        if (getTileRegionAtLevel(level, tileRow, tileColumn) == null) {
+            return false;
+        }
+        if (level == mergeLevel) {
+            return true;
+        }
+        if (isClean(level, tileRow, tileColumn)) {
+            return true;
+        }
+        return journal != null
+                && journal.isCompleted(level, tileRow, tileColumn);
+    }
+
+    private BufferedImage readPrebuiltTile(int level, int tileRow,
+            int tileColumn) throws IOException {
+        if (isClean(level, tileRow, tileColumn)) {
+            return existingPyramid.readTile(level, tileColumn, tileRow);
+        }
+        return readTile(level, tileRow, tileColumn);
+    }
+
+    /**
+     * Check if none of the tiles at max level under the specified tile is
+     * affected by the dirty region.
+     */
+    private boolean isClean(int level, int tileRow, int tileColumn) {
+        if (dirtyTiles == null) {
+            return false;
         }
+        int shift = nbLevels - level;
+        long firstColumn = (long) tileColumn << shift;
+        long lastColumn = ((long) (tileColumn + 1) << shift) - 1;
+        long firstRow = (long) tileRow << shift;
+        long lastRow = ((long) (tileRow + 1) << shift) - 1;
+        return dirtyTiles.isEmpty()
+                || lastColumn < dirtyTiles.x
+                || firstColumn >= dirtyTiles.x + dirtyTiles.width
+                || lastRow < dirtyTiles.y
+                || firstRow >= dirtyTiles.y + dirtyTiles.height;
+    }
+
+    private BufferedImage readTile(int level, int tileRow, int tileColumn)
+            throws IOException {
+        final String path = layouts.get(0).getTilePath(
+                fileName, pyramid, level, tileColumn, tileRow);
+        return ((ReadableFilesArchiver) archiver).readFile(path,
+                new ReadableFilesArchiver.FileExtractor<BufferedImage>() {
+            @Override
+            public BufferedImage extract(InputStream inputStream)
+                    throws IOException {
+                BufferedImage image = ImageIO.read(inputStream);
+                if (image == null) {
+                    throw new IOException("No codec found for tile " + path);
+                }
+                return image;
+            }
+        });
     }
 
-    private Rectangle getTileRegionInEntireImage(int level, int row, int col) {
+    Rectangle getTileRegionInEntireImage(int level, int row, int col) {
         Rectangle tileRegionAtLevel = getTileRegionAtLevel(level, row, col);
         if (tileRegionAtLevel == null) {
             return null;
@@ -315,10 +1858,16 @@ class TileBuilder {
         return new Rectangle(scaledX, scaledY, scaledWidth, scaledHeight);
     }
 
-    private Rectangle getTileRegionAtLevel(int level, int row, int col) {
+    Dimension getLevelDimensions(int level) {
         double factor = Math.pow(2, nbLevels - level);
-        int levelWidth = (int) Math.ceil(originalWidth / factor);
-        int levelHeight = (int) Math.ceil(originalHeight / factor);
+        return new Dimension((int) Math.ceil(originalWidth / factor),
+                (int) Math.ceil(originalHeight / factor));
+    }
+
+    Rectangle getTileRegionAtLevel(int level, int row, int col) {
+        Dimension levelDimensions = getLevelDimensions(level);
+        int levelWidth = levelDimensions.width;
+        int levelHeight = levelDimensions.height;
 
         int nbCols = (int) Math.ceil((double) levelWidth / tileSize);
         int nbRows = (int) Math.ceil((double) levelHeight / tileSize);
@@ -349,30 +1898,35 @@ class TileBuilder {
     }
 
     /**
-     * Write an image to the archiver.
+     * Write a tile in the tile format to the archiver. The time spent in the
+     * archiver outside of the encoding is reported as the write stage.
      *
      * @param image the image to write
-     * @param format the image file format to use (png, jpeg...)
-     * @param fileName the file where the image must be written to without the
-     * file extension
-     * @param archiver the FilesArchiver to use
+     * @param path the path of the file where the image must be written to
      * @throws IOException
      */
-    private static void writeImage(final BufferedImage image,
-            final String format, String fileName, FilesArchiver archiver)
+    private void writeImage(final BufferedImage image, String path)
             throws IOException {
-        fileName = fileName + "." + format;
-
-        boolean write = archiver.appendFile(fileName,
-                new FilesArchiver.FileAppender<Boolean>() {
+        final long[] encodeNanos = new long[1];
+        long start = startStage();
+        archiver.appendFile(path,
+                new FilesArchiver.FileAppender<Void>() {
             @Override
-            public Boolean append(OutputStream outputStream)
+            public Void append(OutputStream outputStream)
                     throws IOException {
-                return ImageIO.write(image, format, outputStream);
+                long encodeStart = startStage();
+                tileEncoder.encode(image, outputStream);
+                if (listener != null) {
+                    encodeNanos[0] = System.nanoTime() - encodeStart;
+                    listener.stageCompleted(BuildListener.Stage.ENCODE,
+                            encodeNanos[0]);
+                }
+                return null;
             }
         });
-        if (!write) {
-            throw new IOException("No " + format + " image writer found.");
+        if (listener != null) {
+            listener.stageCompleted(BuildListener.Stage.WRITE,
+                    System.nanoTime() - start - encodeNanos[0]);
         }
     }
 }
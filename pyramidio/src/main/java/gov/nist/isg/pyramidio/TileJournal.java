@@ -0,0 +1,199 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.archiver.ReadableFilesArchiver;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Journal of the tiles whose entire subtree (the tile and all the tiles it
+ * has been computed from) has been written.
+ *
+ * The journal is stored in the archive as a sequence of segment files, each
+ * one listing "level column row" lines. Since archives can not be appended to,
+ * a new segment is written every time the journal is flushed.
+ *
+ * @author Antoine Vandecreme
+ */
+class TileJournal {
+
+    private static final Logger logger = Logger.getLogger(
+            TileJournal.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FLUSH_SIZE = 256;
+    private static final long FLUSH_DELAY_MS = 30000;
+
+    private final ReadableFilesArchiver archiver;
+    private final String directory;
+    private final Set<Long> completed = new HashSet<>();
+    private List<long[]> pending = new ArrayList<>();
+    private int nextSegment;
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * Open the journal stored in the specified directory of the archive,
+     * loading the existing segments.
+     *
+     * @param archiver the archiver
+     * @param directory the directory of the journal in the archive
+     * @throws IOException
+     */
+    TileJournal(ReadableFilesArchiver archiver, String directory)
+            throws IOException {
+        this.archiver = archiver;
+        this.directory = directory;
+        while (archiver.exists(getSegmentPath(nextSegment))) {
+            load(getSegmentPath(nextSegment));
+            nextSegment++;
+        }
+        if (!completed.isEmpty()) {
+            logger.log(Level.INFO, "Resuming build with {0} completed "
+                    + "subtrees from journal {1}",
+                    new Object[]{completed.size(), directory});
+        }
+    }
+
+    synchronized boolean isCompleted(int level, int row, int column) {
+        return completed.contains(getKey(level, row, column));
+    }
+
+    /**
+     * Record that the subtree rooted at the specified tile has been written.
+     */
+    void complete(int level, int row, int column) {
+        List<long[]> toFlush = null;
+        synchronized (this) {
+            completed.add(getKey(level, row, column));
+            pending.add(new long[]{level, column, row});
+            long now = System.currentTimeMillis();
+            if (pending.size() >= FLUSH_SIZE
+                    || now - lastFlush >= FLUSH_DELAY_MS) {
+                toFlush = pending;
+                pending = new ArrayList<>();
+                lastFlush = now;
+            }
+        }
+        if (toFlush != null) {
+            write(toFlush);
+        }
+    }
+
+    /**
+     * Write all the pending entries.
+     */
+    void flush() {
+        List<long[]> toFlush;
+        synchronized (this) {
+            toFlush = pending;
+            pending = new ArrayList<>();
+            lastFlush = System.currentTimeMillis();
+        }
+        if (!toFlush.isEmpty()) {
+            write(toFlush);
+        }
+    }
+
+    private void write(final List<long[]> entries) {
+        String path;
+        synchronized (this) {
+            path = getSegmentPath(nextSegment++);
+        }
+        try {
+            archiver.appendFile(path, new FilesArchiver.FileAppender<Void>() {
+                @Override
+                public Void append(OutputStream outputStream)
+                        throws IOException {
+                    Writer out = new OutputStreamWriter(outputStream, UTF8);
+                    for (long[] entry : entries) {
+                        out.write(entry[0] + " " + entry[1] + " " + entry[2]
+                                + "\n");
+                    }
+                    out.flush();
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write journal segment "
+                    + path, ex);
+        }
+    }
+
+    private void load(final String path) throws IOException {
+        archiver.readFile(path,
+                new ReadableFilesArchiver.FileExtractor<Void>() {
+            @Override
+            public Void extract(InputStream inputStream) throws IOException {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(inputStream, UTF8));
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[4096];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, read);
+                }
+                // A segment truncated by a crash may end with a partial line
+                // looking like a valid entry, so only the lines terminated
+                // by a newline are loaded
+                int end = text.lastIndexOf("\n");
+                if (end < text.length() - 1) {
+                    logger.log(Level.WARNING,
+                            "Ignoring truncated journal entry in {0}", path);
+                }
+                if (end < 0) {
+                    return null;
+                }
+                for (String line : text.substring(0, end).split("\n")) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length != 3) {
+                        logger.log(Level.WARNING,
+                                "Ignoring invalid journal entry {0}", line);
+                        continue;
+                    }
+                    try {
+                        completed.add(getKey(Integer.parseInt(fields[0]),
+                                Integer.parseInt(fields[2]),
+                                Integer.parseInt(fields[1])));
+                    } catch (NumberFormatException ex) {
+                        logger.log(Level.WARNING,
+                                "Ignoring invalid journal entry {0}", line);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private String getSegmentPath(int segment) {
+        return FilenameUtils.concat(directory,
+                String.format("segment-%06d.txt", segment));
+    }
+
+    private static long getKey(int level, int row, int column) {
+        return ((long) level << 58) | ((long) column << 29) | row;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded hand-off between the threads composing the tiles and a dedicated
+ * pool of threads encoding and writing them, or an executor provided by the
+ * caller.
+ *
+ * Submitting a write blocks when the number of pending writes reaches the
+ * queue size, which caps the number of tiles held in memory waiting to be
+ * written.
+ *
+ * @author Antoine Vandecreme
+ */
+class TileWritePipeline {
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int capacity;
+    private final Semaphore permits;
+    private final AtomicReference<RuntimeException> failure
+            = new AtomicReference<>();
+    private volatile boolean aborted;
+
+    TileWritePipeline(int threads, int queueSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "The number of writer threads must be positive.");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException(
+                    "The writer queue size must be positive.");
+        }
+        // Pending writes are bounded by the semaphore, not by the queue.
+        executor = new ThreadPoolExecutor(threads, threads,
+                0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new WriterThreadFactory());
+        ownExecutor = true;
+        capacity = queueSize + threads;
+        permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Create a pipeline running the writes on an executor which is not shut
+     * down by the pipeline.
+     *
+     * @param executor the executor
+     * @param queueSize the maximum number of pending writes, running ones
+     * included
+     */
+    TileWritePipeline(ExecutorService executor, int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException(
+                    "The writer queue size must be positive.");
+        }
+        this.executor = executor;
+        ownExecutor = false;
+        capacity = queueSize;
+        permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Submit a write, blocking while the queue is full.
+     *
+     * @param write the write to execute
+     */
+    void submit(final Runnable write) {
+        throwIfFailed();
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting to write a tile.", ex);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (failure.get() == null && !aborted) {
+                            write.run();
+                        }
+                    } catch (RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Wait for all the submitted writes to complete and release the writer
+     * threads.
+     *
+     * @throws RuntimeException the first failure of a write if any
+     */
+    void finish() {
+        try {
+            if (ownExecutor) {
+                executor.shutdown();
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // Keep waiting, tiles are still being written.
+                }
+            } else {
+                // All the permits are back once the writes completed
+                permits.acquire(capacity);
+                permits.release(capacity);
+            }
+        } catch (InterruptedException ex) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting for tiles to be written.", ex);
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Abort all the pending writes.
+     */
+    void abort() {
+        aborted = true;
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void throwIfFailed() {
+        RuntimeException ex = failure.get();
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r,
+                    "pyramidio-tile-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+/**
+ * Reader of the regions of a tiled image, such as a tiled TIFF file, decoded
+ * by ImageIO.
+ *
+ * The regions are assembled from the native tiles of the image, each tile
+ * being decoded once into a LRU cache of decoded tiles, instead of decoding
+ * all the tiles overlapping each region read. The pyramid builders grow the
+ * cache to hold the tiles of the regions they read concurrently.
+ *
+ * @author Antoine Vandecreme
+ */
+public class TiledImageReader extends DirectImageReader {
+
+    private static final int DEFAULT_CACHE_SIZE = 64;
+    private static final int MAX_BYTES_PER_PIXEL = 8;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int columns;
+    private final int rows;
+    private final AtomicLong decodedTiles = new AtomicLong();
+
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private final LinkedHashMap<Integer, FutureTask<BufferedImage>> cache
+            = new LinkedHashMap<Integer, FutureTask<BufferedImage>>(
+                    16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, FutureTask<BufferedImage>> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Open a tiled image.
+     *
+     * @param imageFile the image file
+     * @throws IOException if the image can not be read or is not tiled
+     */
+    public TiledImageReader(File imageFile) throws IOException {
+        super(imageFile);
+        if (!isTiled()) {
+            throw new IOException("The image " + imageFile
+                    + " is not tiled.");
+        }
+        int[] tileSize = probeImageReader(new Function<int[]>() {
+            @Override
+            public int[] apply(ImageReader imageReader) throws IOException {
+                return new int[]{imageReader.getTileWidth(0),
+                    imageReader.getTileHeight(0)};
+            }
+        });
+        tileWidth = tileSize[0];
+        tileHeight = tileSize[1];
+        columns = (int) ((getWidth() + (long) tileWidth - 1) / tileWidth);
+        rows = (int) ((getHeight() + (long) tileHeight - 1) / tileHeight);
+    }
+
+    /**
+     * @return the width of the native tiles
+     */
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    /**
+     * @return the height of the native tiles
+     */
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * @return the maximum number of decoded tiles kept in the cache
+     */
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cacheSize;
+        }
+    }
+
+    /**
+     * Set the maximum number of decoded tiles kept in the cache.
+     *
+     * @param cacheSize the number of tiles. Default to 64.
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException(
+                    "The cache size must be positive.");
+        }
+        synchronized (cache) {
+            this.cacheSize = cacheSize;
+        }
+    }
+
+    /**
+     * Grow the cache to hold the tiles overlapping the given number of
+     * regions of the given size read concurrently, plus the tiles along the
+     * boundaries between the regions already read and the ones to read, when
+     * the regions are read in Z-order or by rows. The cache is limited to an
+     * eighth of the maximum heap size.
+     */
+    void ensureCacheCapacity(int regionWidth, int regionHeight,
+            int regions) {
+        long tiles = (long) regions
+                * (Math.min(regionWidth / tileWidth + 2, columns))
+                * (Math.min(regionHeight / tileHeight + 2, rows))
+                + 2L * (columns + rows);
+        tiles = Math.min(tiles, (long) columns * rows);
+        long maxTiles = Runtime.getRuntime().maxMemory() / 8
+                / ((long) tileWidth * tileHeight * MAX_BYTES_PER_PIXEL);
+        tiles = Math.min(tiles, Math.max(maxTiles, DEFAULT_CACHE_SIZE));
+        synchronized (cache) {
+            cacheSize = (int) Math.max(cacheSize, tiles);
+        }
+    }
+
+    /**
+     * @return the number of tiles decoded so far
+     */
+    public long getDecodedTiles() {
+        return decodedTiles.get();
+    }
+
+    /**
+     * Get the number of pixels of the tiles overlapping a region.
+     */
+    long getTilePixels(Rectangle region) {
+        long width = (long) ((region.x + region.width - 1) / tileWidth
+                - region.x / tileWidth + 1) * tileWidth;
+        long height = (long) ((region.y + region.height - 1) / tileHeight
+                - region.y / tileHeight + 1) * tileHeight;
+        return width * height;
+    }
+
+    /**
+     * Remove the decoded tiles from the cache.
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public BufferedImage read(Rectangle rectangle) throws IOException {
+        return read(rectangle, 1);
+    }
+
+    /**
+     * Read a region subsampled from the decoded tiles.
+     */
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        Rectangle region = rectangle.intersection(
+                new Rectangle(0, 0, getWidth(), getHeight()));
+        if (region.isEmpty() || !region.equals(rectangle)) {
+            throw new IllegalArgumentException("The region " + rectangle
+                    + " is not inside the image " + getImageFile());
+        }
+        int firstColumn = region.x / tileWidth;
+        int lastColumn = (region.x + region.width - 1) / tileWidth;
+        int firstRow = region.y / tileHeight;
+        int lastRow = (region.y + region.height - 1) / tileHeight;
+        BufferedImage result = null;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int tileX = column * tileWidth;
+                int tileY = row * tileHeight;
+                Rectangle tileRegion = new Rectangle(tileX, tileY,
+                        tileWidth, tileHeight).intersection(region);
+                // First pixel of the tile region kept by the subsampling
+                int x = region.x + (tileRegion.x - region.x + subsampling - 1)
+                        / subsampling * subsampling;
+                int y = region.y + (tileRegion.y - region.y + subsampling - 1)
+                        / subsampling * subsampling;
+                if (x >= tileRegion.x + tileRegion.width
+                        || y >= tileRegion.y + tileRegion.height) {
+                    continue;
+                }
+                BufferedImage tile = getTile(column, row);
+                if (result == null) {
+                    result = BufferedImageHelper.createBufferedImage(
+                            (region.width + subsampling - 1) / subsampling,
+                            (region.height + subsampling - 1) / subsampling,
+                            tile);
+                }
+                BufferedImageHelper.subsample(tile.getRaster(),
+                        new Rectangle(x - tileX, y - tileY,
+                                tileRegion.x + tileRegion.width - x,
+                                tileRegion.y + tileRegion.height - y),
+                        subsampling, result.getRaster(),
+                        (x - region.x) / subsampling,
+                        (y - region.y) / subsampling);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Release the decoded tiles and the decoder sessions.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        clearCache();
+        super.close();
+    }
+
+    /**
+     * Convert the 8 bits RGB and RGBA tiles of custom type, as decoded from
+     * TIFF files, to the standard types supported by the resizers.
+     */
+    private static BufferedImage toStandardType(BufferedImage tile) {
+        ColorModel colorModel = tile.getColorModel();
+        int bands = tile.getRaster().getNumBands();
+        if (tile.getType() != BufferedImage.TYPE_CUSTOM
+                || !(colorModel instanceof ComponentColorModel)
+                || !colorModel.getColorSpace().isCS_sRGB()
+                || colorModel.isAlphaPremultiplied()
+                || tile.getRaster().getTransferType() != DataBuffer.TYPE_BYTE
+                || (bands != 3 && bands != 4)) {
+            return tile;
+        }
+        BufferedImage result = new BufferedImage(tile.getWidth(),
+                tile.getHeight(), bands == 3 ? BufferedImage.TYPE_3BYTE_BGR
+                        : BufferedImage.TYPE_4BYTE_ABGR);
+        result.getRaster().setRect(tile.getRaster());
+        return result;
+    }
+
+    /**
+     * Get a decoded tile from the cache, decoding it if needed. Concurrent
+     * requests of a tile not in the cache wait for a single decoding.
+     */
+    private BufferedImage getTile(final int column, final int row)
+            throws IOException {
+        Integer key = row * columns + column;
+        final Rectangle tileRegion = new Rectangle(column * tileWidth,
+                row * tileHeight, tileWidth, tileHeight).intersection(
+                        new Rectangle(0, 0, getWidth(), getHeight()));
+        FutureTask<BufferedImage> task;
+        synchronized (cache) {
+            task = cache.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() throws IOException {
+                        decodedTiles.incrementAndGet();
+                        return executeWithImageReader(
+                                new Function<BufferedImage>() {
+                            @Override
+                            public BufferedImage apply(
+                                    ImageReader imageReader)
+                                    throws IOException {
+                                ImageReadParam param
+                                        = imageReader.getDefaultReadParam();
+                                param.setSourceRegion(tileRegion);
+                                return toStandardType(
+                                        imageReader.read(0, param));
+                            }
+                        });
+                    }
+                });
+                cache.put(key, task);
+            }
+        }
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding the tile "
+                    + column + "," + row, ex);
+        } catch (ExecutionException ex) {
+            synchronized (cache) {
+                if (cache.get(key) == task) {
+                    cache.remove(key);
+                }
+            }
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException("Cannot decode the tile " + column
+                    + "," + row + " of " + getImageFile(), cause);
+        }
+    }
+}
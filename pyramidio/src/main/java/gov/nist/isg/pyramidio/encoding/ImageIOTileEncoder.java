@@ -0,0 +1,195 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Tile encoder using the ImageIO writers.
+ *
+ * Each thread keeps its writer instead of looking it up in the ImageIO
+ * registry for every tile, and the tiles are buffered in memory instead of
+ * the temporary files ImageIO.write may use. Without compression settings,
+ * the tiles are encoded exactly like ImageIO.write does. The writers are
+ * disposed when the encoder is closed.
+ *
+ * @author Antoine Vandecreme
+ */
+public class ImageIOTileEncoder implements TileEncoder, Closeable {
+
+    private final String format;
+    private float compressionQuality = -1;
+    private String compressionType;
+    private boolean progressive;
+
+    private volatile ThreadLocal<ImageWriter> writers = new ThreadLocal<>();
+    private final Queue<ImageWriter> allWriters
+            = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create an encoder.
+     *
+     * @param format the image file format such as jpg or png
+     */
+    public ImageIOTileEncoder(String format) {
+        this.format = format;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the compression quality. For JPEG, it is the usual quality factor.
+     * For PNG, 1 is the fastest deflate level and 0 the smallest output.
+     *
+     * @param compressionQuality the quality between 0 and 1 or -1 to use the
+     * default of the writer. Default to -1.
+     */
+    public void setCompressionQuality(float compressionQuality) {
+        if (compressionQuality != -1
+                && (compressionQuality < 0 || compressionQuality > 1)) {
+            throw new IllegalArgumentException(
+                    "The compression quality must be between 0 and 1.");
+        }
+        this.compressionQuality = compressionQuality;
+    }
+
+    /**
+     * Set the compression type, among the types of the writer such as LZW or
+     * Deflate for TIFF.
+     *
+     * @param compressionType the compression type or null to use the default
+     * of the writer. Default to null.
+     */
+    public void setCompressionType(String compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    /**
+     * Encode the tiles in progressive mode if supported by the format.
+     *
+     * @param progressive true for progressive encoding. Default to false.
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream outputStream)
+            throws IOException {
+        ImageWriter writer = getWriter(image);
+        boolean success = false;
+        try (ImageOutputStream imageOutputStream
+                = new MemoryCacheImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null),
+                    getWriteParam(writer));
+            success = true;
+        } finally {
+            if (success) {
+                writer.setOutput(null);
+            } else {
+                // Do not reuse a writer in an unknown state
+                writers.remove();
+                allWriters.remove(writer);
+                writer.dispose();
+            }
+        }
+    }
+
+    private ImageWriter getWriter(BufferedImage image) throws IOException {
+        ImageWriter writer = writers.get();
+        if (writer != null
+                && writer.getOriginatingProvider().canEncodeImage(image)) {
+            return writer;
+        }
+        Iterator<ImageWriter> iterator = ImageIO.getImageWriters(
+                ImageTypeSpecifier.createFromRenderedImage(image), format);
+        if (!iterator.hasNext()) {
+            throw new IOException("No " + format + " image writer found.");
+        }
+        if (writer != null) {
+            allWriters.remove(writer);
+            writer.dispose();
+        }
+        writer = iterator.next();
+        writers.set(writer);
+        allWriters.add(writer);
+        return writer;
+    }
+
+    /**
+     * Get the number of writers kept by the threads.
+     */
+    int getWriterCount() {
+        return allWriters.size();
+    }
+
+    /**
+     * Dispose the writers kept by the threads. The encoder can still be used
+     * afterward, the threads then get new writers.
+     */
+    @Override
+    public void close() {
+        writers = new ThreadLocal<>();
+        ImageWriter writer;
+        while ((writer = allWriters.poll()) != null) {
+            writer.dispose();
+        }
+    }
+
+    private ImageWriteParam getWriteParam(ImageWriter writer)
+            throws IOException {
+        if (compressionQuality < 0 && compressionType == null
+                && !progressive) {
+            return null;
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (compressionQuality >= 0 || compressionType != null) {
+            if (!param.canWriteCompressed()) {
+                throw new IOException("The " + format
+                        + " image writer does not support compression.");
+            }
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (compressionType != null) {
+                param.setCompressionType(compressionType);
+            } else if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            if (compressionQuality >= 0) {
+                param.setCompressionQuality(compressionQuality);
+            }
+        }
+        if (progressive) {
+            if (!param.canWriteProgressive()) {
+                throw new IOException("The " + format
+                        + " image writer does not support progressive mode.");
+            }
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        return param;
+    }
+}
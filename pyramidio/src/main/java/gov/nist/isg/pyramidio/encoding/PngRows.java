@@ -0,0 +1,241 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Direct access to the rows of the pixels of an image, in the PNG sample
+ * layout (interleaved, big endian), without going through the Raster API.
+ *
+ * Only the non premultiplied gray and sRGB images with 8 or 16 bits samples
+ * stored in interleaved or packed rasters are supported.
+ *
+ * @author Antoine Vandecreme
+ */
+class PngRows {
+
+    static final int COLOR_TYPE_GRAY = 0;
+    static final int COLOR_TYPE_RGB = 2;
+    static final int COLOR_TYPE_GRAY_ALPHA = 4;
+    static final int COLOR_TYPE_RGB_ALPHA = 6;
+
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bitDepth;
+    private final int bands;
+    private final int rowBytes;
+    private final int bytesPerPixel;
+
+    private byte[] bytes;
+    private short[] shorts;
+    private int[] ints;
+    private int offset;
+    private int scanlineStride;
+    private int pixelStride;
+    private int[] bandOffsets;
+    private int[] bitOffsets;
+    private boolean contiguous;
+
+    private PngRows(Raster raster, int colorType, int bitDepth) {
+        this.width = raster.getWidth();
+        this.height = raster.getHeight();
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        this.bands = raster.getNumBands();
+        this.bytesPerPixel = bands * bitDepth / 8;
+        this.rowBytes = width * bytesPerPixel;
+    }
+
+    /**
+     * Get the rows of an image.
+     *
+     * @param image the image
+     * @return the rows or null if the layout of the image is not supported
+     */
+    static PngRows create(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        if (colorModel.isAlphaPremultiplied()) {
+            return null;
+        }
+        int colorType = getColorType(colorModel);
+        if (colorType < 0) {
+            return null;
+        }
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int translateX = raster.getSampleModelTranslateX();
+        int translateY = raster.getSampleModelTranslateY();
+        if (colorModel instanceof ComponentColorModel
+                && sampleModel instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+            int[] bankIndices = csm.getBankIndices();
+            for (int bankIndex : bankIndices) {
+                if (bankIndex != bankIndices[0]) {
+                    return null;
+                }
+            }
+            int bitDepth = getBitDepth(colorModel, 8);
+            if (bitDepth < 0) {
+                bitDepth = getBitDepth(colorModel, 16);
+            }
+            PngRows rows;
+            if (bitDepth == 8 && dataBuffer instanceof DataBufferByte) {
+                rows = new PngRows(raster, colorType, 8);
+                rows.bytes = ((DataBufferByte) dataBuffer).getData(
+                        bankIndices[0]);
+            } else if (bitDepth == 16
+                    && dataBuffer instanceof DataBufferUShort) {
+                rows = new PngRows(raster, colorType, 16);
+                rows.shorts = ((DataBufferUShort) dataBuffer).getData(
+                        bankIndices[0]);
+            } else {
+                return null;
+            }
+            rows.scanlineStride = csm.getScanlineStride();
+            rows.pixelStride = csm.getPixelStride();
+            rows.bandOffsets = csm.getBandOffsets();
+            rows.offset = dataBuffer.getOffsets()[bankIndices[0]]
+                    - translateY * rows.scanlineStride
+                    - translateX * rows.pixelStride;
+            boolean contiguous = rows.pixelStride == rows.bands;
+            for (int b = 0; b < rows.bands; b++) {
+                contiguous &= rows.bandOffsets[b] == b;
+            }
+            rows.contiguous = contiguous;
+            return rows;
+        }
+        if (colorModel instanceof DirectColorModel
+                && sampleModel instanceof SinglePixelPackedSampleModel
+                && dataBuffer instanceof DataBufferInt
+                && getBitDepth(colorModel, 8) == 8) {
+            SinglePixelPackedSampleModel sppsm
+                    = (SinglePixelPackedSampleModel) sampleModel;
+            PngRows rows = new PngRows(raster, colorType, 8);
+            rows.ints = ((DataBufferInt) dataBuffer).getData();
+            rows.scanlineStride = sppsm.getScanlineStride();
+            rows.bitOffsets = sppsm.getBitOffsets();
+            rows.offset = dataBuffer.getOffset()
+                    - translateY * rows.scanlineStride - translateX;
+            return rows;
+        }
+        return null;
+    }
+
+    private static int getColorType(ColorModel colorModel) {
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        boolean alpha = colorModel.hasAlpha();
+        if (colorSpace.isCS_sRGB()) {
+            return alpha ? COLOR_TYPE_RGB_ALPHA : COLOR_TYPE_RGB;
+        }
+        if (colorSpace.getType() == ColorSpace.TYPE_GRAY) {
+            return alpha ? COLOR_TYPE_GRAY_ALPHA : COLOR_TYPE_GRAY;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bit depth if all the components have that size, -1
+     * otherwise
+     */
+    private static int getBitDepth(ColorModel colorModel, int bitDepth) {
+        for (int size : colorModel.getComponentSize()) {
+            if (size != bitDepth) {
+                return -1;
+            }
+        }
+        return bitDepth;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getColorType() {
+        return colorType;
+    }
+
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @return the number of bytes of a row, without the filter type byte
+     */
+    int getRowBytes() {
+        return rowBytes;
+    }
+
+    /**
+     * @return the number of bytes of a pixel
+     */
+    int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * Copy a row in the PNG sample layout.
+     *
+     * @param y the row index
+     * @param row the destination array of at least getRowBytes() bytes
+     */
+    void read(int y, byte[] row) {
+        int start = offset + y * scanlineStride;
+        if (ints != null) {
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = ints[start + x];
+                for (int b = 0; b < bands; b++) {
+                    row[i++] = (byte) (pixel >>> bitOffsets[b]);
+                }
+            }
+        } else if (shorts != null) {
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int pixelStart = start + x * pixelStride;
+                for (int b = 0; b < bands; b++) {
+                    short sample = shorts[pixelStart + bandOffsets[b]];
+                    row[i++] = (byte) (sample >>> 8);
+                    row[i++] = (byte) sample;
+                }
+            }
+        } else if (contiguous) {
+            System.arraycopy(bytes, start, row, 0, rowBytes);
+        } else {
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int pixelStart = start + x * pixelStride;
+                for (int b = 0; b < bands; b++) {
+                    row[i++] = bytes[pixelStart + bandOffsets[b]];
+                }
+            }
+        }
+    }
+}
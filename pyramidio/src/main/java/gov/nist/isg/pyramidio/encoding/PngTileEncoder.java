@@ -0,0 +1,664 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG tile encoder reading the primitive arrays of the rasters directly.
+ *
+ * Each row is filtered with the filter minimizing the sum of the absolute
+ * values of its bytes, estimated on a sample of the row, and compressed with
+ * a Deflater kept by each thread. The tiles larger than twice the block size
+ * are split in blocks of rows which are filtered and compressed in parallel,
+ * each block using the end of the previous one as dictionary. The blocks of
+ * the tiles encoded by a ForkJoinPool worker are forked in its pool, the
+ * blocks of the tiles encoded by other threads are run by a pool of threads
+ * of the encoder.
+ *
+ * The images which are not gray or sRGB with 8 or 16 bits samples, such as
+ * the indexed images, are encoded by the ImageIO writer, disposed when the
+ * encoder is closed.
+ *
+ * @author Antoine Vandecreme
+ */
+public class PngTileEncoder implements TileEncoder, Closeable {
+
+    /**
+     * The row filters of the PNG specification.
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Select the best filter for each row.
+         */
+        ADAPTIVE
+    }
+
+    private static final byte[] SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+    private static final int SAMPLING_STEP = 5;
+
+    private int compressionLevel = 4;
+    private Filter filter = Filter.ADAPTIVE;
+    private int blockSize = 256 * 1024;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private final ImageIOTileEncoder fallbackEncoder
+            = new ImageIOTileEncoder("png");
+
+    private final ThreadLocal<EncoderState> states
+            = new ThreadLocal<EncoderState>() {
+        @Override
+        protected EncoderState initialValue() {
+            return new EncoderState();
+        }
+    };
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Set the deflate compression level.
+     *
+     * @param compressionLevel the level between 0 (no compression) and 9
+     * (smallest output). Default to 4 like the ImageIO writer.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException(
+                    "The compression level must be between 0 and 9.");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Set the filter applied to the rows.
+     *
+     * @param filter the filter. Default to ADAPTIVE.
+     */
+    public void setFilter(Filter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("The filter cannot be null.");
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Set the number of bytes of the blocks compressed in parallel. Only the
+     * tiles of at least 2 blocks are split.
+     *
+     * @param blockSize the block size in bytes. Default to 256KB.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException(
+                    "The block size must be at least " + DICTIONARY_SIZE
+                    + " bytes.");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Set the number of threads compressing the blocks of a tile encoded
+     * outside of a ForkJoinPool. The thread encoding the tile takes part in
+     * the compression. The tiles encoded by a ForkJoinPool worker are
+     * compressed by the threads of its pool.
+     *
+     * @param parallelism the number of threads, 1 to never split the tiles.
+     * Default to the number of processors.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+        if (executor != null) {
+            // Resize the threads instead of shutting them down, the
+            // encodings in progress may still submit blocks
+            int threads = Math.max(parallelism - 1, 1);
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    /**
+     * Dispose the ImageIO writers of the images not encoded directly. The
+     * encoder can still be used afterward.
+     */
+    @Override
+    public void close() {
+        fallbackEncoder.close();
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream outputStream)
+            throws IOException {
+        PngRows rows = PngRows.create(image);
+        if (rows == null) {
+            fallbackEncoder.encode(image, outputStream);
+            return;
+        }
+        EncoderState state = states.get();
+        outputStream.write(SIGNATURE);
+        writeHeader(rows, state, outputStream);
+        long size = (long) rows.getHeight() * (rows.getRowBytes() + 1);
+        int nbBlocks = (int) Math.min(rows.getHeight(), size / blockSize);
+        if (parallelism > 1 && nbBlocks >= 2) {
+            writeBlocks(rows, nbBlocks, state, outputStream);
+        } else {
+            writeRows(rows, state, outputStream);
+        }
+        writeChunk(IEND, new byte[0], 0, 0, state.crc, outputStream);
+    }
+
+    private void writeHeader(PngRows rows, EncoderState state,
+            OutputStream outputStream) throws IOException {
+        byte[] header = new byte[13];
+        writeInt(rows.getWidth(), header, 0);
+        writeInt(rows.getHeight(), header, 4);
+        header[8] = (byte) rows.getBitDepth();
+        header[9] = (byte) rows.getColorType();
+        // Compression, filter and interlace methods
+        header[10] = 0;
+        header[11] = 0;
+        header[12] = 0;
+        writeChunk(IHDR, header, 0, header.length, state.crc, outputStream);
+    }
+
+    /**
+     * Filter and compress the rows one after the other in a single zlib
+     * stream.
+     */
+    private void writeRows(PngRows rows, EncoderState state,
+            OutputStream outputStream) throws IOException {
+        int rowBytes = rows.getRowBytes();
+        state.ensureCapacity(rowBytes);
+        Deflater deflater = state.getDeflater(compressionLevel, false);
+        byte[] buffer = state.buffer;
+        int bufferLength = 0;
+        for (int y = 0; y < rows.getHeight(); y++) {
+            byte[] swap = state.previous;
+            state.previous = state.current;
+            state.current = swap;
+            if (y == 0) {
+                Arrays.fill(state.previous, (byte) 0);
+            }
+            rows.read(y, state.current);
+            filterRow(state.current, state.previous, rowBytes,
+                    rows.getBytesPerPixel(), state.filtered);
+            deflater.setInput(state.filtered, 0, rowBytes + 1);
+            while (!deflater.needsInput()) {
+                bufferLength += deflater.deflate(buffer, bufferLength,
+                        buffer.length - bufferLength);
+                if (bufferLength == buffer.length) {
+                    writeChunk(IDAT, buffer, 0, bufferLength, state.crc,
+                            outputStream);
+                    bufferLength = 0;
+                }
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            bufferLength += deflater.deflate(buffer, bufferLength,
+                    buffer.length - bufferLength);
+            if (bufferLength == buffer.length) {
+                writeChunk(IDAT, buffer, 0, bufferLength, state.crc,
+                        outputStream);
+                bufferLength = 0;
+            }
+        }
+        if (bufferLength > 0) {
+            writeChunk(IDAT, buffer, 0, bufferLength, state.crc,
+                    outputStream);
+        }
+    }
+
+    /**
+     * Filter the blocks of rows in parallel, then compress them in parallel
+     * as raw deflate streams ended by a sync flush, which concatenated form
+     * a single zlib stream.
+     */
+    private void writeBlocks(final PngRows rows, int nbBlocks,
+            EncoderState state, OutputStream outputStream)
+            throws IOException {
+        final int height = rows.getHeight();
+        final int rowBytes = rows.getRowBytes();
+        final int filteredRowBytes = rowBytes + 1;
+        final byte[] filtered = new byte[height * filteredRowBytes];
+        final int[] firstRows = new int[nbBlocks + 1];
+        for (int i = 0; i <= nbBlocks; i++) {
+            firstRows[i] = (int) ((long) height * i / nbBlocks);
+        }
+
+        List<Callable<Void>> filterTasks = new ArrayList<>(nbBlocks);
+        for (int i = 0; i < nbBlocks; i++) {
+            final int block = i;
+            filterTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[] previous = new byte[rowBytes];
+                    byte[] current = new byte[rowBytes];
+                    byte[] row = new byte[filteredRowBytes];
+                    int y = firstRows[block];
+                    if (y > 0) {
+                        rows.read(y - 1, previous);
+                    }
+                    for (; y < firstRows[block + 1]; y++) {
+                        rows.read(y, current);
+                        filterRow(current, previous, rowBytes,
+                                rows.getBytesPerPixel(), row);
+                        System.arraycopy(row, 0, filtered,
+                                y * filteredRowBytes, filteredRowBytes);
+                        byte[] swap = previous;
+                        previous = current;
+                        current = swap;
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(filterTasks);
+
+        final int lastBlock = nbBlocks - 1;
+        List<Callable<byte[]>> deflateTasks = new ArrayList<>(nbBlocks);
+        final long[] adlers = new long[nbBlocks];
+        for (int i = 0; i < nbBlocks; i++) {
+            final int block = i;
+            deflateTasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    int start = firstRows[block] * filteredRowBytes;
+                    int length = firstRows[block + 1] * filteredRowBytes
+                            - start;
+                    Adler32 adler = new Adler32();
+                    adler.update(filtered, start, length);
+                    adlers[block] = adler.getValue();
+
+                    EncoderState state = states.get();
+                    Deflater deflater = state.getDeflater(
+                            compressionLevel, true);
+                    if (block > 0) {
+                        int dictionaryLength = Math.min(
+                                DICTIONARY_SIZE, start);
+                        deflater.setDictionary(filtered,
+                                start - dictionaryLength, dictionaryLength);
+                    }
+                    deflater.setInput(filtered, start, length);
+                    ByteArrayOutputStream output = new ByteArrayOutputStream(
+                            length / 2);
+                    byte[] buffer = state.buffer;
+                    if (block == lastBlock) {
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            int n = deflater.deflate(buffer);
+                            output.write(buffer, 0, n);
+                        }
+                    } else {
+                        int n;
+                        do {
+                            n = deflater.deflate(buffer, 0, buffer.length,
+                                    Deflater.SYNC_FLUSH);
+                            output.write(buffer, 0, n);
+                        } while (n == buffer.length);
+                    }
+                    return output.toByteArray();
+                }
+            });
+        }
+        List<byte[]> compressed = invokeAll(deflateTasks);
+
+        long adler = adlers[0];
+        for (int i = 1; i < nbBlocks; i++) {
+            adler = combineAdler32(adler, adlers[i],
+                    (long) (firstRows[i + 1] - firstRows[i])
+                    * filteredRowBytes);
+        }
+        for (int i = 0; i < nbBlocks; i++) {
+            byte[] data = compressed.get(i);
+            if (i == 0) {
+                // zlib header: deflate with a 32KB window, no dictionary
+                byte[] header = new byte[2 + data.length];
+                header[0] = 0x78;
+                header[1] = (byte) 0x9c;
+                System.arraycopy(data, 0, header, 2, data.length);
+                data = header;
+            }
+            if (i == lastBlock) {
+                byte[] trailer = Arrays.copyOf(data, data.length + 4);
+                writeInt((int) adler, trailer, data.length);
+                data = trailer;
+            }
+            writeChunk(IDAT, data, 0, data.length, state.crc, outputStream);
+        }
+    }
+
+    /**
+     * Run the tasks in the ForkJoinPool of the current thread or on the
+     * executor, the current thread running the tasks not started yet by the
+     * executor threads.
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks)
+            throws IOException {
+        if (ForkJoinTask.inForkJoinPool()) {
+            // Joining the forked tasks runs them or other tasks of the pool
+            // instead of blocking the worker
+            List<ForkJoinTask<T>> forkJoinTasks = new ArrayList<>(
+                    tasks.size());
+            for (Callable<T> task : tasks) {
+                forkJoinTasks.add(ForkJoinTask.adapt(task));
+            }
+            try {
+                ForkJoinTask.invokeAll(forkJoinTasks);
+            } catch (RuntimeException ex) {
+                throw new IOException("Cannot encode tile.", ex);
+            }
+            List<T> results = new ArrayList<>(tasks.size());
+            for (ForkJoinTask<T> task : forkJoinTasks) {
+                results.add(task.getRawResult());
+            }
+            return results;
+        }
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        ExecutorService service = getExecutor();
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<T> future = new FutureTask<>(tasks.get(i));
+            futures.add(future);
+            if (i > 0) {
+                service.execute(future);
+            }
+        }
+        for (FutureTask<T> future : futures) {
+            future.run();
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (FutureTask<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding a tile.", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Cannot encode tile.", ex.getCause());
+        }
+        return results;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(parallelism - 1, 1);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "png-deflater");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Filter a row.
+     *
+     * @param out the destination of the filter type followed by the
+     * filtered row
+     */
+    private void filterRow(byte[] current, byte[] previous, int length,
+            int bpp, byte[] out) {
+        int type = filter == Filter.ADAPTIVE
+                ? selectFilter(current, previous, length, bpp)
+                : filter.ordinal();
+        out[0] = (byte) type;
+        switch (type) {
+            case 0:
+                System.arraycopy(current, 0, out, 1, length);
+                break;
+            case 1:
+                System.arraycopy(current, 0, out, 1, bpp);
+                for (int i = bpp; i < length; i++) {
+                    out[i + 1] = (byte) (current[i] - current[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    out[i + 1] = (byte) (current[i] - previous[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < bpp; i++) {
+                    out[i + 1] = (byte) (current[i]
+                            - ((previous[i] & 0xff) >> 1));
+                }
+                for (int i = bpp; i < length; i++) {
+                    out[i + 1] = (byte) (current[i] - (((current[i - bpp]
+                            & 0xff) + (previous[i] & 0xff)) >> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < bpp; i++) {
+                    out[i + 1] = (byte) (current[i] - previous[i]);
+                }
+                for (int i = bpp; i < length; i++) {
+                    out[i + 1] = (byte) (current[i] - paeth(
+                            current[i - bpp] & 0xff, previous[i] & 0xff,
+                            previous[i - bpp] & 0xff));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Select the filter minimizing the sum of the absolute values of the
+     * filtered bytes taken as signed bytes, evaluating the 5 filters in a
+     * single pass over one byte out of SAMPLING_STEP. The step is coprime
+     * with the pixel sizes so that all the samples of the pixels are
+     * evaluated.
+     */
+    private static int selectFilter(byte[] current, byte[] previous,
+            int length, int bpp) {
+        int none = 0;
+        int sub = 0;
+        int up = 0;
+        int average = 0;
+        int paeth = 0;
+        for (int i = 0; i < bpp; i++) {
+            int x = current[i];
+            int b = previous[i] & 0xff;
+            none += Math.abs(x);
+            sub += Math.abs(x);
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - (b >> 1)));
+            paeth += Math.abs((byte) (x - b));
+        }
+        for (int i = bpp; i < length; i += SAMPLING_STEP) {
+            int x = current[i];
+            int a = current[i - bpp] & 0xff;
+            int b = previous[i] & 0xff;
+            int c = previous[i - bpp] & 0xff;
+            none += Math.abs(x);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >> 1)));
+            paeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int best = 0;
+        int bestSum = none;
+        if (sub < bestSum) {
+            best = 1;
+            bestSum = sub;
+        }
+        if (up < bestSum) {
+            best = 2;
+            bestSum = up;
+        }
+        if (average < bestSum) {
+            best = 3;
+            bestSum = average;
+        }
+        if (paeth < bestSum) {
+            best = 4;
+        }
+        return best;
+    }
+
+    /**
+     * Paeth predictor, without branches since they are unpredictable on
+     * photographic content.
+     */
+    private static int paeth(int a, int b, int c) {
+        int pa = Math.abs(b - c);
+        int pb = Math.abs(a - c);
+        int pc = Math.abs(a + b - c - c);
+        int notA = ((pb - pa) | (pc - pa)) >> 31;
+        int isC = (pc - pb) >> 31;
+        return (a & ~notA) | (notA & ((b & ~isC) | (c & isC)));
+    }
+
+    /**
+     * Compute the Adler-32 checksum of the concatenation of two sequences
+     * from their checksums, as zlib adler32_combine does.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff)
+                + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeChunk(byte[] type, byte[] data, int offset,
+            int length, CRC32 crc, OutputStream outputStream)
+            throws IOException {
+        byte[] field = new byte[4];
+        writeInt(length, field, 0);
+        outputStream.write(field);
+        outputStream.write(type);
+        outputStream.write(data, offset, length);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, offset, length);
+        writeInt((int) crc.getValue(), field, 0);
+        outputStream.write(field);
+    }
+
+    private static void writeInt(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Buffers and deflaters reused by a thread from one tile to the next.
+     */
+    private static class EncoderState {
+
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private byte[] previous = new byte[0];
+        private byte[] current = new byte[0];
+        private byte[] filtered = new byte[1];
+        private Deflater deflater;
+        private int deflaterLevel = -1;
+        private Deflater rawDeflater;
+        private int rawDeflaterLevel = -1;
+
+        void ensureCapacity(int rowBytes) {
+            if (current.length < rowBytes) {
+                previous = new byte[rowBytes];
+                current = new byte[rowBytes];
+                filtered = new byte[rowBytes + 1];
+            }
+        }
+
+        /**
+         * Get a reset deflater.
+         *
+         * @param nowrap true for a raw deflate stream, false for a zlib
+         * stream
+         */
+        Deflater getDeflater(int level, boolean nowrap) {
+            if (nowrap) {
+                if (rawDeflaterLevel != level) {
+                    if (rawDeflater != null) {
+                        rawDeflater.end();
+                    }
+                    rawDeflater = new Deflater(level, true);
+                    rawDeflaterLevel = level;
+                }
+                rawDeflater.reset();
+                return rawDeflater;
+            }
+            if (deflaterLevel != level) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                deflater = new Deflater(level);
+                deflaterLevel = level;
+            }
+            deflater.reset();
+            return deflater;
+        }
+    }
+}
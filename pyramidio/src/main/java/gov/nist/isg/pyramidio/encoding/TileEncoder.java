@@ -0,0 +1,38 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encoder of the tiles of a pyramid in an image file format.
+ *
+ * Implementations must be thread safe since the tiles are encoded
+ * concurrently.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface TileEncoder {
+
+    /**
+     * Encode a tile.
+     *
+     * @param image the tile
+     * @param outputStream the stream to write the encoded tile to. It must not
+     * be closed.
+     * @throws IOException if the tile cannot be encoded or written
+     */
+    void encode(BufferedImage image, OutputStream outputStream)
+            throws IOException;
+}
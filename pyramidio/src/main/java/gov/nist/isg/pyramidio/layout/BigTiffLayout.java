@@ -0,0 +1,117 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+
+/**
+ * Layout storing the pyramid in a single tiled BigTIFF file, name.tif.
+ *
+ * The first image of the file is the full resolution level and each
+ * following image is a reduced resolution level half its size, down to the
+ * first level fitting in a single tile. The tiles are appended to the file as
+ * they are computed and the image file directories are written at the end of
+ * the file once the build completes.
+ *
+ * The tiles have no overlap and the tile size must be a multiple of 16. The
+ * edge tiles are padded by replicating their last column and row. Only the
+ * images with 1 to 4 bands of 8 or 16 bits are supported.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BigTiffLayout implements ContainerLayout {
+
+    /**
+     * Compression of the tiles.
+     */
+    public enum Compression {
+        NONE(1),
+        /**
+         * Deflate with horizontal differencing predictor.
+         */
+        DEFLATE(8),
+        /**
+         * JPEG, for 8 bits gray and RGB images only.
+         */
+        JPEG(7);
+
+        private final int tag;
+
+        Compression(int tag) {
+            this.tag = tag;
+        }
+
+        int getTag() {
+            return tag;
+        }
+    }
+
+    private final Compression compression;
+    private float jpegQuality = -1;
+
+    public BigTiffLayout() {
+        this(Compression.DEFLATE);
+    }
+
+    /**
+     * Create a BigTIFF layout.
+     *
+     * @param compression the compression of the tiles
+     */
+    public BigTiffLayout(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the quality of the JPEG compression.
+     *
+     * @param jpegQuality the quality between 0 and 1 or -1 for the default
+     * of the ImageIO writer. Default to -1.
+     */
+    public void setJpegQuality(float jpegQuality) {
+        if (jpegQuality != -1 && (jpegQuality < 0 || jpegQuality > 1)) {
+            throw new IllegalArgumentException(
+                    "The JPEG quality must be between 0 and 1.");
+        }
+        this.jpegQuality = jpegQuality;
+    }
+
+    @Override
+    public boolean isOverlapped() {
+        return false;
+    }
+
+    @Override
+    public String getTilePath(String name, DziFile pyramid, int level,
+            int column, int row) {
+        return null;
+    }
+
+    @Override
+    public void writeDescriptor(String name, DziFile pyramid,
+            FilesArchiver archiver) {
+        // The descriptor is part of the BigTIFF file
+    }
+
+    @Override
+    public TileContainer open(String name, DziFile pyramid,
+            FilesArchiver archiver) throws IOException {
+        if (pyramid.getTileSize() % 16 != 0) {
+            throw new IllegalArgumentException("The tile size of a BigTIFF "
+                    + "file must be a multiple of 16.");
+        }
+        return new BigTiffWriter(name + ".tif", pyramid, archiver,
+                compression, jpegQuality);
+    }
+}
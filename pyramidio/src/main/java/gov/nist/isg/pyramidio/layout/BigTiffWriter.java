@@ -0,0 +1,493 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import gov.nist.isg.pyramidio.encoding.ImageIOTileEncoder;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of a tiled BigTIFF pyramid.
+ *
+ * The file is written directly in the folder of a DirectoryArchiver, and in a
+ * temporary file appended to the archiver when closed otherwise.
+ *
+ * @author Antoine Vandecreme
+ */
+class BigTiffWriter implements TileContainer {
+
+    private static final Logger logger = Logger.getLogger(
+            BigTiffWriter.class.getName());
+
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_UNIFORM_TILES = 256;
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_LONG8 = 16;
+
+    private final String path;
+    private final FilesArchiver archiver;
+    private final int tileSize;
+    private final BigTiffLayout.Compression compression;
+    private final ImageIOTileEncoder jpegEncoder;
+
+    private final int maxLevel;
+    private final int minLevel;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] columns;
+    private final long[][] offsets;
+    private final long[][] byteCounts;
+
+    private final File file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private long position = HEADER_SIZE;
+    private boolean closed;
+
+    private int bands;
+    private int bitsPerSample;
+
+    // Offset and byte count of the tiles already written for each pixel
+    private final ConcurrentHashMap<String, long[]> uniformTiles
+            = new ConcurrentHashMap<>();
+
+    // The deflaters of all the threads, ended on close
+    private final Queue<Deflater> allDeflaters
+            = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Deflater> deflaters
+            = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            Deflater deflater = new Deflater();
+            allDeflaters.add(deflater);
+            return deflater;
+        }
+    };
+
+    BigTiffWriter(String path, DziFile pyramid, FilesArchiver archiver,
+            BigTiffLayout.Compression compression, float jpegQuality)
+            throws IOException {
+        this.path = path;
+        this.archiver = archiver;
+        this.tileSize = pyramid.getTileSize();
+        this.compression = compression;
+        if (compression == BigTiffLayout.Compression.JPEG) {
+            jpegEncoder = new ImageIOTileEncoder("jpg");
+            jpegEncoder.setCompressionQuality(jpegQuality);
+        } else {
+            jpegEncoder = null;
+        }
+
+        maxLevel = pyramid.getMaxLevel();
+        minLevel = maxLevel - PyramidLevels.getNbTiledLevels(pyramid) + 1;
+        int nbLevels = maxLevel - minLevel + 1;
+        widths = new int[nbLevels];
+        heights = new int[nbLevels];
+        columns = new int[nbLevels];
+        offsets = new long[nbLevels][];
+        byteCounts = new long[nbLevels][];
+        for (int i = 0; i < nbLevels; i++) {
+            int level = maxLevel - i;
+            widths[i] = PyramidLevels.getWidth(pyramid, level);
+            heights[i] = PyramidLevels.getHeight(pyramid, level);
+            columns[i] = PyramidLevels.getColumns(pyramid, level);
+            int nbTiles = columns[i] * PyramidLevels.getRows(pyramid, level);
+            offsets[i] = new long[nbTiles];
+            byteCounts[i] = new long[nbTiles];
+        }
+
+        if (archiver instanceof DirectoryArchiver) {
+            file = new File(((DirectoryArchiver) archiver).getDirectory(),
+                    path);
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+            temporary = false;
+        } else {
+            file = File.createTempFile("pyramidio", ".tif");
+            temporary = true;
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        // The offset of the first IFD is patched when closing
+        ByteBuffer header = newBuffer(HEADER_SIZE);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 43)
+                .putShort((short) 8).putShort((short) 0).putLong(0);
+        header.flip();
+        write(header, 0);
+    }
+
+    @Override
+    public void writeTile(int level, int column, int row, BufferedImage tile,
+            int[] uniformPixel) throws IOException {
+        if (level < minLevel || level > maxLevel) {
+            return;
+        }
+        checkSampleLayout(tile);
+        long[] location;
+        if (uniformPixel == null) {
+            location = append(encode(tile));
+        } else {
+            // Padded uniform tiles with the same pixel are identical
+            String key = Arrays.toString(uniformPixel);
+            location = uniformTiles.get(key);
+            if (location == null) {
+                location = append(encode(tile));
+                if (uniformTiles.size() < MAX_UNIFORM_TILES) {
+                    uniformTiles.putIfAbsent(key, location);
+                }
+            }
+        }
+        int index = maxLevel - level;
+        synchronized (this) {
+            offsets[index][row * columns[index] + column] = location[0];
+            byteCounts[index][row * columns[index] + column] = location[1];
+        }
+    }
+
+    private synchronized void checkSampleLayout(BufferedImage tile)
+            throws IOException {
+        Raster raster = tile.getRaster();
+        int tileBands = raster.getNumBands();
+        int tileBits = raster.getSampleModel().getSampleSize(0);
+        if (bands == 0) {
+            if (tileBands > 4 || (tileBits != 8 && tileBits != 16)) {
+                throw new IOException("Only the images with 1 to 4 bands of "
+                        + "8 or 16 bits can be written as BigTIFF.");
+            }
+            if (compression == BigTiffLayout.Compression.JPEG
+                    && (tileBits != 8 || (tileBands != 1 && tileBands != 3))) {
+                throw new IOException("Only the 8 bits gray and RGB images "
+                        + "can be written as JPEG compressed BigTIFF.");
+            }
+            bands = tileBands;
+            bitsPerSample = tileBits;
+        } else if (tileBands != bands || tileBits != bitsPerSample) {
+            throw new IOException("All the tiles of a BigTIFF file must "
+                    + "have the same bands and sample size.");
+        }
+    }
+
+    /**
+     * Reserve the space of a tile at the end of the file and write it.
+     *
+     * @return the offset and byte count of the tile
+     */
+    private long[] append(byte[] data) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = position;
+            position += data.length;
+        }
+        write(ByteBuffer.wrap(data), offset);
+        return new long[]{offset, data.length};
+    }
+
+    private void write(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private byte[] encode(BufferedImage tile) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (compression == BigTiffLayout.Compression.JPEG) {
+            jpegEncoder.encode(pad(tile), outputStream);
+            return outputStream.toByteArray();
+        }
+        byte[] samples = getSamples(tile);
+        if (compression == BigTiffLayout.Compression.NONE) {
+            return samples;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(samples);
+        deflater.finish();
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Get the little endian samples of a tile padded to the tile size, with
+     * the horizontal differencing predictor applied if compressed.
+     */
+    private byte[] getSamples(BufferedImage tile) {
+        Raster raster = tile.getRaster();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int bytesPerSample = bitsPerSample / 8;
+        int rowLength = tileSize * bands;
+        byte[] samples = new byte[rowLength * tileSize * bytesPerSample];
+        int[] row = new int[rowLength];
+        int mask = (1 << bitsPerSample) - 1;
+        boolean predictor = compression == BigTiffLayout.Compression.DEFLATE;
+        int index = 0;
+        for (int y = 0; y < tileSize; y++) {
+            raster.getPixels(raster.getMinX(),
+                    raster.getMinY() + Math.min(y, height - 1), width, 1, row);
+            for (int i = width * bands; i < rowLength; i++) {
+                row[i] = row[i - bands];
+            }
+            if (predictor) {
+                for (int i = rowLength - 1; i >= bands; i--) {
+                    row[i] = (row[i] - row[i - bands]) & mask;
+                }
+            }
+            for (int i = 0; i < rowLength; i++) {
+                samples[index++] = (byte) row[i];
+                if (bytesPerSample == 2) {
+                    samples[index++] = (byte) (row[i] >>> 8);
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Pad a tile to the tile size by replicating its last column and row.
+     */
+    private BufferedImage pad(BufferedImage tile) {
+        int width = tile.getWidth();
+        int height = tile.getHeight();
+        if (width == tileSize && height == tileSize) {
+            return tile;
+        }
+        ColorModel colorModel = tile.getColorModel();
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(
+                tileSize, tileSize);
+        Raster source = tile.getRaster();
+        int[] row = new int[tileSize * bands];
+        for (int y = 0; y < tileSize; y++) {
+            source.getPixels(source.getMinX(),
+                    source.getMinY() + Math.min(y, height - 1), width, 1, row);
+            for (int i = width * bands; i < row.length; i++) {
+                row[i] = row[i - bands];
+            }
+            raster.setPixels(0, y, tileSize, 1, row);
+        }
+        return new BufferedImage(colorModel, raster,
+                colorModel.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (bands == 0) {
+            abort();
+            throw new IOException("No tile has been written to " + path);
+        }
+        try {
+            long nextIfdField = 8;
+            for (int i = 0; i < widths.length; i++) {
+                long ifdOffset = writeIfd(i);
+                ByteBuffer pointer = newBuffer(8);
+                pointer.putLong(ifdOffset);
+                pointer.flip();
+                write(pointer, nextIfdField);
+                nextIfdField = ifdOffset + 8 + (long) getNbEntries() * 20;
+            }
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+        endEncoders();
+        channel.close();
+        closed = true;
+        if (temporary) {
+            try {
+                archiver.appendFile(path, file);
+            } finally {
+                delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        endEncoders();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot close " + file, ex);
+        }
+        delete();
+    }
+
+    private void endEncoders() {
+        Deflater deflater;
+        while ((deflater = allDeflaters.poll()) != null) {
+            deflater.end();
+        }
+        if (jpegEncoder != null) {
+            jpegEncoder.close();
+        }
+    }
+
+    private void delete() {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot delete " + file, ex);
+        }
+    }
+
+    private int getNbEntries() {
+        return createEntries(0, 0, 0).size();
+    }
+
+    /**
+     * Write the tile offsets and byte counts of a level followed by its IFD
+     * at the end of the file.
+     *
+     * @return the offset of the IFD
+     */
+    private long writeIfd(int index) throws IOException {
+        long[] tileOffsets = offsets[index];
+        long[] tileByteCounts = byteCounts[index];
+        long offsetsPosition = position;
+        long byteCountsPosition = offsetsPosition;
+        if (tileOffsets.length > 1) {
+            ByteBuffer arrays = newBuffer(16 * tileOffsets.length);
+            for (long offset : tileOffsets) {
+                arrays.putLong(offset);
+            }
+            for (long byteCount : tileByteCounts) {
+                arrays.putLong(byteCount);
+            }
+            arrays.flip();
+            write(arrays, position);
+            byteCountsPosition = offsetsPosition + 8L * tileOffsets.length;
+            position += 16L * tileOffsets.length;
+        }
+
+        List<long[]> entries = createEntries(index,
+                tileOffsets.length > 1 ? offsetsPosition : tileOffsets[0],
+                tileOffsets.length > 1 ? byteCountsPosition
+                        : tileByteCounts[0]);
+        ByteBuffer ifd = newBuffer(8 + entries.size() * 20 + 8);
+        ifd.putLong(entries.size());
+        for (long[] entry : entries) {
+            ifd.putShort((short) entry[0]);
+            ifd.putShort((short) entry[1]);
+            ifd.putLong(entry[2]);
+            int start = ifd.position();
+            if (entry[1] == TYPE_SHORT) {
+                for (int i = 3; i < entry.length; i++) {
+                    ifd.putShort((short) entry[i]);
+                }
+            } else if (entry[1] == TYPE_LONG) {
+                ifd.putInt((int) entry[3]);
+            } else {
+                ifd.putLong(entry[3]);
+            }
+            ifd.position(start + 8);
+        }
+        // Next IFD offset, patched when writing the next IFD
+        ifd.putLong(0);
+        ifd.flip();
+        long ifdOffset = position;
+        write(ifd, ifdOffset);
+        position += ifd.capacity();
+        return ifdOffset;
+    }
+
+    /**
+     * Create the IFD entries of a level, as tag, type, count and values,
+     * sorted by tag.
+     *
+     * @param tileOffsets the tile offset or the offset of the tile offsets
+     * @param tileByteCounts the tile byte count or the offset of the tile
+     * byte counts
+     */
+    private List<long[]> createEntries(int index, long tileOffsets,
+            long tileByteCounts) {
+        int nbTiles = offsets[index].length;
+        boolean gray = bands < 3;
+        boolean alpha = bands == 2 || bands == 4;
+        boolean jpeg = compression == BigTiffLayout.Compression.JPEG;
+        List<long[]> entries = new ArrayList<>();
+        // NewSubfileType: reduced resolution image
+        entries.add(new long[]{254, TYPE_LONG, 1, index == 0 ? 0 : 1});
+        entries.add(new long[]{256, TYPE_LONG, 1, widths[index]});
+        entries.add(new long[]{257, TYPE_LONG, 1, heights[index]});
+        long[] bitsPerSamples = new long[3 + bands];
+        bitsPerSamples[0] = 258;
+        bitsPerSamples[1] = TYPE_SHORT;
+        bitsPerSamples[2] = bands;
+        Arrays.fill(bitsPerSamples, 3, bitsPerSamples.length, bitsPerSample);
+        entries.add(bitsPerSamples);
+        entries.add(new long[]{259, TYPE_SHORT, 1, compression.getTag()});
+        // Photometric: BlackIsZero, RGB or YCbCr for JPEG
+        entries.add(new long[]{262, TYPE_SHORT, 1,
+            gray ? 1 : jpeg ? 6 : 2});
+        entries.add(new long[]{277, TYPE_SHORT, 1, bands});
+        // Planar configuration: chunky
+        entries.add(new long[]{284, TYPE_SHORT, 1, 1});
+        if (compression == BigTiffLayout.Compression.DEFLATE) {
+            // Predictor: horizontal differencing
+            entries.add(new long[]{317, TYPE_SHORT, 1, 2});
+        }
+        entries.add(new long[]{322, TYPE_LONG, 1, tileSize});
+        entries.add(new long[]{323, TYPE_LONG, 1, tileSize});
+        entries.add(new long[]{324, TYPE_LONG8, nbTiles, tileOffsets});
+        entries.add(new long[]{325, TYPE_LONG8, nbTiles, tileByteCounts});
+        if (alpha) {
+            // Extra samples: unassociated alpha
+            entries.add(new long[]{338, TYPE_SHORT, 1, 2});
+        }
+        if (jpeg && !gray) {
+            // YCbCr subsampling of the ImageIO JPEG writer
+            entries.add(new long[]{530, TYPE_SHORT, 2, 2, 2});
+        }
+        return entries;
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+
+/**
+ * Layout storing all the tiles of a pyramid in a single container file
+ * instead of one file per tile. Its tiles are written to the container opened
+ * for each build rather than to the paths returned by getTilePath.
+ *
+ * Since a container is written by a single build, the container layouts do
+ * not support partitions, updates and resumable builds.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface ContainerLayout extends TileLayout {
+
+    /**
+     * Open the container of a pyramid.
+     *
+     * @param name the name of the pyramid
+     * @param pyramid the description of the pyramid
+     * @param archiver the archiver where the container is stored
+     * @return the container
+     * @throws IOException
+     */
+    TileContainer open(String name, DziFile pyramid, FilesArchiver archiver)
+            throws IOException;
+}
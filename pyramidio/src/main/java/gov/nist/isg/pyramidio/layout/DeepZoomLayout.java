@@ -0,0 +1,61 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * DeepZoom layout: name.dzi descriptor and name_files/level/column_row tiles.
+ *
+ * @author Antoine Vandecreme
+ */
+public class DeepZoomLayout implements TileLayout {
+
+    private final String descriptorExt;
+
+    public DeepZoomLayout() {
+        this("dzi");
+    }
+
+    /**
+     * Create a DeepZoom layout.
+     *
+     * @param descriptorExt the descriptor extension such as dzi or xml
+     */
+    public DeepZoomLayout(String descriptorExt) {
+        this.descriptorExt = descriptorExt;
+    }
+
+    @Override
+    public boolean isOverlapped() {
+        return true;
+    }
+
+    @Override
+    public String getTilePath(String name, DziFile pyramid, int level,
+            int column, int row) {
+        String dir = FilenameUtils.concat(name + "_files",
+                Integer.toString(level));
+        return FilenameUtils.concat(dir, column + "_" + row) + "."
+                + pyramid.getFormat();
+    }
+
+    @Override
+    public void writeDescriptor(String name, DziFile pyramid,
+            FilesArchiver archiver) throws IOException {
+        pyramid.write(FilenameUtils.getBaseName(name) + '.' + descriptorExt,
+                archiver);
+    }
+}
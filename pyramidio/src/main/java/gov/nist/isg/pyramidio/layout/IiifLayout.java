@@ -0,0 +1,142 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * IIIF Image API 3.0 level 0 layout: static tiles named after the image
+ * requests of a viewer, name_iiif/region/size/0/default.format, and the
+ * name_iiif/info.json descriptor.
+ *
+ * The region of a tile is x,y,w,h in full resolution pixels and its size
+ * w,h. The tiles covering the whole image at their scale use the full region
+ * as requested by OpenSeadragon, with the max size at full resolution. The
+ * tiles have no overlap.
+ *
+ * @author Antoine Vandecreme
+ */
+public class IiifLayout implements TileLayout {
+
+    private final String baseUri;
+
+    /**
+     * Create an IIIF layout whose image id is relative to the location of
+     * the info.json file.
+     */
+    public IiifLayout() {
+        this(null);
+    }
+
+    /**
+     * Create an IIIF layout.
+     *
+     * @param baseUri the URI where the name_iiif folders are published, used
+     * to build the id of the images, or null for an id relative to the
+     * location of the info.json file
+     */
+    public IiifLayout(String baseUri) {
+        this.baseUri = baseUri;
+    }
+
+    @Override
+    public boolean isOverlapped() {
+        return false;
+    }
+
+    @Override
+    public String getTilePath(String name, DziFile pyramid, int level,
+            int column, int row) {
+        long scale = 1L << (pyramid.getMaxLevel() - level);
+        long tileSize = pyramid.getTileSize() * scale;
+        long x = column * tileSize;
+        long y = row * tileSize;
+        long width = Math.min(tileSize, pyramid.getWidth() - x);
+        long height = Math.min(tileSize, pyramid.getHeight() - y);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        String region;
+        String size;
+        if (width == pyramid.getWidth() && height == pyramid.getHeight()) {
+            region = "full";
+            size = scale == 1 ? "max" : ceilDiv(width, scale) + ","
+                    + ceilDiv(height, scale);
+        } else {
+            region = x + "," + y + "," + width + "," + height;
+            size = ceilDiv(width, scale) + "," + ceilDiv(height, scale);
+        }
+        return name + "_iiif/" + region + "/" + size + "/0/default."
+                + pyramid.getFormat();
+    }
+
+    @Override
+    public void writeDescriptor(String name, DziFile pyramid,
+            FilesArchiver archiver) throws IOException {
+        String id = FilenameUtils.getName(name) + "_iiif";
+        if (baseUri != null) {
+            id = baseUri.endsWith("/") ? baseUri + id : baseUri + "/" + id;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"@context\": ")
+                .append("\"http://iiif.io/api/image/3/context.json\",\n");
+        sb.append("  \"id\": \"").append(escape(id)).append("\",\n");
+        sb.append("  \"type\": \"ImageService3\",\n");
+        sb.append("  \"protocol\": \"http://iiif.io/api/image\",\n");
+        sb.append("  \"profile\": \"level0\",\n");
+        sb.append("  \"width\": ").append(pyramid.getWidth()).append(",\n");
+        sb.append("  \"height\": ").append(pyramid.getHeight()).append(",\n");
+        String format = pyramid.getFormat().toLowerCase();
+        if (!format.equals("jpg")) {
+            sb.append("  \"preferredFormats\": [\"").append(escape(format))
+                    .append("\"],\n");
+        }
+        sb.append("  \"tiles\": [{\"width\": ").append(pyramid.getTileSize())
+                .append(", \"scaleFactors\": [");
+        for (int i = 0; i <= pyramid.getMaxLevel(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(1L << i);
+        }
+        sb.append("]}]\n");
+        sb.append("}\n");
+        final String json = sb.toString();
+        archiver.appendFile(name + "_iiif/info.json",
+                new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream) throws IOException {
+                Writer out = new OutputStreamWriter(outputStream,
+                        Charset.forName("UTF-8"));
+                out.write(json);
+                out.flush();
+                return null;
+            }
+        });
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+
+/**
+ * Layout storing the raw samples of the pyramid as a multiscale OME-Zarr
+ * (version 0.4, Zarr version 2) group in the name.zarr folder.
+ *
+ * Each tiled level is an array with the c, y and x dimensions, the full
+ * resolution level being the array 0. The chunks hold all the bands of a tile
+ * without overlap and are stored at name.zarr/level/0/row/column. The edge
+ * chunks are padded with zeros. Only the images with 8 or 16 bits samples are
+ * supported.
+ *
+ * @author Antoine Vandecreme
+ */
+public class OmeZarrLayout implements ContainerLayout {
+
+    /**
+     * Compression of the chunks.
+     */
+    public enum Compression {
+        NONE,
+        /**
+         * The zlib codec of numcodecs.
+         */
+        ZLIB
+    }
+
+    private final Compression compression;
+    private int compressionLevel = 1;
+
+    public OmeZarrLayout() {
+        this(Compression.ZLIB);
+    }
+
+    /**
+     * Create an OME-Zarr layout.
+     *
+     * @param compression the compression of the chunks
+     */
+    public OmeZarrLayout(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the level of the zlib compression.
+     *
+     * @param compressionLevel the level between 0 and 9. Default to 1.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException(
+                    "The compression level must be between 0 and 9.");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public boolean isOverlapped() {
+        return false;
+    }
+
+    @Override
+    public String getTilePath(String name, DziFile pyramid, int level,
+            int column, int row) {
+        return null;
+    }
+
+    @Override
+    public void writeDescriptor(String name, DziFile pyramid,
+            FilesArchiver archiver) {
+        // The metadata depend on the samples and are written when closing
+    }
+
+    @Override
+    public TileContainer open(String name, DziFile pyramid,
+            FilesArchiver archiver) {
+        return new OmeZarrWriter(name + ".zarr", pyramid, archiver,
+                compression == Compression.ZLIB ? compressionLevel : -1);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Writer of the chunks and metadata of a multiscale OME-Zarr group.
+ *
+ * @author Antoine Vandecreme
+ */
+class OmeZarrWriter implements TileContainer {
+
+    private static final int MAX_UNIFORM_CHUNKS = 256;
+
+    private final String path;
+    private final String name;
+    private final FilesArchiver archiver;
+    private final int tileSize;
+    private final int compressionLevel;
+    private final int maxLevel;
+    private final int minLevel;
+    private final int[] widths;
+    private final int[] heights;
+
+    private int bands;
+    private int bitsPerSample;
+
+    // Encoded chunks of the uniform tiles for each pixel
+    private final ConcurrentHashMap<String, byte[]> uniformChunks
+            = new ConcurrentHashMap<>();
+
+    // The deflaters of all the threads, ended on close
+    private final Queue<Deflater> allDeflaters
+            = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Deflater> deflaters
+            = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            Deflater deflater = new Deflater(compressionLevel);
+            allDeflaters.add(deflater);
+            return deflater;
+        }
+    };
+
+    /**
+     * @param compressionLevel the zlib level or -1 for raw chunks
+     */
+    OmeZarrWriter(String path, DziFile pyramid, FilesArchiver archiver,
+            int compressionLevel) {
+        this.path = path;
+        this.name = FilenameUtils.getBaseName(path);
+        this.archiver = archiver;
+        this.tileSize = pyramid.getTileSize();
+        this.compressionLevel = compressionLevel;
+        maxLevel = pyramid.getMaxLevel();
+        minLevel = maxLevel - PyramidLevels.getNbTiledLevels(pyramid) + 1;
+        int nbLevels = maxLevel - minLevel + 1;
+        widths = new int[nbLevels];
+        heights = new int[nbLevels];
+        for (int i = 0; i < nbLevels; i++) {
+            widths[i] = PyramidLevels.getWidth(pyramid, maxLevel - i);
+            heights[i] = PyramidLevels.getHeight(pyramid, maxLevel - i);
+        }
+    }
+
+    @Override
+    public void writeTile(int level, int column, int row, BufferedImage tile,
+            int[] uniformPixel) throws IOException {
+        if (level < minLevel || level > maxLevel) {
+            return;
+        }
+        checkSampleLayout(tile);
+        byte[] chunk;
+        if (uniformPixel == null) {
+            chunk = encode(tile);
+        } else {
+            // Uniform tiles with the same pixel and dimensions have the
+            // same chunk
+            String key = tile.getWidth() + "x" + tile.getHeight() + " "
+                    + Arrays.toString(uniformPixel);
+            chunk = uniformChunks.get(key);
+            if (chunk == null) {
+                chunk = encode(tile);
+                if (uniformChunks.size() < MAX_UNIFORM_CHUNKS) {
+                    uniformChunks.putIfAbsent(key, chunk);
+                }
+            }
+        }
+        writeFile(path + "/" + (maxLevel - level) + "/0/" + row + "/"
+                + column, chunk);
+    }
+
+    private synchronized void checkSampleLayout(BufferedImage tile)
+            throws IOException {
+        Raster raster = tile.getRaster();
+        int tileBands = raster.getNumBands();
+        int tileBits = raster.getSampleModel().getSampleSize(0);
+        if (bands == 0) {
+            if (tileBits != 8 && tileBits != 16) {
+                throw new IOException("Only the images with 8 or 16 bits "
+                        + "samples can be written as OME-Zarr.");
+            }
+            bands = tileBands;
+            bitsPerSample = tileBits;
+        } else if (tileBands != bands || tileBits != bitsPerSample) {
+            throw new IOException("All the tiles of an OME-Zarr array must "
+                    + "have the same bands and sample size.");
+        }
+    }
+
+    /**
+     * Get the chunk of a tile, with the planar little endian samples of the
+     * tile padded with zeros to the tile size.
+     */
+    private byte[] encode(BufferedImage tile) {
+        Raster raster = tile.getRaster();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int bytesPerSample = bitsPerSample / 8;
+        int planeLength = tileSize * tileSize * bytesPerSample;
+        byte[] samples = new byte[bands * planeLength];
+        int[] row = new int[width];
+        for (int band = 0; band < bands; band++) {
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + y,
+                        width, 1, band, row);
+                int index = band * planeLength
+                        + y * tileSize * bytesPerSample;
+                for (int x = 0; x < width; x++) {
+                    samples[index++] = (byte) row[x];
+                    if (bytesPerSample == 2) {
+                        samples[index++] = (byte) (row[x] >>> 8);
+                    }
+                }
+            }
+        }
+        if (compressionLevel < 0) {
+            return samples;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(samples);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        endDeflaters();
+        if (bands == 0) {
+            throw new IOException("No tile has been written to " + path);
+        }
+        writeFile(path + "/.zgroup", "{\n  \"zarr_format\": 2\n}\n");
+        writeFile(path + "/.zattrs", getAttributes());
+        for (int i = 0; i < widths.length; i++) {
+            writeFile(path + "/" + i + "/.zarray", getArrayMetadata(i));
+        }
+    }
+
+    @Override
+    public void abort() {
+        // The chunks already written are left in the archive
+        endDeflaters();
+    }
+
+    private void endDeflaters() {
+        Deflater deflater;
+        while ((deflater = allDeflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private String getAttributes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"multiscales\": [{\n");
+        sb.append("    \"version\": \"0.4\",\n");
+        sb.append("    \"name\": \"").append(escape(name)).append("\",\n");
+        sb.append("    \"axes\": [")
+                .append("{\"name\": \"c\", \"type\": \"channel\"}, ")
+                .append("{\"name\": \"y\", \"type\": \"space\"}, ")
+                .append("{\"name\": \"x\", \"type\": \"space\"}],\n");
+        sb.append("    \"datasets\": [");
+        for (int i = 0; i < widths.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            long scale = 1L << i;
+            sb.append("\n      {\"path\": \"").append(i)
+                    .append("\", \"coordinateTransformations\": [")
+                    .append("{\"type\": \"scale\", \"scale\": [1, ")
+                    .append(scale).append(", ").append(scale)
+                    .append("]}]}");
+        }
+        sb.append("\n    ]\n");
+        sb.append("  }]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private String getArrayMetadata(int index) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"zarr_format\": 2,\n");
+        sb.append("  \"shape\": [").append(bands).append(", ")
+                .append(heights[index]).append(", ").append(widths[index])
+                .append("],\n");
+        sb.append("  \"chunks\": [").append(bands).append(", ")
+                .append(tileSize).append(", ").append(tileSize)
+                .append("],\n");
+        sb.append("  \"dtype\": \"")
+                .append(bitsPerSample == 8 ? "|u1" : "<u2").append("\",\n");
+        if (compressionLevel < 0) {
+            sb.append("  \"compressor\": null,\n");
+        } else {
+            sb.append("  \"compressor\": {\"id\": \"zlib\", \"level\": ")
+                    .append(compressionLevel).append("},\n");
+        }
+        sb.append("  \"fill_value\": 0,\n");
+        sb.append("  \"order\": \"C\",\n");
+        sb.append("  \"filters\": null,\n");
+        sb.append("  \"dimension_separator\": \"/\"\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void writeFile(String file, final byte[] bytes)
+            throws IOException {
+        archiver.appendFile(file, new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream) throws IOException {
+                outputStream.write(bytes);
+                return null;
+            }
+        });
+    }
+
+    private void writeFile(String file, final String text)
+            throws IOException {
+        archiver.appendFile(file, new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream) throws IOException {
+                Writer out = new OutputStreamWriter(outputStream,
+                        Charset.forName("UTF-8"));
+                out.write(text);
+                out.flush();
+                return null;
+            }
+        });
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
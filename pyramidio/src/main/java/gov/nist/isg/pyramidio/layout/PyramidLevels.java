@@ -0,0 +1,64 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.pyramidio.DziFile;
+
+/**
+ * Dimensions of the levels of a pyramid on the DeepZoom grid.
+ *
+ * @author Antoine Vandecreme
+ */
+class PyramidLevels {
+
+    private PyramidLevels() {
+    }
+
+    /**
+     * Get the number of levels from the full resolution one to the first one
+     * fitting in a single tile.
+     */
+    static int getNbTiledLevels(DziFile pyramid) {
+        long size = pyramid.getTileSize();
+        int nbLevels = 1;
+        while (pyramid.getWidth() > size || pyramid.getHeight() > size) {
+            size *= 2;
+            nbLevels++;
+        }
+        return nbLevels;
+    }
+
+    static int getWidth(DziFile pyramid, int level) {
+        return getSize(pyramid.getWidth(), pyramid, level);
+    }
+
+    static int getHeight(DziFile pyramid, int level) {
+        return getSize(pyramid.getHeight(), pyramid, level);
+    }
+
+    static int getColumns(DziFile pyramid, int level) {
+        return getTileCount(getWidth(pyramid, level), pyramid);
+    }
+
+    static int getRows(DziFile pyramid, int level) {
+        return getTileCount(getHeight(pyramid, level), pyramid);
+    }
+
+    private static int getSize(int size, DziFile pyramid, int level) {
+        long scale = 1L << (pyramid.getMaxLevel() - level);
+        return (int) ((size + scale - 1) / scale);
+    }
+
+    private static int getTileCount(int size, DziFile pyramid) {
+        return (size + pyramid.getTileSize() - 1) / pyramid.getTileSize();
+    }
+}
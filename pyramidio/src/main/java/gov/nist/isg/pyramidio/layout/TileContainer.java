@@ -0,0 +1,51 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Container file receiving the tiles of a pyramid as they are computed.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface TileContainer {
+
+    /**
+     * Write a tile. This method is called concurrently by the threads of the
+     * build.
+     *
+     * @param level the DeepZoom level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @param tile the tile, without overlap if the layout is not overlapped
+     * @param uniformPixel the value of all the pixels of the tile if it is
+     * known to be uniform, null otherwise
+     * @throws IOException
+     */
+    void writeTile(int level, int column, int row, BufferedImage tile,
+            int[] uniformPixel) throws IOException;
+
+    /**
+     * Complete the container once all the tiles have been written.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * Discard the container after a failed build. Does nothing if the
+     * container has been closed.
+     */
+    void abort();
+}
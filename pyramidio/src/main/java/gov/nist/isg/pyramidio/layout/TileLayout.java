@@ -0,0 +1,63 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+
+/**
+ * Naming of the tiles and descriptor of a pyramid in the archive.
+ *
+ * The tiles are computed on the DeepZoom grid described by a DziFile: level
+ * 0 is a 1x1 pixel image and each level is twice the size of the previous
+ * one, rounded up. Implementations must be stateless since a layout is shared
+ * by all the pyramids of a builder.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface TileLayout {
+
+    /**
+     * Check if the tiles include the overlap of the pyramid. The tiles of the
+     * layouts without overlap are cropped to the tile grid, so with a
+     * pyramid overlap of 0 all the layouts share the same encoded tiles.
+     *
+     * @return true if the tiles include the overlap
+     */
+    boolean isOverlapped();
+
+    /**
+     * Get the path of a tile in the archive.
+     *
+     * @param name the name of the pyramid
+     * @param pyramid the description of the pyramid
+     * @param level the DeepZoom level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @return the path including the file extension or null if the tile is
+     * not part of this layout
+     */
+    String getTilePath(String name, DziFile pyramid, int level, int column,
+            int row);
+
+    /**
+     * Write the descriptor of the pyramid.
+     *
+     * @param name the name of the pyramid
+     * @param pyramid the description of the pyramid
+     * @param archiver the archiver
+     * @throws IOException
+     */
+    void writeDescriptor(String name, DziFile pyramid, FilesArchiver archiver)
+            throws IOException;
+}
@@ -0,0 +1,91 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.layout;
+
+import gov.nist.isg.archiver.FilesArchiver;
+import gov.nist.isg.pyramidio.DziFile;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Zoomify layout: name_zoomify/ImageProperties.xml descriptor and
+ * name_zoomify/TileGroupN/tier-column-row tiles, N being the index of the
+ * tile among all the tiles of the tiers ordered from the smallest tier,
+ * divided by 256.
+ *
+ * Tier 0 is the first level fitting in a single tile and the tier sizes are
+ * computed like OpenLayers does by default, which coincides with the DeepZoom
+ * levels. The tiles have no overlap.
+ *
+ * @author Antoine Vandecreme
+ */
+public class ZoomifyLayout implements TileLayout {
+
+    private static final int TILES_PER_GROUP = 256;
+
+    @Override
+    public boolean isOverlapped() {
+        return false;
+    }
+
+    @Override
+    public String getTilePath(String name, DziFile pyramid, int level,
+            int column, int row) {
+        int firstLevel = pyramid.getMaxLevel()
+                - PyramidLevels.getNbTiledLevels(pyramid) + 1;
+        if (level < firstLevel) {
+            return null;
+        }
+        long index = 0;
+        for (int l = firstLevel; l < level; l++) {
+            index += (long) PyramidLevels.getColumns(pyramid, l)
+                    * PyramidLevels.getRows(pyramid, l);
+        }
+        index += (long) row * PyramidLevels.getColumns(pyramid, level)
+                + column;
+        return name + "_zoomify/TileGroup" + (index / TILES_PER_GROUP) + "/"
+                + (level - firstLevel) + "-" + column + "-" + row + "."
+                + pyramid.getFormat();
+    }
+
+    @Override
+    public void writeDescriptor(String name, DziFile pyramid,
+            FilesArchiver archiver) throws IOException {
+        int maxLevel = pyramid.getMaxLevel();
+        int firstLevel = maxLevel - PyramidLevels.getNbTiledLevels(pyramid)
+                + 1;
+        long nbTiles = 0;
+        for (int level = firstLevel; level <= maxLevel; level++) {
+            nbTiles += (long) PyramidLevels.getColumns(pyramid, level)
+                    * PyramidLevels.getRows(pyramid, level);
+        }
+        final String xml = "<IMAGE_PROPERTIES WIDTH=\"" + pyramid.getWidth()
+                + "\" HEIGHT=\"" + pyramid.getHeight()
+                + "\" NUMTILES=\"" + nbTiles
+                + "\" NUMIMAGES=\"1\" VERSION=\"1.8\" TILESIZE=\""
+                + pyramid.getTileSize() + "\" />\n";
+        archiver.appendFile(name + "_zoomify/ImageProperties.xml",
+                new FilesArchiver.FileAppender<Void>() {
+            @Override
+            public Void append(OutputStream outputStream) throws IOException {
+                Writer out = new OutputStreamWriter(outputStream,
+                        Charset.forName("UTF-8"));
+                out.write(xml);
+                out.flush();
+                return null;
+            }
+        });
+    }
+}
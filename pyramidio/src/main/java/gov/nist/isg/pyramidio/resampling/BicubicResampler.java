@@ -0,0 +1,30 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+import gov.nist.isg.pyramidio.tools.ImageResizingHelper;
+import java.awt.image.BufferedImage;
+
+/**
+ * Bicubic resampling using Graphics2D with multiple passes when downsampling.
+ * This is the default resampler.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BicubicResampler implements Resampler {
+
+    @Override
+    public BufferedImage resize(BufferedImage image, int width, int height) {
+        return ImageResizingHelper.resizeImage(image, width, height);
+    }
+
+}
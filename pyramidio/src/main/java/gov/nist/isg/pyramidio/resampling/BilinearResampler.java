@@ -0,0 +1,33 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+/**
+ * Bilinear resampling. When downsampling, the triangle filter is widened
+ * according to the scale so that all the source pixels contribute.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BilinearResampler extends SeparableResampler {
+
+    @Override
+    protected double filter(double x) {
+        x = Math.abs(x);
+        return x < 1 ? 1 - x : 0;
+    }
+
+    @Override
+    protected double getRadius() {
+        return 1;
+    }
+
+}
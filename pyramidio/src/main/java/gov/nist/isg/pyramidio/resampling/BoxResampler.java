@@ -0,0 +1,48 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+/**
+ * Area averaging resampling: each pixel of the result is the average of the
+ * source pixels it covers, weighted by the covered area. This is the fastest
+ * resampler and it does not produce any ringing, but it is blurrier than the
+ * other ones.
+ *
+ * @author Antoine Vandecreme
+ */
+public class BoxResampler extends SeparableResampler {
+
+    @Override
+    protected double getSupport(double filterScale) {
+        return (filterScale + 1) / 2;
+    }
+
+    @Override
+    protected double getWeight(double distance, double filterScale) {
+        // Overlap of the source pixel with the footprint of the result pixel
+        double halfFootprint = filterScale / 2;
+        double overlap = Math.min(distance + 0.5, halfFootprint)
+                - Math.max(distance - 0.5, -halfFootprint);
+        return Math.max(0, overlap);
+    }
+
+    @Override
+    protected double filter(double x) {
+        return Math.abs(x) < 0.5 ? 1 : 0;
+    }
+
+    @Override
+    protected double getRadius() {
+        return 0.5;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+/**
+ * Lanczos resampling. This is the sharpest resampler but the most expensive
+ * one, and it can produce some ringing around sharp edges.
+ *
+ * @author Antoine Vandecreme
+ */
+public class LanczosResampler extends SeparableResampler {
+
+    private final int lobes;
+
+    /**
+     * Create a Lanczos resampler with 3 lobes.
+     */
+    public LanczosResampler() {
+        this(3);
+    }
+
+    /**
+     * Create a Lanczos resampler.
+     *
+     * @param lobes the number of lobes of the filter (usually 2 or 3)
+     */
+    public LanczosResampler(int lobes) {
+        if (lobes < 1) {
+            throw new IllegalArgumentException(
+                    "The number of lobes must be positive.");
+        }
+        this.lobes = lobes;
+    }
+
+    @Override
+    protected double filter(double x) {
+        x = Math.abs(x);
+        if (x >= lobes) {
+            return 0;
+        }
+        if (x < 1e-9) {
+            return 1;
+        }
+        double px = Math.PI * x;
+        return lobes * Math.sin(px) * Math.sin(px / lobes) / (px * px);
+    }
+
+    @Override
+    protected double getRadius() {
+        return lobes;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Access to the rows of a raster as arrays of float samples, interleaved by
+ * pixel. The written samples are rounded and clamped to the range of the
+ * raster data type.
+ *
+ * @author Antoine Vandecreme
+ */
+abstract class RasterRows {
+
+    protected final Raster raster;
+    protected final int width;
+    protected final int bands;
+
+    private RasterRows(Raster raster) {
+        this.raster = raster;
+        this.width = raster.getWidth();
+        this.bands = raster.getNumBands();
+    }
+
+    abstract void read(int y, float[] row);
+
+    abstract void write(int y, float[] row);
+
+    static RasterRows create(Raster raster) {
+        if (raster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            if (dataBuffer instanceof DataBufferByte) {
+                return new ByteRows(raster);
+            }
+            if (dataBuffer instanceof DataBufferUShort) {
+                return new UShortRows(raster);
+            }
+            if (dataBuffer instanceof DataBufferFloat) {
+                return new FloatRows(raster);
+            }
+        }
+        return new GenericRows(raster);
+    }
+
+    /**
+     * Rows of interleaved rasters accessed through their data array.
+     */
+    private abstract static class InterleavedRows extends RasterRows {
+
+        protected final int pixelStride;
+        protected final int scanlineStride;
+        protected final int[] bandOffsets;
+        protected final int origin;
+
+        private InterleavedRows(Raster raster) {
+            super(raster);
+            ComponentSampleModel sampleModel
+                    = (ComponentSampleModel) raster.getSampleModel();
+            pixelStride = sampleModel.getPixelStride();
+            scanlineStride = sampleModel.getScanlineStride();
+            bandOffsets = sampleModel.getBandOffsets();
+            origin = raster.getDataBuffer().getOffset()
+                    + (raster.getMinY() - raster.getSampleModelTranslateY())
+                    * scanlineStride
+                    + (raster.getMinX() - raster.getSampleModelTranslateX())
+                    * pixelStride;
+        }
+    }
+
+    private static class ByteRows extends InterleavedRows {
+
+        private final byte[] data;
+
+        private ByteRows(Raster raster) {
+            super(raster);
+            data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        }
+
+        @Override
+        void read(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    row[x * bands + b] = data[offset + bandOffsets[b]] & 0xff;
+                }
+                offset += pixelStride;
+            }
+        }
+
+        @Override
+        void write(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    float value = row[x * bands + b];
+                    data[offset + bandOffsets[b]] = (byte) (value <= 0 ? 0
+                            : value >= 255 ? 255 : (int) (value + 0.5f));
+                }
+                offset += pixelStride;
+            }
+        }
+    }
+
+    private static class UShortRows extends InterleavedRows {
+
+        private final short[] data;
+
+        private UShortRows(Raster raster) {
+            super(raster);
+            data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+        }
+
+        @Override
+        void read(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    row[x * bands + b] = data[offset + bandOffsets[b]]
+                            & 0xffff;
+                }
+                offset += pixelStride;
+            }
+        }
+
+        @Override
+        void write(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    float value = row[x * bands + b];
+                    data[offset + bandOffsets[b]] = (short) (value <= 0 ? 0
+                            : value >= 65535 ? 65535 : (int) (value + 0.5f));
+                }
+                offset += pixelStride;
+            }
+        }
+    }
+
+    private static class FloatRows extends InterleavedRows {
+
+        private final float[] data;
+
+        private FloatRows(Raster raster) {
+            super(raster);
+            data = ((DataBufferFloat) raster.getDataBuffer()).getData();
+        }
+
+        @Override
+        void read(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    row[x * bands + b] = data[offset + bandOffsets[b]];
+                }
+                offset += pixelStride;
+            }
+        }
+
+        @Override
+        void write(int y, float[] row) {
+            int offset = origin + y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < bands; b++) {
+                    data[offset + bandOffsets[b]] = row[x * bands + b];
+                }
+                offset += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * Rows of any raster, such as packed or banded ones, accessed through the
+     * Raster methods.
+     */
+    private static class GenericRows extends RasterRows {
+
+        private final boolean floating;
+        private final float minValue;
+        private final float[] maxValues;
+
+        private GenericRows(Raster raster) {
+            super(raster);
+            int dataType = raster.getDataBuffer().getDataType();
+            floating = dataType == DataBuffer.TYPE_FLOAT
+                    || dataType == DataBuffer.TYPE_DOUBLE;
+            minValue = dataType == DataBuffer.TYPE_SHORT ? Short.MIN_VALUE
+                    : dataType == DataBuffer.TYPE_INT
+                    && raster.getSampleModel().getSampleSize(0) >= 32
+                            ? Integer.MIN_VALUE : 0;
+            maxValues = new float[bands];
+            for (int b = 0; b < bands; b++) {
+                int bits = raster.getSampleModel().getSampleSize(b);
+                maxValues[b] = dataType == DataBuffer.TYPE_SHORT
+                        ? Short.MAX_VALUE
+                        : dataType == DataBuffer.TYPE_INT && bits >= 32
+                                ? Integer.MAX_VALUE
+                                : (float) ((1L << bits) - 1);
+            }
+        }
+
+        @Override
+        void read(int y, float[] row) {
+            raster.getPixels(raster.getMinX(), raster.getMinY() + y,
+                    width, 1, row);
+        }
+
+        @Override
+        void write(int y, float[] row) {
+            if (!floating) {
+                for (int i = 0; i < row.length; i++) {
+                    float max = maxValues[i % bands];
+                    float value = row[i];
+                    row[i] = value <= minValue ? minValue
+                            : value >= max ? max
+                            : (float) Math.floor(value + 0.5f);
+                }
+            }
+            ((WritableRaster) raster).setPixels(raster.getMinX(),
+                    raster.getMinY() + y, width, 1, row);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Algorithm used to resize images.
+ *
+ * @author Antoine Vandecreme
+ */
+public interface Resampler {
+
+    /**
+     * Resize an image. Implementations must be thread safe.
+     *
+     * @param image the image to resize
+     * @param width the width of the result
+     * @param height the height of the result
+     * @return the resized image, with the same characteristics than the
+     * input one, or the input image itself if the size is unchanged
+     */
+    BufferedImage resize(BufferedImage image, int width, int height);
+
+}
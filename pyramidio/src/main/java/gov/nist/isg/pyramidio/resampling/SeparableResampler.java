@@ -0,0 +1,249 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+import gov.nist.isg.pyramidio.tools.BufferedImageHelper;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resampler applying a filter horizontally then vertically.
+ *
+ * The weights of the source pixels contributing to each pixel of the result
+ * are computed once per source and result sizes. The rows are accessed
+ * through the arrays of byte, unsigned short and float rasters and through
+ * the generic Raster methods for the other ones. The results are clamped to
+ * the range of the integer types, or to the range of the source for the
+ * float types.
+ *
+ * @author Antoine Vandecreme
+ */
+public abstract class SeparableResampler implements Resampler {
+
+    private static final int MAX_CACHED_TABLES = 64;
+
+    private final ConcurrentHashMap<Long, WeightTable> tables
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Get the radius of the filter, in source pixels when not downsampling.
+     */
+    protected abstract double getRadius();
+
+    /**
+     * Evaluate the filter.
+     *
+     * @param x the distance to the center of the filter
+     * @return the filter value
+     */
+    protected abstract double filter(double x);
+
+    /**
+     * Get the distance from the center of a pixel of the result beyond which
+     * the source pixels have no weight.
+     *
+     * @param filterScale the scale of the filter, which is the downsampling
+     * factor or 1 when upsampling
+     * @return the support in source pixels
+     */
+    protected double getSupport(double filterScale) {
+        return getRadius() * filterScale;
+    }
+
+    /**
+     * Get the weight, before normalization, of a source pixel.
+     *
+     * @param distance the distance between the centers of the source pixel
+     * and of the pixel of the result, in source pixels
+     * @param filterScale the scale of the filter, which is the downsampling
+     * factor or 1 when upsampling
+     * @return the weight
+     */
+    protected double getWeight(double distance, double filterScale) {
+        return filter(distance / filterScale);
+    }
+
+    @Override
+    public BufferedImage resize(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        if (sourceWidth == width && sourceHeight == height) {
+            return image;
+        }
+        WeightTable columns = getTable(sourceWidth, width);
+        WeightTable rows = getTable(sourceHeight, height);
+        BufferedImage result = BufferedImageHelper.createBufferedImage(
+                width, height, image);
+        RasterRows source = RasterRows.create(image.getRaster());
+        RasterRows destination = RasterRows.create(result.getRaster());
+        int bands = image.getRaster().getNumBands();
+        float[] sourceRow = new float[sourceWidth * bands];
+
+        // The integer samples are clamped to their type when written, the
+        // float ones are clamped to the range of the source instead so that
+        // the filters with negative lobes do not overshoot
+        float[] range = isFloating(image.getRaster())
+                ? getRange(source, sourceHeight, sourceRow, bands) : null;
+
+        // Horizontally filtered rows, only the ones still needed are kept
+        float[][] filteredRows = new float[sourceHeight][];
+        int firstKeptRow = 0;
+        float[] resultRow = new float[width * bands];
+        for (int y = 0; y < height; y++) {
+            int firstNeededRow = rows.getFirstIndex(y);
+            for (; firstKeptRow < firstNeededRow; firstKeptRow++) {
+                filteredRows[firstKeptRow] = null;
+            }
+            Arrays.fill(resultRow, 0);
+            for (int k = 0; k < rows.taps; k++) {
+                float weight = rows.weights[y * rows.taps + k];
+                if (weight == 0) {
+                    continue;
+                }
+                int index = rows.indices[y * rows.taps + k];
+                float[] filteredRow = filteredRows[index];
+                if (filteredRow == null) {
+                    source.read(index, sourceRow);
+                    filteredRow = new float[width * bands];
+                    filter(sourceRow, filteredRow, columns, bands);
+                    filteredRows[index] = filteredRow;
+                }
+                for (int i = 0; i < resultRow.length; i++) {
+                    resultRow[i] += weight * filteredRow[i];
+                }
+            }
+            if (range != null) {
+                for (int i = 0; i < resultRow.length; i++) {
+                    int b = i % bands;
+                    resultRow[i] = Math.max(range[b],
+                            Math.min(range[bands + b], resultRow[i]));
+                }
+            }
+            destination.write(y, resultRow);
+        }
+        return result;
+    }
+
+    private static boolean isFloating(Raster raster) {
+        int dataType = raster.getDataBuffer().getDataType();
+        return dataType == DataBuffer.TYPE_FLOAT
+                || dataType == DataBuffer.TYPE_DOUBLE;
+    }
+
+    /**
+     * Get the minimum of each band followed by the maximum of each band.
+     */
+    private static float[] getRange(RasterRows source, int height,
+            float[] row, int bands) {
+        float[] range = new float[2 * bands];
+        Arrays.fill(range, 0, bands, Float.POSITIVE_INFINITY);
+        Arrays.fill(range, bands, 2 * bands, Float.NEGATIVE_INFINITY);
+        for (int y = 0; y < height; y++) {
+            source.read(y, row);
+            for (int i = 0; i < row.length; i++) {
+                int b = i % bands;
+                range[b] = Math.min(range[b], row[i]);
+                range[bands + b] = Math.max(range[bands + b], row[i]);
+            }
+        }
+        return range;
+    }
+
+    private static void filter(float[] sourceRow, float[] resultRow,
+            WeightTable columns, int bands) {
+        int width = resultRow.length / bands;
+        int taps = columns.taps;
+        for (int x = 0; x < width; x++) {
+            int offset = x * bands;
+            for (int b = 0; b < bands; b++) {
+                resultRow[offset + b] = 0;
+            }
+            for (int k = 0; k < taps; k++) {
+                float weight = columns.weights[x * taps + k];
+                if (weight == 0) {
+                    continue;
+                }
+                int sourceOffset = columns.indices[x * taps + k] * bands;
+                for (int b = 0; b < bands; b++) {
+                    resultRow[offset + b] += weight
+                            * sourceRow[sourceOffset + b];
+                }
+            }
+        }
+    }
+
+    private WeightTable getTable(int sourceSize, int resultSize) {
+        long key = ((long) sourceSize << 32) | resultSize;
+        WeightTable table = tables.get(key);
+        if (table == null) {
+            table = new WeightTable(sourceSize, resultSize);
+            if (tables.size() >= MAX_CACHED_TABLES) {
+                tables.clear();
+            }
+            tables.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Weights of the source pixels contributing to each pixel of the result.
+     * The indices of the source pixels outside of the source are clamped.
+     */
+    private class WeightTable {
+
+        private final int taps;
+        private final int[] indices;
+        private final float[] weights;
+
+        private WeightTable(int sourceSize, int resultSize) {
+            double scale = (double) sourceSize / resultSize;
+            double filterScale = Math.max(1, scale);
+            double support = getSupport(filterScale);
+            taps = (int) Math.ceil(2 * support) + 1;
+            indices = new int[resultSize * taps];
+            weights = new float[resultSize * taps];
+            double[] values = new double[taps];
+            for (int i = 0; i < resultSize; i++) {
+                double center = (i + 0.5) * scale - 0.5;
+                int start = (int) Math.ceil(center - support);
+                double sum = 0;
+                for (int k = 0; k < taps; k++) {
+                    values[k] = getWeight(start + k - center, filterScale);
+                    sum += values[k];
+                }
+                if (sum == 0) {
+                    // Filter too narrow, use the nearest pixel
+                    start = (int) Math.round(center);
+                    Arrays.fill(values, 0);
+                    values[0] = 1;
+                    sum = 1;
+                }
+                for (int k = 0; k < taps; k++) {
+                    indices[i * taps + k] = Math.min(sourceSize - 1,
+                            Math.max(0, start + k));
+                    weights[i * taps + k] = (float) (values[k] / sum);
+                }
+            }
+        }
+
+        private int getFirstIndex(int i) {
+            int first = indices[i * taps];
+            for (int k = 1; k < taps; k++) {
+                first = Math.min(first, indices[i * taps + k]);
+            }
+            return first;
+        }
+    }
+}
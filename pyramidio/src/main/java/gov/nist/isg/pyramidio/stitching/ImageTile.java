@@ -76,6 +76,21 @@ public class ImageTile {
      * @throws IOException
      */
     public BufferedImage readTileRegion(Rectangle region) throws IOException {
+        return readTileRegion(region, 1);
+    }
+
+    /**
+     * Read part of the tile in the specified region (in this tile
+     * coordinates), keeping one pixel every subsampling pixels in each
+     * direction.
+     *
+     * @param region
+     * @param subsampling
+     * @return
+     * @throws IOException
+     */
+    public BufferedImage readTileRegion(Rectangle region, int subsampling)
+            throws IOException {
         try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
             Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
             if (!readers.hasNext()) {
@@ -86,6 +101,9 @@ public class ImageTile {
 
             ImageReadParam param = reader.getDefaultReadParam();
             param.setSourceRegion(region);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
             return reader.read(0, param);
         }
     }
@@ -11,7 +11,7 @@
  */
 package gov.nist.isg.pyramidio.stitching;
 
-import gov.nist.isg.pyramidio.PartialImageReader;
+import gov.nist.isg.pyramidio.SubsampledImageReader;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
@@ -35,7 +35,7 @@ import javax.imageio.stream.ImageInputStream;
  *
  * @author Antoine Vandecreme
  */
-public class MistStitchedImageReader implements PartialImageReader {
+public class MistStitchedImageReader implements SubsampledImageReader {
 
     private final File tilesDirectory;
     private final FilenameConverter filenameConverter;
@@ -190,6 +190,50 @@ public class MistStitchedImageReader implements PartialImageReader {
         return blender.getResult();
     }
 
+    /**
+     * Read a region, each tile being subsampled by its decoder.
+     */
+    @Override
+    public BufferedImage read(Rectangle rectangle, int subsampling)
+            throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException(
+                    "The subsampling must be positive.");
+        }
+        if (subsampling == 1) {
+            return read(rectangle);
+        }
+        Blender blender = new NormalBlender(
+                (rectangle.width + subsampling - 1) / subsampling,
+                (rectangle.height + subsampling - 1) / subsampling,
+                sampleImage);
+        for (ImageTile tile : tiles) {
+            Rectangle intersection
+                    = tile.getIntersectionWithStitchedImageRegion(rectangle);
+            // First pixel of the intersection kept by the subsampling
+            int x = rectangle.x + (intersection.x - rectangle.x
+                    + subsampling - 1) / subsampling * subsampling;
+            int y = rectangle.y + (intersection.y - rectangle.y
+                    + subsampling - 1) / subsampling * subsampling;
+            if (intersection.isEmpty()
+                    || x >= intersection.x + intersection.width
+                    || y >= intersection.y + intersection.height) {
+                continue;
+            }
+            Rectangle tileRegion = tile.getRegion();
+            BufferedImage region = tile.readTileRegion(new Rectangle(
+                    x - tileRegion.x, y - tileRegion.y,
+                    intersection.x + intersection.width - x,
+                    intersection.y + intersection.height - y), subsampling);
+
+            blender.blend(region,
+                    (x - rectangle.x) / subsampling,
+                    (y - rectangle.y) / subsampling);
+        }
+
+        return blender.getResult();
+    }
+
     @Override
     public int getWidth() {
         return width;
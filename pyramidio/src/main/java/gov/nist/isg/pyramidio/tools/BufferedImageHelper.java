@@ -11,7 +11,11 @@
  */
 package gov.nist.isg.pyramidio.tools;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.util.Hashtable;
 
 /**
@@ -50,4 +54,90 @@ public class BufferedImageHelper {
                 properties);
     }
 
+    /**
+     * Copy one pixel every subsampling pixels in each direction of a region
+     * of a raster, starting from the top left pixel of the region, to another
+     * raster with the same kind of data elements.
+     *
+     * @param source the raster to copy from
+     * @param region the region of the source raster
+     * @param subsampling the subsampling factor
+     * @param destination the raster to copy to
+     * @param x the x coordinate of the first pixel in the destination
+     * @param y the y coordinate of the first pixel in the destination
+     */
+    public static void subsample(Raster source, Rectangle region,
+            int subsampling, WritableRaster destination, int x, int y) {
+        int elements = source.getNumDataElements();
+        int width = (region.width + subsampling - 1) / subsampling;
+        Object sourceRow = null;
+        Object row = null;
+        for (int j = 0; j * subsampling < region.height; j++) {
+            sourceRow = source.getDataElements(region.x,
+                    region.y + j * subsampling, region.width, 1, sourceRow);
+            if (subsampling == 1) {
+                row = sourceRow;
+            } else {
+                if (row == null) {
+                    row = destination.getDataElements(x, y, width, 1, null);
+                }
+                for (int i = 0; i < width; i++) {
+                    System.arraycopy(sourceRow, i * subsampling * elements,
+                            row, i * elements, elements);
+                }
+            }
+            destination.setDataElements(x, y + j, width, 1, row);
+        }
+    }
+
+    /**
+     * Get the pixel of an image whose pixels all have the same value.
+     *
+     * @param image the image
+     * @return the samples of the pixel or null if the image is not uniform or
+     * has floating point samples.
+     */
+    public static int[] getUniformPixel(BufferedImage image) {
+        Raster raster = image.getRaster();
+        int dataType = raster.getDataBuffer().getDataType();
+        if (dataType == DataBuffer.TYPE_FLOAT
+                || dataType == DataBuffer.TYPE_DOUBLE) {
+            return null;
+        }
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int[] pixel = raster.getPixel(0, 0, (int[]) null);
+        int bands = pixel.length;
+        int[] row = new int[width * bands];
+        for (int y = 0; y < height; y++) {
+            raster.getPixels(0, y, width, 1, row);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != pixel[i % bands]) {
+                    return null;
+                }
+            }
+        }
+        return pixel;
+    }
+
+    /**
+     * Set all the pixels of a raster to the specified value.
+     *
+     * @param raster the raster
+     * @param pixel the samples of the pixel. If the raster has more bands, the
+     * samples of the extra bands are left to 0.
+     */
+    public static void fill(WritableRaster raster, int[] pixel) {
+        int width = raster.getWidth();
+        int bands = raster.getNumBands();
+        int[] row = new int[width * bands];
+        for (int x = 0; x < width; x++) {
+            System.arraycopy(pixel, 0, row, x * bands,
+                    Math.min(bands, pixel.length));
+        }
+        for (int y = 0; y < raster.getHeight(); y++) {
+            raster.setPixels(raster.getMinX(), raster.getMinY() + y,
+                    width, 1, row);
+        }
+    }
 }
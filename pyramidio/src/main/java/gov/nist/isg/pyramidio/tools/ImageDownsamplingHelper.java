@@ -0,0 +1,372 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Downsampling by an exact factor of 2, averaging each block of 2x2 pixels.
+ *
+ * @author Antoine Vandecreme
+ */
+public class ImageDownsamplingHelper {
+
+    private ImageDownsamplingHelper() {
+    }
+
+    /**
+     * Downsample an image by a factor 2 in each dimension. The resulting image
+     * is ceil(width / 2) x ceil(height / 2), the last column and row averaging
+     * only the available pixels when the width or height is odd.
+     *
+     * @param img the image to downsample
+     * @return the downsampled image
+     */
+    public static BufferedImage downsampleByTwo(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int dstWidth = (width + 1) / 2;
+        int dstHeight = (height + 1) / 2;
+        BufferedImage result = BufferedImageHelper.createBufferedImage(
+                dstWidth, dstHeight, img);
+        Raster src = img.getRaster();
+        WritableRaster dst = result.getRaster();
+        int bands = src.getNumBands();
+        int dataType = src.getDataBuffer().getDataType();
+        boolean floating = dataType == DataBuffer.TYPE_FLOAT
+                || dataType == DataBuffer.TYPE_DOUBLE;
+
+        if (floating) {
+            float[] top = new float[width * bands];
+            float[] bottom = new float[width * bands];
+            float[] out = new float[dstWidth * bands];
+            for (int y = 0; y < dstHeight; y++) {
+                int rows = 2 * y + 1 < height ? 2 : 1;
+                src.getPixels(0, 2 * y, width, 1, top);
+                if (rows == 2) {
+                    src.getPixels(0, 2 * y + 1, width, 1, bottom);
+                }
+                for (int x = 0; x < dstWidth; x++) {
+                    int columns = 2 * x + 1 < width ? 2 : 1;
+                    for (int b = 0; b < bands; b++) {
+                        int i = 2 * x * bands + b;
+                        float sum = top[i];
+                        if (columns == 2) {
+                            sum += top[i + bands];
+                        }
+                        if (rows == 2) {
+                            sum += bottom[i];
+                            if (columns == 2) {
+                                sum += bottom[i + bands];
+                            }
+                        }
+                        out[x * bands + b] = sum / (rows * columns);
+                    }
+                }
+                dst.setPixels(0, y, dstWidth, 1, out);
+            }
+        } else {
+            int[] top = new int[width * bands];
+            int[] bottom = new int[width * bands];
+            int[] out = new int[dstWidth * bands];
+            for (int y = 0; y < dstHeight; y++) {
+                int rows = 2 * y + 1 < height ? 2 : 1;
+                src.getPixels(0, 2 * y, width, 1, top);
+                if (rows == 2) {
+                    src.getPixels(0, 2 * y + 1, width, 1, bottom);
+                }
+                for (int x = 0; x < dstWidth; x++) {
+                    int columns = 2 * x + 1 < width ? 2 : 1;
+                    int count = rows * columns;
+                    for (int b = 0; b < bands; b++) {
+                        int i = 2 * x * bands + b;
+                        long sum = top[i];
+                        if (columns == 2) {
+                            sum += top[i + bands];
+                        }
+                        if (rows == 2) {
+                            sum += bottom[i];
+                            if (columns == 2) {
+                                sum += bottom[i + bands];
+                            }
+                        }
+                        // Round to nearest
+                        out[x * bands + b] = (int) ((sum + count / 2) / count);
+                    }
+                }
+                dst.setPixels(0, y, dstWidth, 1, out);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Downsample by a factor 2 the mosaic of 4 tiles directly into the
+     * destination raster, without assembling the mosaic. The destination
+     * pixel (x, y) is the average of the mosaic pixels (2x - offsetX,
+     * 2y - offsetY) to (2x - offsetX + 1, 2y - offsetY + 1), the coordinates
+     * outside of the mosaic being clamped to its borders.
+     *
+     * @param topLeft the top left tile of the mosaic
+     * @param topRight the top right tile or null
+     * @param bottomLeft the bottom left tile or null
+     * @param bottomRight the bottom right tile or null
+     * @param splitX the x of the right tiles in the mosaic
+     * @param splitY the y of the bottom tiles in the mosaic
+     * @param offsetX the x offset of the destination in the downsampled mosaic
+     * @param offsetY the y offset of the destination in the downsampled mosaic
+     * @param destination the destination raster with the same bands than the
+     * tiles
+     */
+    public static void downsampleByTwo(BufferedImage topLeft,
+            BufferedImage topRight, BufferedImage bottomLeft,
+            BufferedImage bottomRight, int splitX, int splitY, int offsetX,
+            int offsetY, WritableRaster destination) {
+        Raster[] tiles = {
+            topLeft.getRaster(),
+            topRight == null ? null : topRight.getRaster(),
+            bottomLeft == null ? null : bottomLeft.getRaster(),
+            bottomRight == null ? null : bottomRight.getRaster()
+        };
+        int mosaicWidth = topRight == null
+                ? topLeft.getWidth() : splitX + topRight.getWidth();
+        int mosaicHeight = bottomLeft == null
+                ? topLeft.getHeight() : splitY + bottomLeft.getHeight();
+        int width = destination.getWidth();
+        int height = destination.getHeight();
+
+        // Position in their tile of the 2 columns averaged for each pixel
+        int[] columns = new int[2 * width];
+        boolean[] right = new boolean[2 * width];
+        for (int i = 0; i < columns.length; i++) {
+            int x = clamp(2 * (i / 2) + i % 2 - offsetX, mosaicWidth);
+            right[i] = topRight != null && x >= splitX;
+            columns[i] = right[i] ? x - splitX : x;
+        }
+
+        if (isInterleavedBytes(tiles, destination)) {
+            downsampleBytes(tiles, splitY, offsetY, mosaicHeight, columns,
+                    right, destination);
+            return;
+        }
+
+        int bands = destination.getNumBands();
+        int dataType = destination.getDataBuffer().getDataType();
+        boolean floating = dataType == DataBuffer.TYPE_FLOAT
+                || dataType == DataBuffer.TYPE_DOUBLE;
+        int leftWidth = topLeft.getWidth() * bands;
+        int rightWidth = topRight == null ? 0 : topRight.getWidth() * bands;
+        double[][] floatRows = null;
+        int[][] intRows = null;
+        if (floating) {
+            floatRows = new double[][]{new double[leftWidth],
+                new double[rightWidth], new double[leftWidth],
+                new double[rightWidth]};
+        } else {
+            intRows = new int[][]{new int[leftWidth], new int[rightWidth],
+                new int[leftWidth], new int[rightWidth]};
+        }
+        double[] floatOut = floating ? new double[width * bands] : null;
+        int[] intOut = floating ? null : new int[width * bands];
+
+        for (int y = 0; y < height; y++) {
+            // Fetch the 2 rows of the mosaic averaged for this row
+            for (int k = 0; k < 2; k++) {
+                int my = clamp(2 * y + k - offsetY, mosaicHeight);
+                boolean bottom = bottomLeft != null && my >= splitY;
+                int ty = bottom ? my - splitY : my;
+                for (int side = 0; side < 2; side++) {
+                    Raster tile = tiles[(bottom ? 2 : 0) + side];
+                    if (tile == null) {
+                        continue;
+                    }
+                    if (floating) {
+                        tile.getPixels(0, ty, tile.getWidth(), 1,
+                                floatRows[2 * k + side]);
+                    } else {
+                        tile.getPixels(0, ty, tile.getWidth(), 1,
+                                intRows[2 * k + side]);
+                    }
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                int c0 = columns[2 * x] * bands;
+                int c1 = columns[2 * x + 1] * bands;
+                int s0 = right[2 * x] ? 1 : 0;
+                int s1 = right[2 * x + 1] ? 1 : 0;
+                for (int b = 0; b < bands; b++) {
+                    if (floating) {
+                        floatOut[x * bands + b] = (floatRows[s0][c0 + b]
+                                + floatRows[s1][c1 + b]
+                                + floatRows[2 + s0][c0 + b]
+                                + floatRows[2 + s1][c1 + b]) / 4;
+                    } else {
+                        long sum = (long) intRows[s0][c0 + b]
+                                + intRows[s1][c1 + b]
+                                + intRows[2 + s0][c0 + b]
+                                + intRows[2 + s1][c1 + b];
+                        intOut[x * bands + b] = (int) ((sum + 2) >> 2);
+                    }
+                }
+            }
+            if (floating) {
+                destination.setPixels(destination.getMinX(),
+                        destination.getMinY() + y, width, 1, floatOut);
+            } else {
+                destination.setPixels(destination.getMinX(),
+                        destination.getMinY() + y, width, 1, intOut);
+            }
+        }
+    }
+
+    /**
+     * Same than downsampleByTwo working directly on the arrays of byte
+     * rasters with interleaved samples.
+     */
+    private static void downsampleBytes(Raster[] tiles, int splitY,
+            int offsetY, int mosaicHeight, int[] columns, boolean[] right,
+            WritableRaster destination) {
+        int bands = destination.getNumBands();
+        int width = destination.getWidth();
+        int height = destination.getHeight();
+        int[] bandOffsets = ((ComponentSampleModel) destination
+                .getSampleModel()).getBandOffsets();
+
+        byte[][] data = new byte[4][];
+        int[] pixelStrides = new int[4];
+        int[] scanlineStrides = new int[4];
+        int[] origins = new int[4];
+        for (int i = 0; i < 4; i++) {
+            if (tiles[i] != null) {
+                data[i] = getData(tiles[i]);
+                pixelStrides[i] = getSampleModel(tiles[i]).getPixelStride();
+                scanlineStrides[i] = getSampleModel(tiles[i])
+                        .getScanlineStride();
+                origins[i] = getOrigin(tiles[i]);
+            }
+        }
+        byte[] out = getData(destination);
+        int outPixelStride = getSampleModel(destination).getPixelStride();
+        int outScanlineStride = getSampleModel(destination)
+                .getScanlineStride();
+        int outOrigin = getOrigin(destination);
+
+        // Offset in the tile arrays of the 2 columns of each pixel
+        int[][] columnOffsets = new int[2][columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            for (int bottom = 0; bottom < 2; bottom++) {
+                int tile = 2 * bottom + (right[i] ? 1 : 0);
+                columnOffsets[bottom][i] = columns[i] * pixelStrides[tile];
+            }
+        }
+
+        // Offset in the tile arrays of the rows of the left and right tiles
+        int[] rowOffsets = new int[4];
+        int[] rowBottoms = new int[2];
+        for (int y = 0; y < height; y++) {
+            for (int k = 0; k < 2; k++) {
+                int my = clamp(2 * y + k - offsetY, mosaicHeight);
+                int bottom = tiles[2] != null && my >= splitY ? 1 : 0;
+                int ty = bottom == 1 ? my - splitY : my;
+                rowBottoms[k] = bottom;
+                for (int side = 0; side < 2; side++) {
+                    int tile = 2 * bottom + side;
+                    rowOffsets[2 * k + side] = tiles[tile] == null ? 0
+                            : origins[tile] + ty * scanlineStrides[tile];
+                }
+            }
+            byte[] top0 = data[2 * rowBottoms[0]];
+            byte[] top1 = data[2 * rowBottoms[0] + 1];
+            byte[] bottom0 = data[2 * rowBottoms[1]];
+            byte[] bottom1 = data[2 * rowBottoms[1] + 1];
+            int[] topColumns = columnOffsets[rowBottoms[0]];
+            int[] bottomColumns = columnOffsets[rowBottoms[1]];
+            int outRow = outOrigin + y * outScanlineStride;
+            for (int x = 0; x < width; x++) {
+                int i0 = 2 * x;
+                int i1 = i0 + 1;
+                byte[] topA = right[i0] ? top1 : top0;
+                byte[] topB = right[i1] ? top1 : top0;
+                byte[] bottomA = right[i0] ? bottom1 : bottom0;
+                byte[] bottomB = right[i1] ? bottom1 : bottom0;
+                int topOffsetA = rowOffsets[right[i0] ? 1 : 0] + topColumns[i0];
+                int topOffsetB = rowOffsets[right[i1] ? 1 : 0] + topColumns[i1];
+                int bottomOffsetA = rowOffsets[right[i0] ? 3 : 2]
+                        + bottomColumns[i0];
+                int bottomOffsetB = rowOffsets[right[i1] ? 3 : 2]
+                        + bottomColumns[i1];
+                int o = outRow + x * outPixelStride;
+                for (int b = 0; b < bands; b++) {
+                    int bandOffset = bandOffsets[b];
+                    int sum = (topA[topOffsetA + bandOffset] & 0xff)
+                            + (topB[topOffsetB + bandOffset] & 0xff)
+                            + (bottomA[bottomOffsetA + bandOffset] & 0xff)
+                            + (bottomB[bottomOffsetB + bandOffset] & 0xff);
+                    out[o + bandOffset] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+    }
+
+    private static boolean isInterleavedBytes(Raster[] tiles,
+            Raster destination) {
+        if (!isInterleavedBytes(destination)) {
+            return false;
+        }
+        int[] bandOffsets = ((ComponentSampleModel) destination
+                .getSampleModel()).getBandOffsets();
+        for (Raster tile : tiles) {
+            if (tile != null && (!isInterleavedBytes(tile)
+                    || !Arrays.equals(bandOffsets, ((ComponentSampleModel) tile
+                            .getSampleModel()).getBandOffsets()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInterleavedBytes(Raster raster) {
+        return raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte;
+    }
+
+    private static ComponentSampleModel getSampleModel(Raster raster) {
+        return (ComponentSampleModel) raster.getSampleModel();
+    }
+
+    private static byte[] getData(Raster raster) {
+        return ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Get the index in the data array of the first sample of the raster.
+     */
+    private static int getOrigin(Raster raster) {
+        ComponentSampleModel sampleModel = getSampleModel(raster);
+        return raster.getDataBuffer().getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY())
+                * sampleModel.getScanlineStride()
+                + (raster.getMinX() - raster.getSampleModelTranslateX())
+                * sampleModel.getPixelStride();
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+}
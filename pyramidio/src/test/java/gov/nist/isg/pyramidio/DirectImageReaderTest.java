@@ -0,0 +1,52 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class DirectImageReaderTest {
+
+    @Test
+    public void testSessions() throws IOException {
+        File file = Files.createTempFile("pyramidio-test", ".png").toFile();
+        ImageIO.write(new BufferedImage(40, 30,
+                BufferedImage.TYPE_3BYTE_BGR), "png", file);
+
+        DirectImageReader reader = new DirectImageReader(file);
+        Assert.assertEquals(40, reader.getWidth());
+        Assert.assertFalse(reader.isTiled());
+        Assert.assertEquals("The sessions of the size and layout queries "
+                + "should be closed", 0, reader.getIdleSessionCount());
+
+        reader.read(new Rectangle(10, 10));
+        Assert.assertEquals("The session of a read should be kept",
+                1, reader.getIdleSessionCount());
+        Assert.assertFalse(reader.isTiled());
+        Assert.assertEquals("The idle session should be reused",
+                1, reader.getIdleSessionCount());
+
+        reader.close();
+        Assert.assertEquals(0, reader.getIdleSessionCount());
+        Assert.assertTrue(file.delete());
+    }
+}
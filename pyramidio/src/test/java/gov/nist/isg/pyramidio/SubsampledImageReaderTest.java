@@ -0,0 +1,240 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import gov.nist.isg.pyramidio.stitching.MistStitchedImageReader;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class SubsampledImageReaderTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+    private static final int[] SUBSAMPLINGS = {1, 2, 3, 7, 16};
+
+    // Whole image, single pixel, across the tiles and at the image borders
+    private static final Rectangle[] REGIONS = {
+        new Rectangle(WIDTH, HEIGHT),
+        new Rectangle(17, 23, 1, 1),
+        new Rectangle(61, 5, 130, 97),
+        new Rectangle(250, 150, 50, 50),
+        new Rectangle(63, 0, 3, HEIGHT)
+    };
+
+    @Test
+    public void testSubsampledReads() throws IOException {
+        BufferedImage image = createImage();
+        File directory = Files.createTempDirectory("pyramidio-test").toFile();
+        File png = new File(directory, "image.png");
+        ImageIO.write(image, "png", png);
+        File stripedTiff = new File(directory, "striped.tif");
+        File tiledTiff = new File(directory, "tiled.tif");
+        writeTiff(image, stripedTiff, false);
+        writeTiff(image, tiledTiff, true);
+
+        List<SubsampledImageReader> readers = new ArrayList<>();
+        readers.add(new BufferedImageReader(image));
+        readers.add(new DirectImageReader(png));
+        readers.add(new DirectImageReader(stripedTiff));
+        readers.add(new TiledImageReader(tiledTiff));
+        readers.add(new MappedImageReader(stripedTiff));
+        readers.add(new MappedImageReader(tiledTiff));
+        readers.add(createStitchedImageReader(image, directory));
+
+        try {
+            for (SubsampledImageReader reader : readers) {
+                for (Rectangle region : REGIONS) {
+                    for (int subsampling : SUBSAMPLINGS) {
+                        String message = reader.getClass().getSimpleName()
+                                + " region " + region + " subsampling "
+                                + subsampling;
+                        BufferedImage result = reader.read(
+                                region, subsampling);
+                        Assert.assertArrayEquals(message,
+                                getSubsampledPixels(
+                                        image, region, subsampling),
+                                getPixels(result));
+                    }
+                }
+            }
+        } finally {
+            for (SubsampledImageReader reader : readers) {
+                if (reader instanceof Closeable) {
+                    ((Closeable) reader).close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeepZoomSubsampledReads() throws IOException {
+        BufferedImage image = createImage();
+        File directory = Files.createTempDirectory("pyramidio-test").toFile();
+        try (DirectoryArchiver archiver = new DirectoryArchiver(directory)) {
+            new ScalablePyramidBuilder(64, 1, "png", "dzi").buildPyramid(
+                    new BufferedImageReader(image), "image", archiver);
+        }
+        DeepZoomImageReader reader = new DeepZoomImageReader(
+                new File(directory, "image.dzi"));
+
+        // The pixels of the levels are filtered, only the full resolution
+        // is exact
+        for (Rectangle region : REGIONS) {
+            for (int subsampling : SUBSAMPLINGS) {
+                String message = "Region " + region + " subsampling "
+                        + subsampling;
+                BufferedImage result = reader.read(region, subsampling);
+                Assert.assertEquals(message,
+                        (region.width + subsampling - 1) / subsampling,
+                        result.getWidth());
+                Assert.assertEquals(message,
+                        (region.height + subsampling - 1) / subsampling,
+                        result.getHeight());
+                if (subsampling == 1) {
+                    Assert.assertArrayEquals(message,
+                            getSubsampledPixels(image, region, 1),
+                            getPixels(result));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMappedImageReaderClose() throws IOException {
+        BufferedImage image = createImage();
+        File file = Files.createTempFile("pyramidio-test", ".tif").toFile();
+        writeTiff(image, file, true);
+        MappedImageReader reader = new MappedImageReader(file);
+        reader.read(new Rectangle(10, 10));
+        reader.close();
+        try {
+            reader.read(new Rectangle(10, 10));
+            Assert.fail("The reads should fail once the reader is closed.");
+        } catch (IOException ex) {
+            // expected
+        }
+        file.delete();
+    }
+
+    /**
+     * Create an RGB image with a gradient and some noise, so that each
+     * pixel is different from its neighbors.
+     */
+    private static BufferedImage createImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(0);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.getRaster().setPixel(x, y, new int[]{
+                    x * 255 / WIDTH,
+                    y * 255 / HEIGHT,
+                    random.nextInt(256)
+                });
+            }
+        }
+        return image;
+    }
+
+    private static void writeTiff(BufferedImage image, File file,
+            boolean tiled) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "tiff");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(
+                file)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (tiled) {
+                param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setTiling(64, 64, 0, 0);
+            }
+            param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Split the image in 4 tiles without overlap and create the MIST
+     * stitching vector placing them.
+     */
+    private static MistStitchedImageReader createStitchedImageReader(
+            BufferedImage image, File directory) throws IOException {
+        int tileWidth = WIDTH / 2;
+        int tileHeight = HEIGHT / 2;
+        StringBuilder positions = new StringBuilder();
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 2; col++) {
+                String name = "tile_" + row + "_" + col + ".png";
+                ImageIO.write(image.getSubimage(col * tileWidth,
+                        row * tileHeight, tileWidth, tileHeight), "png",
+                        new File(directory, name));
+                positions.append("file: ").append(name)
+                        .append("; corr: 1.0; position: (")
+                        .append(col * tileWidth).append(", ")
+                        .append(row * tileHeight).append(");\n");
+            }
+        }
+        File positionFile = new File(directory, "positions.txt");
+        Files.write(positionFile.toPath(),
+                positions.toString().getBytes(StandardCharsets.UTF_8));
+        return new MistStitchedImageReader(positionFile, directory);
+    }
+
+    private static int[] getSubsampledPixels(BufferedImage image,
+            Rectangle region, int subsampling) {
+        int width = (region.width + subsampling - 1) / subsampling;
+        int height = (region.height + subsampling - 1) / subsampling;
+        int bands = image.getRaster().getNumBands();
+        int[] pixels = new int[width * height * bands];
+        int[] pixel = new int[bands];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.getRaster().getPixel(region.x + x * subsampling,
+                        region.y + y * subsampling, pixel);
+                System.arraycopy(pixel, 0, pixels,
+                        (y * width + x) * bands, bands);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        Raster raster = image.getRaster();
+        return raster.getPixels(raster.getMinX(), raster.getMinY(),
+                raster.getWidth(), raster.getHeight(), (int[]) null);
+    }
+}
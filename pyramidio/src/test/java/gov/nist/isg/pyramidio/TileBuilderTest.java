@@ -0,0 +1,76 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class TileBuilderTest {
+
+    @Test
+    public void testIoExecutorSpareThreads() throws Exception {
+        final int parallelism = 2;
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final AtomicInteger maxPoolSize = new AtomicInteger();
+        BufferedImage image = new BufferedImage(1000, 1000,
+                BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImageReader reader = new BufferedImageReader(image) {
+            @Override
+            public BufferedImage read(Rectangle rectangle)
+                    throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                int poolSize = pool.getPoolSize();
+                int max;
+                while ((max = maxPoolSize.get()) < poolSize
+                        && !maxPoolSize.compareAndSet(max, poolSize)) {
+                }
+                return super.read(rectangle);
+            }
+        };
+        ExecutorService ioExecutor = Executors.newCachedThreadPool();
+        File directory = Files.createTempDirectory("pyramidio-test").toFile();
+        try (DirectoryArchiver archiver = new DirectoryArchiver(directory)) {
+            ScalablePyramidBuilder builder = new ScalablePyramidBuilder(
+                    64, 1, "png", "dzi");
+            builder.setIoExecutor(ioExecutor);
+            builder.buildPyramid(reader, "image", archiver, pool, null, 0);
+        } finally {
+            ioExecutor.shutdown();
+            pool.shutdown();
+        }
+        Assert.assertTrue(new File(directory, "image_files/10/0_0.png")
+                .isFile());
+        // A spare thread at most for each thread blocked by a read, the
+        // joins of the subtrees may start a few more
+        Assert.assertTrue("The pool should have at most "
+                + 3 * parallelism + " threads, got " + maxPoolSize.get(),
+                maxPoolSize.get() <= 3 * parallelism);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio;
+
+import gov.nist.isg.archiver.DirectoryArchiver;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class TiledImageReaderTest {
+
+    @Test
+    public void testEachTileDecodedAboutOnce() throws IOException {
+        File directory = Files.createTempDirectory("pyramidio-test").toFile();
+        File tiff = new File(directory, "image.tif");
+        Assume.assumeTrue(writeTiledTiff(1000, 700, 64, tiff));
+
+        for (int parallelism : new int[]{1, 4}) {
+            File output = new File(directory, "output-" + parallelism);
+            try (TiledImageReader reader = new TiledImageReader(tiff);
+                    DirectoryArchiver archiver
+                    = new DirectoryArchiver(output)) {
+                new ScalablePyramidBuilder(100, 1, "png", "dzi")
+                        .buildPyramid(reader, "image", archiver,
+                                parallelism, 0);
+                // 16 columns and 11 rows of native tiles. The tiles along
+                // the boundaries between the quadrants of the Z-order may be
+                // evicted before being read again, at most once each.
+                long decodedTiles = reader.getDecodedTiles();
+                Assert.assertTrue("Each native tile should be decoded with "
+                        + "a parallelism of " + parallelism + ", got "
+                        + decodedTiles, decodedTiles >= 16 * 11);
+                Assert.assertTrue("Each native tile should be decoded about "
+                        + "once with a parallelism of " + parallelism
+                        + ", got " + decodedTiles,
+                        decodedTiles <= 16 * 11 + 16 + 11);
+            }
+        }
+    }
+
+    private static boolean writeTiledTiff(int width, int height,
+            int tileSize, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                "tiff");
+        if (!writers.hasNext()) {
+            return false;
+        }
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(
+                file)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(tileSize, tileSize, 0, 0);
+            param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class ImageIOTileEncoderTest {
+
+    @Test
+    public void testClose() throws Exception {
+        final BufferedImage image = new BufferedImage(50, 40,
+                BufferedImage.TYPE_3BYTE_BGR);
+        image.getRaster().setPixel(7, 3, new int[]{10, 20, 30});
+        final ImageIOTileEncoder encoder = new ImageIOTileEncoder("png");
+        assertEncoded(image, encode(encoder, image));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    encode(encoder, image);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertEquals(2, encoder.getWriterCount());
+
+        encoder.close();
+        Assert.assertEquals(0, encoder.getWriterCount());
+
+        // The writers are created again after the close
+        assertEncoded(image, encode(encoder, image));
+        Assert.assertEquals(1, encoder.getWriterCount());
+        encoder.close();
+    }
+
+    private static byte[] encode(ImageIOTileEncoder encoder,
+            BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encoder.encode(image, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static void assertEncoded(BufferedImage image, byte[] encoded)
+            throws IOException {
+        BufferedImage decoded = ImageIO.read(
+                new ByteArrayInputStream(encoded));
+        Assert.assertArrayEquals(
+                image.getRaster().getPixels(0, 0, 50, 40, (int[]) null),
+                decoded.getRaster().getPixels(0, 0, 50, 40, (int[]) null));
+    }
+}
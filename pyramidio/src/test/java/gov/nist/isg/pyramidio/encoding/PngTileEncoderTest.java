@@ -0,0 +1,98 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.encoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class PngTileEncoderTest {
+
+    @Test
+    public void testEncodeBlocks() throws Exception {
+        final BufferedImage image = createImage(600, 500);
+        final PngTileEncoder encoder = new PngTileEncoder();
+        encoder.setBlockSize(64 * 1024);
+        encoder.setParallelism(3);
+        assertEncoded(image, encode(encoder, image));
+
+        // Outside of a pool after a change of the parallelism
+        encoder.setParallelism(5);
+        assertEncoded(image, encode(encoder, image));
+
+        // Forked in the pool of the worker
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            byte[] encoded = pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return encode(encoder, image);
+                }
+            }).get();
+            assertEncoded(image, encoded);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] encode(PngTileEncoder encoder, BufferedImage image)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.encode(image, output);
+        return output.toByteArray();
+    }
+
+    private static void assertEncoded(BufferedImage expected, byte[] encoded)
+            throws IOException {
+        BufferedImage actual = ImageIO.read(
+                new ByteArrayInputStream(encoded));
+        Assert.assertEquals(expected.getWidth(), actual.getWidth());
+        Assert.assertEquals(expected.getHeight(), actual.getHeight());
+        Assert.assertArrayEquals(
+                ((DataBufferByte) expected.getRaster().getDataBuffer())
+                .getData(),
+                ((DataBufferByte) actual.getRaster().getDataBuffer())
+                .getData());
+    }
+
+    /**
+     * Create an RGB image with gradients and noise, so that each filter is
+     * selected on some rows.
+     */
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.getRaster().setPixel(x, y, new int[]{
+                    x * 255 / width,
+                    y % 64 < 32 ? y * 255 / height : random.nextInt(256),
+                    (x + y) % 256
+                });
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.resampling;
+
+import gov.nist.isg.pyramidio.tools.ImageDownsamplingHelper;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class SeparableResamplerTest {
+
+    private static final Resampler[] RESAMPLERS = {
+        new BoxResampler(),
+        new BilinearResampler(),
+        new LanczosResampler()
+    };
+
+    // Not a BufferedImage type, used for gray float images
+    private static final int TYPE_FLOAT_GRAY = -1;
+
+    // Interleaved bytes, ushort and floats, then packed ints read through
+    // the generic path
+    private static final int[] TYPES = {
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_USHORT_GRAY,
+        TYPE_FLOAT_GRAY,
+        BufferedImage.TYPE_INT_RGB
+    };
+
+    @Test
+    public void testUnchangedSize() {
+        for (Resampler resampler : RESAMPLERS) {
+            for (int type : TYPES) {
+                BufferedImage image = createRandomImage(type, 9, 7);
+                Assert.assertSame(resampler + " should not resize",
+                        image, resampler.resize(image, 9, 7));
+            }
+        }
+    }
+
+    @Test
+    public void testUniformImage() {
+        for (Resampler resampler : RESAMPLERS) {
+            for (int type : TYPES) {
+                BufferedImage image = createImage(type, 37, 23);
+                WritableRaster raster = image.getRaster();
+                int bands = raster.getNumBands();
+                float[] pixel = new float[bands];
+                for (int b = 0; b < bands; b++) {
+                    pixel[b] = type == TYPE_FLOAT_GRAY
+                            ? 0.25f + 0.25f * b : 50 + 50 * b;
+                }
+                for (int y = 0; y < 23; y++) {
+                    for (int x = 0; x < 37; x++) {
+                        raster.setPixel(x, y, pixel);
+                    }
+                }
+
+                // Downsampled and upsampled
+                for (int[] size : new int[][]{{11, 8}, {50, 41}}) {
+                    BufferedImage result = resampler.resize(
+                            image, size[0], size[1]);
+                    float[] expected = new float[size[0] * size[1] * bands];
+                    for (int i = 0; i < expected.length; i++) {
+                        expected[i] = pixel[i % bands];
+                    }
+                    Assert.assertArrayEquals(resampler + " on type " + type
+                            + " should keep a uniform image uniform",
+                            expected, result.getRaster().getPixels(0, 0,
+                                    size[0], size[1], (float[]) null),
+                            1e-4f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBoxByTwo() {
+        for (int type : TYPES) {
+            BufferedImage image = createRandomImage(type, 14, 10);
+            BufferedImage expected
+                    = ImageDownsamplingHelper.downsampleByTwo(image);
+            BufferedImage result = new BoxResampler().resize(image, 7, 5);
+            Assert.assertArrayEquals("The box filter on type " + type
+                    + " should average blocks of 2x2 pixels",
+                    expected.getRaster().getPixels(0, 0, 7, 5, (float[]) null),
+                    result.getRaster().getPixels(0, 0, 7, 5, (float[]) null),
+                    1e-4f);
+        }
+    }
+
+    @Test
+    public void testRange() {
+        // Sharp edges between the extreme values make the lanczos filter
+        // overshoot
+        for (Resampler resampler : RESAMPLERS) {
+            for (int type : new int[]{BufferedImage.TYPE_USHORT_GRAY,
+                TYPE_FLOAT_GRAY}) {
+                BufferedImage image = createImage(type, 32, 32);
+                float max = type == TYPE_FLOAT_GRAY ? 1 : 65535;
+                for (int y = 0; y < 32; y++) {
+                    for (int x = 0; x < 32; x++) {
+                        image.getRaster().setSample(x, y, 0,
+                                (x / 3 + y / 5) % 2 == 0 ? 0 : max);
+                    }
+                }
+                for (int[] size : new int[][]{{13, 11}, {45, 40}}) {
+                    BufferedImage result = resampler.resize(
+                            image, size[0], size[1]);
+                    for (float value : result.getRaster().getPixels(0, 0,
+                            size[0], size[1], (float[]) null)) {
+                        Assert.assertTrue(resampler + " on type " + type
+                                + " should not overshoot, got " + value,
+                                value >= 0 && value <= max);
+                    }
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createRandomImage(int type, int width,
+            int height) {
+        BufferedImage image = createImage(type, width, height);
+        WritableRaster raster = image.getRaster();
+        Random random = new Random(0);
+        for (int b = 0; b < raster.getNumBands(); b++) {
+            int max = (1 << raster.getSampleModel().getSampleSize(b)) - 1;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (type == TYPE_FLOAT_GRAY) {
+                        raster.setSample(x, y, b, random.nextFloat());
+                    } else {
+                        raster.setSample(x, y, b, random.nextInt(max + 1));
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Create an image of a BufferedImage type, or a gray float image for
+     * TYPE_FLOAT_GRAY.
+     */
+    private static BufferedImage createImage(int type, int width,
+            int height) {
+        if (type != TYPE_FLOAT_GRAY) {
+            return new BufferedImage(width, height, type);
+        }
+        ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+        return new BufferedImage(colorModel,
+                colorModel.createCompatibleWritableRaster(width, height),
+                false, null);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.isg.pyramidio.tools;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Antoine Vandecreme
+ */
+public class ImageDownsamplingHelperTest {
+
+    @Test
+    public void testDownsampleByTwoOddSize() {
+        BufferedImage image = new BufferedImage(3, 3,
+                BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setPixels(0, 0, 3, 3, new int[]{
+            1, 2, 3,
+            4, 5, 6,
+            7, 8, 9
+        });
+
+        BufferedImage result = ImageDownsamplingHelper.downsampleByTwo(image);
+
+        // The last column and row average only the available pixels,
+        // rounded to the nearest
+        Assert.assertEquals(2, result.getWidth());
+        Assert.assertEquals(2, result.getHeight());
+        Assert.assertArrayEquals(new int[]{
+            (1 + 2 + 4 + 5) / 4, 5,
+            8, 9
+        }, result.getRaster().getPixels(0, 0, 2, 2, (int[]) null));
+    }
+
+    @Test
+    public void testDownsampleByTwoOddSizeFloat() {
+        BufferedImage image = createFloatImage(3, 3);
+        image.getRaster().setPixels(0, 0, 3, 3, new float[]{
+            1, 2, 3,
+            4, 5, 6,
+            7, 8, 9
+        });
+
+        BufferedImage result = ImageDownsamplingHelper.downsampleByTwo(image);
+
+        Assert.assertArrayEquals(new float[]{
+            3, 4.5f,
+            7.5f, 9
+        }, result.getRaster().getPixels(0, 0, 2, 2, (float[]) null), 0);
+    }
+
+    @Test
+    public void testDownsampleMosaicByte() {
+        testDownsampleMosaic(createRandomImage(
+                BufferedImage.TYPE_3BYTE_BGR, 13, 9));
+        testDownsampleMosaic(createRandomImage(
+                BufferedImage.TYPE_4BYTE_ABGR, 12, 10));
+    }
+
+    @Test
+    public void testDownsampleMosaicUShort() {
+        testDownsampleMosaic(createRandomImage(
+                BufferedImage.TYPE_USHORT_GRAY, 13, 9));
+    }
+
+    @Test
+    public void testDownsampleMosaicFloat() {
+        BufferedImage image = createFloatImage(13, 9);
+        Random random = new Random(0);
+        float[] pixels = new float[13 * 9];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextFloat();
+        }
+        image.getRaster().setPixels(0, 0, 13, 9, pixels);
+        testDownsampleMosaic(image);
+    }
+
+    @Test
+    public void testDownsampleMosaicOffset() {
+        BufferedImage image = createRandomImage(
+                BufferedImage.TYPE_BYTE_GRAY, 6, 4);
+        BufferedImage result = new BufferedImage(3, 2,
+                BufferedImage.TYPE_BYTE_GRAY);
+
+        // Offset of 1, the first pixel averaging the first column twice
+        ImageDownsamplingHelper.downsampleByTwo(image, null, null, null,
+                6, 4, 1, 0, result.getRaster());
+
+        int[] pixels = image.getRaster().getPixels(0, 0, 6, 4, (int[]) null);
+        int[] expected = new int[6];
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                int left = Math.max(2 * x - 1, 0);
+                int right = 2 * x;
+                int sum = pixels[2 * y * 6 + left] + pixels[2 * y * 6 + right]
+                        + pixels[(2 * y + 1) * 6 + left]
+                        + pixels[(2 * y + 1) * 6 + right];
+                expected[y * 3 + x] = (sum + 2) / 4;
+            }
+        }
+        Assert.assertArrayEquals(expected,
+                result.getRaster().getPixels(0, 0, 3, 2, (int[]) null));
+    }
+
+    /**
+     * Check that the downsampling of an image split in 4 tiles is the same
+     * than the downsampling of the whole image.
+     */
+    private void testDownsampleMosaic(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int splitX = 6;
+        int splitY = 4;
+        BufferedImage expected = ImageDownsamplingHelper.downsampleByTwo(image);
+
+        BufferedImage result = BufferedImageHelper.createBufferedImage(
+                expected.getWidth(), expected.getHeight(), image);
+        ImageDownsamplingHelper.downsampleByTwo(
+                image.getSubimage(0, 0, splitX, splitY),
+                image.getSubimage(splitX, 0, width - splitX, splitY),
+                image.getSubimage(0, splitY, splitX, height - splitY),
+                image.getSubimage(splitX, splitY,
+                        width - splitX, height - splitY),
+                splitX, splitY, 0, 0, result.getRaster());
+
+        int w = expected.getWidth();
+        int h = expected.getHeight();
+        Assert.assertArrayEquals(
+                expected.getRaster().getPixels(0, 0, w, h, (float[]) null),
+                result.getRaster().getPixels(0, 0, w, h, (float[]) null),
+                1e-6f);
+    }
+
+    private static BufferedImage createRandomImage(int type, int width,
+            int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        WritableRaster raster = image.getRaster();
+        Random random = new Random(0);
+        for (int b = 0; b < raster.getNumBands(); b++) {
+            int max = (1 << raster.getSampleModel().getSampleSize(b)) - 1;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    raster.setSample(x, y, b, random.nextInt(max + 1));
+                }
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage createFloatImage(int width, int height) {
+        ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+        return new BufferedImage(colorModel,
+                colorModel.createCompatibleWritableRaster(width, height),
+                false, null);
+    }
+}